@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits the number of network requests in flight at once, adjusting the limit to the latency of
+ * completed requests with additive increase and multiplicative decrease.
+ *
+ * <p>Latency is judged relative to the lowest latency seen recently for the same class of request,
+ * such as image requests to one host, since a large download is slow without the network being
+ * congested. The ratios are smoothed with an exponentially weighted moving average. While it stays
+ * within {@link #TOLERANCE} and the limit is being used, the limit grows by about one per limit's
+ * worth of requests. Above it, the limit shrinks by {@link #LATENCY_BACKOFF}, and a timeout shrinks
+ * it by {@link #TIMEOUT_BACKOFF}; either happens at most once per limit's worth of requests, so
+ * that the requests which were in flight at a backoff can't shrink the limit again. The limit
+ * starts at its maximum, so that it only takes effect once the network shows signs of congestion.
+ */
+class AdaptiveConcurrencyLimit {
+
+    /** Factor by which latency may exceed the minimum before the network counts as congested. */
+    private static final double TOLERANCE = 2.0;
+
+    /** Factor applied to the limit when requests complete too slowly. */
+    private static final double LATENCY_BACKOFF = 0.9;
+
+    /** Factor applied to the limit when a request times out. */
+    private static final double TIMEOUT_BACKOFF = 0.5;
+
+    /** Weight of a new sample in the smoothed latency ratio. */
+    private static final double SMOOTHING = 0.2;
+
+    /** Number of samples of a class after which its minimum latency is measured anew. */
+    private static final int WINDOW_SIZE = 100;
+
+    /** Number of request classes whose minimum latency is tracked. */
+    private static final int MAX_CLASSES = 64;
+
+    /** Receives the new limit whenever it changes. */
+    interface Listener {
+        void onLimitChanged(int limit);
+    }
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+
+    @Nullable private volatile Listener mListener;
+
+    @GuardedBy("this")
+    private double mLimit;
+
+    /** Smoothed ratio of latencies to the minimum latency of their class. */
+    @GuardedBy("this")
+    private double mSmoothedRatio = 1;
+
+    /** Number of samples since the last backoff, or -1 if there hasn't been one. */
+    @GuardedBy("this")
+    private int mSamplesSinceBackoff = -1;
+
+    /** Minimum latencies by request class, least recently used first. */
+    @GuardedBy("this")
+    private final Map<String, MinLatency> mMinLatencies =
+            new LinkedHashMap<String, MinLatency>(16, 0.75f, /* accessOrder= */ true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MinLatency> eldest) {
+                    return size() > MAX_CLASSES;
+                }
+            };
+
+    AdaptiveConcurrencyLimit(int minLimit, int maxLimit) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException(
+                    "Invalid concurrency limit bounds: min=" + minLimit + ", max=" + maxLimit);
+        }
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mLimit = maxLimit;
+    }
+
+    void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /** Returns the number of requests which may currently be in flight at once. */
+    synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    /**
+     * Adjusts the limit to a completed request.
+     *
+     * @param requestClass Class of the request, such as its host and type; latencies are only
+     *     compared within a class
+     * @param latencyMs Time the request spent on the network
+     * @param timedOut Whether the request failed with a timeout
+     * @param inFlight Number of requests in flight when the request completed, including itself
+     * @return whether the limit has grown
+     */
+    boolean onSample(String requestClass, long latencyMs, boolean timedOut, int inFlight) {
+        int oldLimit;
+        int newLimit;
+        synchronized (this) {
+            oldLimit = (int) mLimit;
+            if (mSamplesSinceBackoff >= 0) {
+                mSamplesSinceBackoff++;
+            }
+            boolean mayBackOff = mSamplesSinceBackoff < 0 || mSamplesSinceBackoff >= mLimit;
+            if (timedOut) {
+                if (mayBackOff) {
+                    backOffLocked(TIMEOUT_BACKOFF);
+                }
+            } else {
+                double ratio = (double) latencyMs / minLatencyLocked(requestClass, latencyMs);
+                mSmoothedRatio += SMOOTHING * (ratio - mSmoothedRatio);
+                if (mSmoothedRatio > TOLERANCE) {
+                    if (mayBackOff) {
+                        backOffLocked(LATENCY_BACKOFF);
+                    }
+                } else if (inFlight * 2 >= mLimit) {
+                    // Only grow a limit which is actually being used.
+                    mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+                }
+            }
+            newLimit = (int) mLimit;
+        }
+        if (newLimit != oldLimit) {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onLimitChanged(newLimit);
+            }
+        }
+        return newLimit > oldLimit;
+    }
+
+    @GuardedBy("this")
+    private void backOffLocked(double factor) {
+        mLimit = Math.max(mMinLimit, mLimit * factor);
+        mSamplesSinceBackoff = 0;
+    }
+
+    /** Records the latency of a request and returns the minimum latency of its class. */
+    @GuardedBy("this")
+    private long minLatencyLocked(String requestClass, long latencyMs) {
+        MinLatency minLatency = mMinLatencies.get(requestClass);
+        if (minLatency == null) {
+            minLatency = new MinLatency();
+            mMinLatencies.put(requestClass, minLatency);
+        }
+        return Math.max(1, minLatency.add(latencyMs));
+    }
+
+    /** The lowest latency seen recently for a class of requests. */
+    private static class MinLatency {
+        /**
+         * Lowest latency of the previous window, or {@link Long#MAX_VALUE} during the first one.
+         */
+        private long mPreviousMinMs = Long.MAX_VALUE;
+
+        private long mWindowMinMs = Long.MAX_VALUE;
+        private int mWindowSamples = 0;
+
+        /** Adds a sample and returns the current minimum. */
+        long add(long latencyMs) {
+            mWindowMinMs = Math.min(mWindowMinMs, latencyMs);
+            long result = Math.min(mPreviousMinMs, mWindowMinMs);
+            if (++mWindowSamples >= WINDOW_SIZE) {
+                // Let the minimum follow lasting changes of the network, such as a switch from
+                // Wi-Fi.
+                mPreviousMinMs = mWindowMinMs;
+                mWindowMinMs = Long.MAX_VALUE;
+                mWindowSamples = 0;
+            }
+            return result;
+        }
+    }
+}
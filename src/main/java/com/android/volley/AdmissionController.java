@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import com.android.volley.RequestQueue.OverflowPolicy;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admits newly added requests to a bounded queue of a {@link RequestQueue}, applying its {@link
+ * OverflowPolicy} when the queue is full.
+ *
+ * <p>Bounds are only checked when a request is first queued; requests which move from the cache
+ * queue to the network queue, or which were waiting for a duplicate request, are not subject to
+ * them.
+ */
+class AdmissionController {
+
+    private final ResponseDelivery mDelivery;
+    private final DispatchOrder mOrder;
+
+    private volatile OverflowPolicy mPolicy = OverflowPolicy.REJECT;
+
+    /** Number of callers blocked in {@link #offer} waiting for space. */
+    @GuardedBy("this")
+    private int mWaiting = 0;
+
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    AdmissionController(ResponseDelivery delivery, DispatchOrder order) {
+        mDelivery = delivery;
+        mOrder = order;
+    }
+
+    void setPolicy(OverflowPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        mPolicy = policy;
+    }
+
+    /** Returns the number of requests which were rejected because a queue was full. */
+    long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /** Returns the number of queued requests which were dropped for a higher-priority request. */
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Adds a request to the given queue, unless it holds {@code maxSize} requests or more. If the
+     * request is not added, it fails with a {@link QueueFullError}.
+     *
+     * @return whether the request was added to the queue
+     */
+    boolean offer(Request<?> request, BlockingQueue<Request<?>> queue, int maxSize) {
+        if (maxSize == Integer.MAX_VALUE) {
+            queue.add(request);
+            return true;
+        }
+        Request<?> dropped = null;
+        boolean admitted = true;
+        synchronized (this) {
+            if (queue.size() >= maxSize) {
+                switch (mPolicy) {
+                    case BLOCK:
+                        admitted = awaitSpaceLocked(queue, maxSize);
+                        break;
+                    case DROP_LOWEST_PRIORITY:
+                        dropped = findLast(queue);
+                        // Only make room for a request which would be dispatched sooner.
+                        if (dropped == null
+                                || mOrder.compare(request, dropped) >= 0
+                                || !queue.remove(dropped)) {
+                            dropped = null;
+                            admitted = false;
+                        }
+                        break;
+                    case REJECT:
+                    default:
+                        admitted = false;
+                        break;
+                }
+            }
+            if (admitted) {
+                queue.add(request);
+            }
+        }
+        // Fail requests outside the lock, since this may send other requests to the network.
+        if (!admitted) {
+            mRejectedCount.incrementAndGet();
+            fail(request, "admission-rejected");
+        }
+        if (dropped != null) {
+            mDroppedCount.incrementAndGet();
+            fail(dropped, "admission-dropped");
+        }
+        return admitted;
+    }
+
+    /** Called whenever a request has been taken from a bounded queue. */
+    void onDequeued() {
+        synchronized (this) {
+            if (mWaiting > 0) {
+                notifyAll();
+            }
+        }
+    }
+
+    /** Waits until the queue has space, returning false if interrupted. */
+    @GuardedBy("this")
+    private boolean awaitSpaceLocked(BlockingQueue<Request<?>> queue, int maxSize) {
+        mWaiting++;
+        try {
+            while (queue.size() >= maxSize) {
+                wait();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            mWaiting--;
+        }
+    }
+
+    /** Returns the queued request which would be dispatched last. */
+    @Nullable
+    private Request<?> findLast(BlockingQueue<Request<?>> queue) {
+        Request<?> last = null;
+        for (Request<?> request : queue) {
+            if (last == null || mOrder.compare(request, last) > 0) {
+                last = request;
+            }
+        }
+        return last;
+    }
+
+    private void fail(Request<?> request, String marker) {
+        if (request.isPrefetch()) {
+            // Prefetches are never delivered, not even their errors.
+            request.finish(marker);
+        } else {
+            request.addMarker(marker);
+            mDelivery.postError(request, new QueueFullError());
+        }
+        // Let any duplicate requests waiting for this one go to the network themselves.
+        request.notifyListenerResponseNotUsable();
+    }
+}
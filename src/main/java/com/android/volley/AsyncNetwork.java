@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Network} which performs requests without blocking the calling thread.
+ *
+ * <p>Used by {@link AsyncRequestQueue}, which provides the executors for any work an implementation
+ * can't avoid blocking on via {@link #setBlockingExecutor}, and for short callbacks via {@link
+ * #setNonBlockingExecutor}. An AsyncNetwork may also be used as a regular {@link Network}, in which
+ * case {@link #performRequest(Request)} blocks until the request completes.
+ */
+public abstract class AsyncNetwork implements Network {
+
+    private volatile ExecutorService mBlockingExecutor;
+    private volatile ExecutorService mNonBlockingExecutor;
+
+    protected AsyncNetwork() {}
+
+    /** Callback for the result of {@link #performRequest(Request, OnRequestComplete)}. */
+    public interface OnRequestComplete {
+        /** Called when the request completes with a response. */
+        void onSuccess(NetworkResponse networkResponse);
+
+        /** Called when the request fails and will not be retried. */
+        void onError(VolleyError volleyError);
+    }
+
+    /**
+     * Performs the specified request, including any retries, and invokes exactly one method of the
+     * callback once it completes. Must not block the calling thread.
+     *
+     * @param request Request to process
+     * @param callback Callback to invoke with the result; may be called on any thread
+     */
+    public abstract void performRequest(Request<?> request, OnRequestComplete callback);
+
+    /**
+     * Performs the specified request and blocks until it completes.
+     *
+     * @param request Request to process
+     * @return A {@link NetworkResponse} with data and caching metadata; will never be null
+     * @throws VolleyError on errors
+     */
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<NetworkResponse> response = new AtomicReference<>();
+        final AtomicReference<VolleyError> error = new AtomicReference<>();
+        performRequest(
+                request,
+                new OnRequestComplete() {
+                    @Override
+                    public void onSuccess(NetworkResponse networkResponse) {
+                        response.set(networkResponse);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(VolleyError volleyError) {
+                        error.set(volleyError);
+                        latch.countDown();
+                    }
+                });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            VolleyLog.e(e, "while waiting for CountDownLatch");
+            Thread.currentThread().interrupt();
+            throw new VolleyError(e);
+        }
+
+        if (response.get() != null) {
+            return response.get();
+        } else if (error.get() != null) {
+            throw error.get();
+        } else {
+            throw new VolleyError("Neither response entry was set");
+        }
+    }
+
+    /**
+     * Sets the executor for work which may block, such as reading a response body from a stream.
+     * Subclasses which wrap other components needing an executor should override this to pass it
+     * on.
+     */
+    public void setBlockingExecutor(ExecutorService executor) {
+        mBlockingExecutor = executor;
+    }
+
+    /** Sets the executor for short, non-blocking tasks such as dispatching callbacks. */
+    public void setNonBlockingExecutor(ExecutorService executor) {
+        mNonBlockingExecutor = executor;
+    }
+
+    /** Returns the executor set with {@link #setBlockingExecutor}, or null if none was set. */
+    protected ExecutorService getBlockingExecutor() {
+        return mBlockingExecutor;
+    }
+
+    /** Returns the executor set with {@link #setNonBlockingExecutor}, or null if none was set. */
+    protected ExecutorService getNonBlockingExecutor() {
+        return mNonBlockingExecutor;
+    }
+}
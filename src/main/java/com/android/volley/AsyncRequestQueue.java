@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import com.android.volley.toolbox.HttpHeaderParser;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link RequestQueue} which performs requests over an {@link AsyncNetwork}.
+ *
+ * <p>Instead of one thread per request in flight, a small, fixed set of threads is used: a pool of
+ * blocking threads for cache lookups and response parsing, and a single thread which starts network
+ * requests and handles their callbacks. The number of requests in flight is therefore only limited
+ * by the {@link AsyncNetwork}.
+ *
+ * <p>Cache lookups and network requests are started in the same order as by {@link RequestQueue},
+ * including {@link #setPriorityAgingPolicy} and {@link #setEarliestDeadlineFirst}. Per-host limits
+ * set with {@link #setMaxRequestsPerHost} and {@link #setMaxRequestRatePerHost}, the number of
+ * cache threads set with {@link #setCacheThreadPoolSize} and queue bounds set with {@link
+ * #setMaxQueueSizes}, the lane of dispatchers set with {@link #setImmediateLaneSize} and the limit
+ * set with {@link #setAdaptiveConcurrencyLimit} are not applied. Requests added with {@link
+ * #prefetch} are started after all other requests and only warm the cache, as with {@link
+ * RequestQueue}, but are never dropped.
+ */
+public class AsyncRequestQueue extends RequestQueue {
+
+    /** Number of threads for cache lookups and response parsing. */
+    private static final int DEFAULT_BLOCKING_THREAD_POOL_SIZE = 4;
+
+    /** Time an idle executor thread is kept alive. */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final AsyncNetwork mNetwork;
+
+    private final int mBlockingThreadPoolSize;
+
+    /** Manage list of waiting requests and de-duplicate requests with same cache key. */
+    private final WaitingRequestManager mWaitingRequestManager = new WaitingRequestManager(this);
+
+    private final Object mStartLock = new Object();
+
+    /** Whether the queue has been started and the cache is initialized. */
+    @GuardedBy("mStartLock")
+    private boolean mStarted = false;
+
+    /** Requests which were added before the queue was started. */
+    @GuardedBy("mStartLock")
+    private final List<Request<?>> mRequestsAwaitingStart = new ArrayList<>();
+
+    /** Executor for cache lookups, response parsing and reading response bodies. */
+    private volatile ExecutorService mBlockingExecutor;
+
+    /** Executor for starting network requests and handling their callbacks. */
+    private volatile ExecutorService mNonBlockingExecutor;
+
+    /**
+     * Creates the queue. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network An AsyncNetwork for performing HTTP requests
+     * @param blockingThreadPoolSize Number of threads for cache lookups and response parsing
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public AsyncRequestQueue(
+            Cache cache,
+            AsyncNetwork network,
+            int blockingThreadPoolSize,
+            ResponseDelivery delivery) {
+        // No network dispatcher threads are used.
+        super(cache, network, /* threadPoolSize= */ 0, delivery);
+        if (blockingThreadPoolSize <= 0) {
+            throw new IllegalArgumentException(
+                    "blockingThreadPoolSize must be positive: " + blockingThreadPoolSize);
+        }
+        mNetwork = network;
+        mBlockingThreadPoolSize = blockingThreadPoolSize;
+    }
+
+    /**
+     * Creates the queue. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network An AsyncNetwork for performing HTTP requests
+     */
+    public AsyncRequestQueue(Cache cache, AsyncNetwork network) {
+        this(
+                cache,
+                network,
+                DEFAULT_BLOCKING_THREAD_POOL_SIZE,
+                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+    }
+
+    /** Starts the executors of this queue. */
+    @Override
+    public void start() {
+        stop(); // Make sure any currently running executors are stopped.
+        Comparator<Runnable> taskOrder = new TaskOrder(getDispatchOrder());
+        mBlockingExecutor = newExecutor(mBlockingThreadPoolSize, "Volley-AsyncBlocking", taskOrder);
+        mNonBlockingExecutor = newExecutor(1, "Volley-AsyncNonBlocking", taskOrder);
+        mNetwork.setBlockingExecutor(mBlockingExecutor);
+        mNetwork.setNonBlockingExecutor(mNonBlockingExecutor);
+
+        mBlockingExecutor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        // Make a blocking call to initialize the cache.
+                        getCache().initialize();
+                        List<Request<?>> requests;
+                        synchronized (mStartLock) {
+                            mStarted = true;
+                            requests = new ArrayList<>(mRequestsAwaitingStart);
+                            mRequestsAwaitingStart.clear();
+                        }
+                        for (Request<?> request : requests) {
+                            startRequest(request);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Stops the executors of this queue. Requests which have not completed yet are not guaranteed
+     * to be processed.
+     */
+    @Override
+    public void stop() {
+        synchronized (mStartLock) {
+            mStarted = false;
+        }
+        if (mBlockingExecutor != null) {
+            mBlockingExecutor.shutdownNow();
+        }
+        if (mNonBlockingExecutor != null) {
+            mNonBlockingExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    <T> void beginRequest(Request<T> request) {
+        synchronized (mStartLock) {
+            if (!mStarted) {
+                mRequestsAwaitingStart.add(request);
+                return;
+            }
+        }
+        startRequest(request);
+    }
+
+    @Override
+    <T> void admitToNetwork(Request<T> request) {
+        sendRequestOverNetwork(request);
+    }
+
+    @Override
+    <T> void sendRequestOverNetwork(Request<T> request) {
+        synchronized (mStartLock) {
+            if (!mStarted) {
+                mRequestsAwaitingStart.add(request);
+                return;
+            }
+        }
+        request.markQueued();
+        mNonBlockingExecutor.execute(new NetworkTask(request));
+    }
+
+    private void startRequest(Request<?> request) {
+        // If the request is uncacheable, skip the cache and go straight to the network.
+        if (!request.shouldCache()) {
+            beginUncachedRequest(request);
+            return;
+        }
+        request.markQueued();
+        mBlockingExecutor.execute(new CacheTask(request));
+    }
+
+    private static ExecutorService newExecutor(
+            int threadPoolSize, final String name, Comparator<Runnable> taskOrder) {
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        threadPoolSize,
+                        threadPoolSize,
+                        KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        new PriorityBlockingQueue<Runnable>(11, taskOrder),
+                        new ThreadFactory() {
+                            private final AtomicInteger mCount = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(final Runnable runnable) {
+                                return new Thread(
+                                        new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                Process.setThreadPriority(
+                                                        Process.THREAD_PRIORITY_BACKGROUND);
+                                                runnable.run();
+                                            }
+                                        },
+                                        name + "-" + mCount.incrementAndGet());
+                            }
+                        },
+                        // Tasks submitted after stop() are dropped.
+                        new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** A task which starts processing a request in one of the queue's executors. */
+    private abstract static class RequestTask implements Runnable {
+        final Request<?> mRequest;
+
+        RequestTask(Request<?> request) {
+            mRequest = request;
+        }
+    }
+
+    /**
+     * Orders executor tasks. Requests are started in {@link DispatchOrder}, after any other tasks,
+     * which continue work on requests that have already been started.
+     */
+    private static class TaskOrder implements Comparator<Runnable> {
+        private final DispatchOrder mDispatchOrder;
+
+        TaskOrder(DispatchOrder dispatchOrder) {
+            mDispatchOrder = dispatchOrder;
+        }
+
+        @Override
+        public int compare(Runnable left, Runnable right) {
+            boolean leftIsRequest = left instanceof RequestTask;
+            boolean rightIsRequest = right instanceof RequestTask;
+            if (leftIsRequest && rightIsRequest) {
+                return mDispatchOrder.compare(
+                        ((RequestTask) left).mRequest, ((RequestTask) right).mRequest);
+            }
+            return leftIsRequest == rightIsRequest ? 0 : (leftIsRequest ? 1 : -1);
+        }
+    }
+
+    /** Resolves a request from the cache; the counterpart of {@link CacheDispatcher}. */
+    private class CacheTask extends RequestTask {
+
+        CacheTask(Request<?> request) {
+            super(request);
+        }
+
+        @Override
+        public void run() {
+            final Request<?> request = mRequest;
+            getDispatchOrder().onTaken(request, "cache");
+            request.addMarker("cache-queue-take");
+
+            // If the request has been canceled, don't bother dispatching it.
+            if (request.isCanceled()) {
+                request.finish("cache-discard-canceled");
+                return;
+            }
+
+            // If the caller no longer needs a response, fail the request without touching the
+            // cache.
+            if (request.hasDeadlinePassed()) {
+                if (request.isPrefetch()) {
+                    // Prefetches are never delivered, not even their errors.
+                    request.finish("cache-discard-deadline");
+                    return;
+                }
+                request.addMarker("cache-discard-deadline");
+                getResponseDelivery().postError(request, new DeadlineExceededError());
+                return;
+            }
+
+            // Attempt to retrieve this item from cache.
+            Cache.Entry entry = getCache().get(request.getCacheKey());
+            if (request.isPrefetch()) {
+                triagePrefetch(request, entry);
+                return;
+            }
+            if (entry == null) {
+                request.addMarker("cache-miss");
+                // Cache miss; send off to the network.
+                if (!mWaitingRequestManager.maybeAddToWaitingRequests(request)) {
+                    sendRequestOverNetwork(request);
+                }
+                return;
+            }
+
+            // If it is completely expired, just send it to the network.
+            if (entry.isExpired()) {
+                request.addMarker("cache-hit-expired");
+                request.setCacheEntry(entry);
+                if (!mWaitingRequestManager.maybeAddToWaitingRequests(request)) {
+                    sendRequestOverNetwork(request);
+                }
+                return;
+            }
+
+            // We have a cache hit; parse its data for delivery back to the request.
+            request.addMarker("cache-hit");
+            Response<?> response =
+                    request.parseNetworkResponse(
+                            new NetworkResponse(entry.data, entry.responseHeaders));
+            request.addMarker("cache-hit-parsed");
+
+            if (!entry.refreshNeeded()) {
+                // Completely unexpired cache hit. Just deliver the response.
+                getResponseDelivery().postResponse(request, response);
+            } else {
+                // Soft-expired cache hit. We can deliver the cached response,
+                // but we need to also send the request to the network for
+                // refreshing.
+                request.addMarker("cache-hit-refresh-needed");
+                request.setCacheEntry(entry);
+                // Mark the response as intermediate.
+                response.intermediate = true;
+
+                if (!mWaitingRequestManager.maybeAddToWaitingRequests(request)) {
+                    // Post the intermediate response back to the user and have
+                    // the delivery then forward the request along to the network.
+                    getResponseDelivery()
+                            .postResponse(
+                                    request,
+                                    response,
+                                    new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            sendRequestOverNetwork(request);
+                                        }
+                                    });
+                } else {
+                    // request has been added to list of waiting requests
+                    // to receive the network response from the first request once it returns.
+                    getResponseDelivery().postResponse(request, response);
+                }
+            }
+        }
+    }
+
+    /** Skips a prefetch whose response is fresh in the cache or already being fetched. */
+    private void triagePrefetch(Request<?> request, @Nullable Cache.Entry entry) {
+        if (entry != null && !entry.refreshNeeded()) {
+            request.finish("cache-hit-prefetch-fresh");
+            return;
+        }
+        if (mWaitingRequestManager.isInFlight(request.getCacheKey())) {
+            request.finish("cache-prefetch-in-flight");
+            return;
+        }
+        request.addMarker(entry == null ? "cache-miss" : "cache-hit-refresh-needed");
+        // Keep the stale entry so that the network can revalidate it.
+        request.setCacheEntry(entry);
+        sendRequestOverNetwork(request);
+    }
+
+    /** Performs a request over the network; the counterpart of {@link NetworkDispatcher}. */
+    private class NetworkTask extends RequestTask {
+
+        NetworkTask(Request<?> request) {
+            super(request);
+        }
+
+        @Override
+        public void run() {
+            final Request<?> request = mRequest;
+            getDispatchOrder().onTaken(request, "network");
+            request.addMarker("network-queue-take");
+
+            // If the request was cancelled already, do not perform the
+            // network request.
+            if (request.isCanceled()) {
+                request.finish("network-discard-cancelled");
+                request.notifyListenerResponseNotUsable();
+                return;
+            }
+
+            // If the caller no longer needs a response, fail the request without any I/O.
+            if (request.hasDeadlinePassed()) {
+                request.addMarker("network-discard-deadline");
+                onNetworkError(request, new DeadlineExceededError());
+                return;
+            }
+
+            final long startTimeMs = SystemClock.elapsedRealtime();
+            try {
+                mNetwork.performRequest(
+                        request,
+                        new AsyncNetwork.OnRequestComplete() {
+                            @Override
+                            public void onSuccess(NetworkResponse networkResponse) {
+                                onNetworkResponse(request, networkResponse);
+                            }
+
+                            @Override
+                            public void onError(VolleyError volleyError) {
+                                volleyError.setNetworkTimeMs(
+                                        SystemClock.elapsedRealtime() - startTimeMs);
+                                onNetworkError(request, request.parseNetworkError(volleyError));
+                            }
+                        });
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "Unhandled exception %s", e.toString());
+                VolleyError volleyError = new VolleyError(e);
+                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+                onNetworkError(request, volleyError);
+            }
+        }
+    }
+
+    private void onNetworkResponse(
+            final Request<?> request, final NetworkResponse networkResponse) {
+        request.addMarker("network-http-complete");
+
+        // Prefetches only store the raw response, without parsing or delivering it.
+        if (request.isPrefetch()) {
+            mBlockingExecutor.execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            storePrefetchedResponse(request, networkResponse);
+                        }
+                    });
+            return;
+        }
+
+        // If the server returned 304 AND we delivered a response already,
+        // we're done -- don't deliver a second identical response.
+        if (networkResponse.notModified && request.hasHadResponseDelivered()) {
+            request.finish("not-modified");
+            request.notifyListenerResponseNotUsable();
+            return;
+        }
+
+        // Parse the response on a blocking thread.
+        mBlockingExecutor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        parseAndDeliverResponse(request, networkResponse);
+                    }
+                });
+    }
+
+    private void parseAndDeliverResponse(Request<?> request, NetworkResponse networkResponse) {
+        try {
+            Response<?> response = request.parseNetworkResponse(networkResponse);
+            request.addMarker("network-parse-complete");
+
+            // Write to cache if applicable.
+            if (request.shouldCache() && response.cacheEntry != null) {
+                getCache().put(request.getCacheKey(), response.cacheEntry);
+                request.addMarker("network-cache-written");
+            }
+
+            // Post the response back.
+            request.markDelivered();
+            getResponseDelivery().postResponse(request, response);
+            request.notifyListenerResponseReceived(response);
+        } catch (Exception e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            onNetworkError(request, new VolleyError(e));
+        }
+    }
+
+    private void storePrefetchedResponse(Request<?> request, NetworkResponse networkResponse) {
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(networkResponse);
+        if (entry != null) {
+            getCache().put(request.getCacheKey(), entry);
+            request.addMarker("network-cache-written");
+        }
+        request.finish("network-prefetch-complete");
+    }
+
+    /** Posts an error, unless the request is a prefetch, which is just finished instead. */
+    private void onNetworkError(Request<?> request, VolleyError volleyError) {
+        if (request.isPrefetch()) {
+            request.finish("network-prefetch-error");
+        } else {
+            getResponseDelivery().postError(request, volleyError);
+        }
+        request.notifyListenerResponseNotUsable();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers responses and errors in batches.
+ *
+ * <p>Rather than posting each delivery separately, deliveries are collected and a single task is
+ * posted which runs all deliveries pending at that time, in the order they were posted. This
+ * reduces the number of messages on the main thread's queue when many responses arrive at once.
+ *
+ * <p>If a time budget is set, a task stops once it has run for that long and posts another task for
+ * the remaining deliveries, so that other work on the main thread, such as input handling and
+ * drawing, isn't held up by a large batch.
+ */
+public class BatchingExecutorDelivery extends ExecutorDelivery {
+
+    /**
+     * Creates a new batching delivery without a time budget.
+     *
+     * @param handler {@link Handler} to post responses on
+     */
+    public BatchingExecutorDelivery(Handler handler) {
+        this(handler, /* maxDrainTimeMs= */ 0);
+    }
+
+    /**
+     * Creates a new batching delivery.
+     *
+     * @param handler {@link Handler} to post responses on
+     * @param maxDrainTimeMs Time after which a batch yields to other work on the handler's thread,
+     *     or 0 to deliver all pending responses at once
+     */
+    public BatchingExecutorDelivery(final Handler handler, long maxDrainTimeMs) {
+        this(
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        handler.post(command);
+                    }
+                },
+                maxDrainTimeMs);
+    }
+
+    /**
+     * Creates a new batching delivery, mockable version for testing.
+     *
+     * @param executor For running batches of delivery tasks
+     * @param maxDrainTimeMs Time after which a batch yields to other tasks of {@code executor}, or
+     *     0 to deliver all pending responses at once
+     */
+    public BatchingExecutorDelivery(Executor executor, long maxDrainTimeMs) {
+        super(new BatchingExecutor(executor, maxDrainTimeMs));
+    }
+
+    /** Collects tasks and runs them in batches on another executor. */
+    private static class BatchingExecutor implements Executor, Runnable {
+        private final Queue<Runnable> mPending = new ConcurrentLinkedQueue<>();
+
+        /** Whether a batch has been posted which hasn't yet run all pending tasks. */
+        private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+
+        private final Executor mExecutor;
+        private final long mMaxDrainTimeMs;
+
+        BatchingExecutor(Executor executor, long maxDrainTimeMs) {
+            if (maxDrainTimeMs < 0) {
+                throw new IllegalArgumentException("maxDrainTimeMs must not be negative");
+            }
+            mExecutor = executor;
+            mMaxDrainTimeMs = maxDrainTimeMs;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mPending.add(command);
+            if (mDrainScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+        }
+
+        /** Runs pending tasks until there are none left or the time budget is spent. */
+        @Override
+        public void run() {
+            long startMs = SystemClock.elapsedRealtime();
+            while (true) {
+                Runnable task = mPending.poll();
+                if (task == null) {
+                    mDrainScheduled.set(false);
+                    // A task may have been added after the poll above but before its execute()
+                    // saw that a drain was still scheduled; pick it up rather than lose it.
+                    if (mPending.isEmpty() || !mDrainScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // Don't leave the remaining tasks stranded if a delivery throws.
+                    mExecutor.execute(this);
+                    throw e;
+                }
+                if (mMaxDrainTimeMs > 0
+                        && SystemClock.elapsedRealtime() - startMs >= mMaxDrainTimeMs
+                        && !mPending.isEmpty()) {
+                    // Yield to other work; the drain remains scheduled.
+                    mExecutor.execute(this);
+                    return;
+                }
+            }
+        }
+    }
+}
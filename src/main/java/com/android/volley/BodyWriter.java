@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the body of a request straight to the connection, so that the body never has to be held in
+ * memory as a whole. See {@link Request#getBodyWriter()}.
+ */
+public interface BodyWriter {
+
+    /**
+     * Returns the length of the body in bytes, or -1 if it isn't known in advance, in which case
+     * the body is sent with chunked transfer encoding.
+     */
+    long getContentLength();
+
+    /**
+     * Writes the body. Called on a worker thread, and again for each retry of the request, so the
+     * body must be reproducible.
+     *
+     * @param out Stream to write the body to, which is closed by the caller
+     * @throws IOException if the body can't be written
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
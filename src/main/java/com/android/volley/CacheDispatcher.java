@@ -17,11 +17,9 @@
 package com.android.volley;
 
 import android.os.Process;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 
 /**
@@ -54,6 +52,9 @@ public class CacheDispatcher extends Thread {
     /** Manage list of waiting requests and de-duplicate requests with same cache key. */
     private final WaitingRequestManager mWaitingRequestManager;
 
+    /** Initializes the cache once on behalf of all dispatchers sharing it. */
+    private final CacheInitializer mCacheInitializer;
+
     /**
      * Creates a new cache triage dispatcher thread. You must call {@link #start()} in order to
      * begin processing.
@@ -72,7 +73,30 @@ public class CacheDispatcher extends Thread {
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
-        mWaitingRequestManager = new WaitingRequestManager(this);
+        mWaitingRequestManager = new WaitingRequestManager(this, networkQueue, delivery);
+        mCacheInitializer = new CacheInitializer(cache);
+    }
+
+    /**
+     * Creates a cache triage dispatcher thread which shares its waiting requests and cache
+     * initialization with other dispatchers taking from the same cache queue.
+     *
+     * @param waitingRequestManager Shared manager of requests waiting for a duplicate in flight
+     * @param cacheInitializer Shared initializer of {@code cache}
+     */
+    /* package */ CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue,
+            BlockingQueue<Request<?>> networkQueue,
+            Cache cache,
+            ResponseDelivery delivery,
+            WaitingRequestManager waitingRequestManager,
+            CacheInitializer cacheInitializer) {
+        mCacheQueue = cacheQueue;
+        mNetworkQueue = networkQueue;
+        mCache = cache;
+        mDelivery = delivery;
+        mWaitingRequestManager = waitingRequestManager;
+        mCacheInitializer = cacheInitializer;
     }
 
     /**
@@ -88,16 +112,26 @@ public class CacheDispatcher extends Thread {
     public void run() {
         if (DEBUG) VolleyLog.v("start new dispatcher");
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        processRequests(/* isTask= */ false);
+    }
 
+    /**
+     * Initializes the cache and processes requests until this dispatcher quits.
+     *
+     * @param isTask Whether this runs as a task of an executor rather than on this thread. Tasks
+     *     must be interrupted after calling {@link #quit()}, and any interrupt stops them, so that
+     *     shutting down the executor isn't held up by them.
+     */
+    /* package */ void processRequests(boolean isTask) {
         // Make a blocking call to initialize the cache.
-        mCache.initialize();
+        mCacheInitializer.initialize();
 
         while (true) {
             try {
                 processRequest();
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
-                if (mQuit) {
+                if (mQuit || isTask) {
                     Thread.currentThread().interrupt();
                     return;
                 }
@@ -129,8 +163,24 @@ public class CacheDispatcher extends Thread {
             return;
         }
 
+        // If the caller no longer needs a response, fail the request without touching the cache.
+        if (request.hasDeadlinePassed()) {
+            if (request.isPrefetch()) {
+                // Prefetches are never delivered, not even their errors.
+                request.finish("cache-discard-deadline");
+                return;
+            }
+            request.addMarker("cache-discard-deadline");
+            mDelivery.postError(request, new DeadlineExceededError());
+            return;
+        }
+
         // Attempt to retrieve this item from cache.
         Cache.Entry entry = mCache.get(request.getCacheKey());
+        if (request.isPrefetch()) {
+            triagePrefetch(request, entry);
+            return;
+        }
         if (entry == null) {
             request.addMarker("cache-miss");
             // Cache miss; send off to the network dispatcher.
@@ -194,111 +244,45 @@ public class CacheDispatcher extends Thread {
         }
     }
 
-    private static class WaitingRequestManager implements Request.NetworkRequestCompleteListener {
-
-        /**
-         * Staging area for requests that already have a duplicate request in flight.
-         *
-         * <ul>
-         *   <li>containsKey(cacheKey) indicates that there is a request in flight for the given
-         *       cache key.
-         *   <li>get(cacheKey) returns waiting requests for the given cache key. The in flight
-         *       request is <em>not</em> contained in that list. Is null if no requests are staged.
-         * </ul>
-         */
-        private final Map<String, List<Request<?>>> mWaitingRequests = new HashMap<>();
-
-        private final CacheDispatcher mCacheDispatcher;
-
-        WaitingRequestManager(CacheDispatcher cacheDispatcher) {
-            mCacheDispatcher = cacheDispatcher;
+    /**
+     * Sends a prefetch to the network unless its cache entry is still fresh or a request for it is
+     * already in flight. Prefetches are never parsed or delivered, and don't wait for other
+     * requests.
+     */
+    private void triagePrefetch(Request<?> request, @Nullable Cache.Entry entry)
+            throws InterruptedException {
+        if (entry != null && !entry.refreshNeeded()) {
+            request.finish("cache-hit-prefetch-fresh");
+            return;
         }
-
-        /** Request received a valid response that can be used by other waiting requests. */
-        @Override
-        public void onResponseReceived(Request<?> request, Response<?> response) {
-            if (response.cacheEntry == null || response.cacheEntry.isExpired()) {
-                onNoUsableResponseReceived(request);
-                return;
-            }
-            String cacheKey = request.getCacheKey();
-            List<Request<?>> waitingRequests;
-            synchronized (this) {
-                waitingRequests = mWaitingRequests.remove(cacheKey);
-            }
-            if (waitingRequests != null) {
-                if (VolleyLog.DEBUG) {
-                    VolleyLog.v(
-                            "Releasing %d waiting requests for cacheKey=%s.",
-                            waitingRequests.size(), cacheKey);
-                }
-                // Process all queued up requests.
-                for (Request<?> waiting : waitingRequests) {
-                    mCacheDispatcher.mDelivery.postResponse(waiting, response);
-                }
-            }
+        if (mWaitingRequestManager.isInFlight(request.getCacheKey())) {
+            request.finish("cache-prefetch-in-flight");
+            return;
         }
+        request.addMarker(entry == null ? "cache-miss" : "cache-hit-refresh-needed");
+        // Keep the stale entry so that the network can revalidate it.
+        request.setCacheEntry(entry);
+        mNetworkQueue.put(request);
+    }
 
-        /** No valid response received from network, release waiting requests. */
-        @Override
-        public synchronized void onNoUsableResponseReceived(Request<?> request) {
-            String cacheKey = request.getCacheKey();
-            List<Request<?>> waitingRequests = mWaitingRequests.remove(cacheKey);
-            if (waitingRequests != null && !waitingRequests.isEmpty()) {
-                if (VolleyLog.DEBUG) {
-                    VolleyLog.v(
-                            "%d waiting requests for cacheKey=%s; resend to network",
-                            waitingRequests.size(), cacheKey);
-                }
-                Request<?> nextInLine = waitingRequests.remove(0);
-                mWaitingRequests.put(cacheKey, waitingRequests);
-                nextInLine.setNetworkRequestCompleteListener(this);
-                try {
-                    mCacheDispatcher.mNetworkQueue.put(nextInLine);
-                } catch (InterruptedException iex) {
-                    VolleyLog.e("Couldn't add request to queue. %s", iex.toString());
-                    // Restore the interrupted status of the calling thread (i.e. NetworkDispatcher)
-                    Thread.currentThread().interrupt();
-                    // Quit the current CacheDispatcher thread.
-                    mCacheDispatcher.quit();
-                }
-            }
+    /**
+     * Initializes a {@link Cache} the first time {@link #initialize()} is called. Later callers
+     * block until the first initialization has completed.
+     */
+    /* package */ static class CacheInitializer {
+        private final Cache mCache;
+
+        @GuardedBy("this")
+        private boolean mInitialized = false;
+
+        CacheInitializer(Cache cache) {
+            mCache = cache;
         }
 
-        /**
-         * For cacheable requests, if a request for the same cache key is already in flight, add it
-         * to a queue to wait for that in-flight request to finish.
-         *
-         * @return whether the request was queued. If false, we should continue issuing the request
-         *     over the network. If true, we should put the request on hold to be processed when the
-         *     in-flight request finishes.
-         */
-        private synchronized boolean maybeAddToWaitingRequests(Request<?> request) {
-            String cacheKey = request.getCacheKey();
-            // Insert request into stage if there's already a request with the same cache key
-            // in flight.
-            if (mWaitingRequests.containsKey(cacheKey)) {
-                // There is already a request in flight. Queue up.
-                List<Request<?>> stagedRequests = mWaitingRequests.get(cacheKey);
-                if (stagedRequests == null) {
-                    stagedRequests = new ArrayList<>();
-                }
-                request.addMarker("waiting-for-response");
-                stagedRequests.add(request);
-                mWaitingRequests.put(cacheKey, stagedRequests);
-                if (VolleyLog.DEBUG) {
-                    VolleyLog.d("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
-                }
-                return true;
-            } else {
-                // Insert 'null' queue for this cacheKey, indicating there is now a request in
-                // flight.
-                mWaitingRequests.put(cacheKey, null);
-                request.setNetworkRequestCompleteListener(this);
-                if (VolleyLog.DEBUG) {
-                    VolleyLog.d("new request, sending to network %s", cacheKey);
-                }
-                return false;
+        synchronized void initialize() {
+            if (!mInitialized) {
+                mCache.initialize();
+                mInitialized = true;
             }
         }
     }
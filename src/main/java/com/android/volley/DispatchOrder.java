@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import java.util.Comparator;
+
+/**
+ * The order in which requests are taken from a {@link RequestQueue}'s cache and network queues.
+ *
+ * <p>By default this is the natural ordering of {@link Request}. In earliest-deadline-first mode,
+ * requests with an earlier {@link Request#getDeadline()} go first, and the usual ordering only
+ * applies among requests with the same deadline. Either way, prefetches go after all other
+ * requests. The ordering of a request must not change while it is queued, so the configuration may
+ * only be changed while the queues are empty.
+ */
+class DispatchOrder implements Comparator<Request<?>> {
+
+    @Nullable private volatile PriorityAgingPolicy mAgingPolicy;
+
+    private volatile boolean mEarliestDeadlineFirst = false;
+
+    void setAgingPolicy(@Nullable PriorityAgingPolicy agingPolicy) {
+        mAgingPolicy = agingPolicy;
+    }
+
+    void setEarliestDeadlineFirst(boolean earliestDeadlineFirst) {
+        mEarliestDeadlineFirst = earliestDeadlineFirst;
+    }
+
+    @Override
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public int compare(Request<?> left, Request<?> right) {
+        int byPrefetch = comparePrefetch(left, right);
+        if (byPrefetch != 0) {
+            return byPrefetch;
+        }
+        int byDeadline = compareDeadlines(left, right);
+        if (byDeadline != 0) {
+            return byDeadline;
+        }
+        PriorityAgingPolicy agingPolicy = mAgingPolicy;
+        if (agingPolicy != null) {
+            long leftKey = agingKey(agingPolicy, left);
+            long rightKey = agingKey(agingPolicy, right);
+            if (leftKey != rightKey) {
+                return leftKey < rightKey ? -1 : 1;
+            }
+        }
+        return ((Request) left).compareTo(right);
+    }
+
+    /** Orders prefetches after all other requests, whatever their priority or deadline. */
+    int comparePrefetch(Request<?> left, Request<?> right) {
+        boolean leftPrefetch = left.isPrefetch();
+        return leftPrefetch == right.isPrefetch() ? 0 : (leftPrefetch ? 1 : -1);
+    }
+
+    /**
+     * Compares the deadlines of two requests in earliest-deadline-first mode; returns 0 otherwise.
+     */
+    int compareDeadlines(Request<?> left, Request<?> right) {
+        if (!mEarliestDeadlineFirst) {
+            return 0;
+        }
+        long leftDeadline = left.getDeadline();
+        long rightDeadline = right.getDeadline();
+        return leftDeadline == rightDeadline ? 0 : (leftDeadline < rightDeadline ? -1 : 1);
+    }
+
+    /**
+     * Returns the priority the request is currently treated as having, which may be higher than its
+     * own priority if it has aged.
+     */
+    Request.Priority getEffectivePriority(Request<?> request, long nowMs) {
+        Request.Priority effective = request.getPriority();
+        PriorityAgingPolicy agingPolicy = mAgingPolicy;
+        if (agingPolicy == null) {
+            return effective;
+        }
+        long key = agingKey(agingPolicy, request);
+        for (Request.Priority priority : Request.Priority.values()) {
+            // The request goes first if a request of this priority were queued now.
+            if (priority.ordinal() > effective.ordinal()
+                    && nowMs - agingPolicy.getHeadStartMs(priority) >= key) {
+                effective = priority;
+            }
+        }
+        return effective;
+    }
+
+    /** Called when a request is taken from a queue; adds a marker if the request has aged. */
+    void onTaken(Request<?> request, String queueName) {
+        if (mAgingPolicy == null) {
+            return;
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        Request.Priority effective = getEffectivePriority(request, nowMs);
+        if (effective != request.getPriority()) {
+            request.addMarker(
+                    queueName
+                            + "-queue-aged [priority="
+                            + request.getPriority()
+                            + ", effective="
+                            + effective
+                            + ", waited="
+                            + (nowMs - request.getQueuedTimeMs())
+                            + "]");
+        }
+    }
+
+    private static long agingKey(PriorityAgingPolicy agingPolicy, Request<?> request) {
+        return request.getQueuedTimeMs() - agingPolicy.getHeadStartMs(request.getPriority());
+    }
+}
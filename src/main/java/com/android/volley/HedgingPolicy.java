@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Decides when a duplicate of a slow request is sent, in the hope that it is answered sooner.
+ *
+ * <p>Hedging trades extra load for lower tail latency, so it should only be used for idempotent
+ * requests to backends which can absorb a small fraction of duplicate requests. See {@link
+ * PercentileHedgingPolicy} for an implementation which hedges requests slower than most.
+ *
+ * @see Request#setHedgingPolicy(HedgingPolicy)
+ */
+public interface HedgingPolicy {
+
+    /**
+     * Returns the time in milliseconds to wait for a response before sending a duplicate request,
+     * or a negative value to not send one.
+     */
+    long getHedgeDelayMs(Request<?> request);
+
+    /**
+     * Called with the time it took to receive the response which was used for the given request.
+     */
+    void onResponseTime(Request<?> request, long responseTimeMs);
+}
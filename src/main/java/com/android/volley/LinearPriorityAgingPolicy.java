@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * {@link PriorityAgingPolicy} under which a request gains one {@link Request.Priority} level for
+ * every fixed interval it waits.
+ *
+ * <p>For example, with an interval of one second, a {@link Request.Priority#LOW} request which has
+ * waited for two seconds is dispatched ahead of {@link Request.Priority#HIGH} requests which were
+ * queued after it.
+ */
+public class LinearPriorityAgingPolicy implements PriorityAgingPolicy {
+
+    private final long mIntervalMs;
+
+    /**
+     * @param intervalMs Time a request has to wait to be treated as one priority level higher; must
+     *     be positive
+     */
+    public LinearPriorityAgingPolicy(long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("intervalMs must be positive: " + intervalMs);
+        }
+        mIntervalMs = intervalMs;
+    }
+
+    @Override
+    public long getHeadStartMs(Request.Priority priority) {
+        return priority.ordinal() * mIntervalMs;
+    }
+}
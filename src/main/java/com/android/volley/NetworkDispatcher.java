@@ -21,8 +21,11 @@ import android.net.TrafficStats;
 import android.os.Build;
 import android.os.Process;
 import android.os.SystemClock;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import com.android.volley.toolbox.HttpHeaderParser;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -34,6 +37,42 @@ import java.util.concurrent.BlockingQueue;
  */
 public class NetworkDispatcher extends Thread {
 
+    /**
+     * Callbacks which let a {@link NetworkDispatcherPool} grow and shrink with demand, and adapt to
+     * the network.
+     */
+    /* package */ interface Pool {
+
+        /** Called before the dispatcher blocks waiting for a request. */
+        void onDispatcherIdle();
+
+        /**
+         * Called when the dispatcher stops waiting for a request.
+         *
+         * @param request the request which was taken, or null if the keep-alive period elapsed
+         */
+        void onDispatcherBusy(@Nullable Request<?> request);
+
+        /**
+         * Called when the dispatcher has been idle for its keep-alive period.
+         *
+         * @return whether the dispatcher should exit
+         */
+        boolean shouldRetire(NetworkDispatcher dispatcher);
+
+        /** Called when the dispatcher is done with a request it has taken. */
+        void onRequestProcessed(Request<?> request);
+
+        /**
+         * Called when a request has been performed over the network.
+         *
+         * @param request The request which was performed
+         * @param latencyMs Time the request spent on the network
+         * @param timedOut Whether the request failed with a timeout
+         */
+        void onNetworkResult(Request<?> request, long latencyMs, boolean timedOut);
+    }
+
     /** The queue of requests to service. */
     private final BlockingQueue<Request<?>> mQueue;
     /** The network interface for processing requests. */
@@ -44,6 +83,12 @@ public class NetworkDispatcher extends Thread {
     private final ResponseDelivery mDelivery;
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
+    /** Time to wait for a request before asking {@link #mPool} whether to exit. */
+    private final long mKeepAliveMs;
+    /** The pool this dispatcher belongs to, or null if it runs until {@link #quit()}. */
+    @Nullable private final Pool mPool;
+    /** Set once {@link #mPool} has allowed this dispatcher to exit. */
+    private boolean mRetired = false;
 
     /**
      * Creates a new network dispatcher thread. You must call {@link #start()} in order to begin
@@ -59,10 +104,29 @@ public class NetworkDispatcher extends Thread {
             Network network,
             Cache cache,
             ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, /* keepAliveMs= */ 0, /* pool= */ null);
+    }
+
+    /**
+     * Creates a new network dispatcher thread which belongs to an elastic pool.
+     *
+     * @param keepAliveMs Time to wait for a request before asking the pool whether to exit, or 0 to
+     *     wait indefinitely
+     * @param pool Pool to notify about idleness, or null
+     */
+    /* package */ NetworkDispatcher(
+            BlockingQueue<Request<?>> queue,
+            Network network,
+            Cache cache,
+            ResponseDelivery delivery,
+            long keepAliveMs,
+            @Nullable Pool pool) {
         mQueue = queue;
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mKeepAliveMs = keepAliveMs;
+        mPool = pool;
     }
 
     /**
@@ -85,12 +149,23 @@ public class NetworkDispatcher extends Thread {
     @Override
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        while (true) {
+        processRequests(/* isTask= */ false);
+    }
+
+    /**
+     * Processes requests until this dispatcher quits or retires.
+     *
+     * @param isTask Whether this runs as a task of an executor rather than on this thread. Tasks
+     *     must be interrupted after calling {@link #quit()}, and any interrupt stops them, so that
+     *     shutting down the executor isn't held up by them.
+     */
+    /* package */ void processRequests(boolean isTask) {
+        while (!mRetired) {
             try {
                 processRequest();
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
-                if (mQuit) {
+                if (mQuit || isTask) {
                     Thread.currentThread().interrupt();
                     return;
                 }
@@ -107,8 +182,43 @@ public class NetworkDispatcher extends Thread {
     // https://github.com/google/volley/issues/114
     private void processRequest() throws InterruptedException {
         // Take a request from the queue.
-        Request<?> request = mQueue.take();
-        processRequest(request);
+        Request<?> request = takeRequest();
+        if (request == null) {
+            return;
+        }
+        try {
+            processRequest(request);
+        } finally {
+            if (mPool != null) {
+                mPool.onRequestProcessed(request);
+            }
+        }
+    }
+
+    /**
+     * Blocks until a request is available. Returns null if this dispatcher belongs to a pool and
+     * was idle for its keep-alive period, in which case {@link #mRetired} may have been set.
+     */
+    @Nullable
+    private Request<?> takeRequest() throws InterruptedException {
+        if (mPool == null) {
+            return mQueue.take();
+        }
+        Request<?> request = null;
+        mPool.onDispatcherIdle();
+        try {
+            if (mKeepAliveMs > 0) {
+                request = mQueue.poll(mKeepAliveMs, TimeUnit.MILLISECONDS);
+            } else {
+                request = mQueue.take();
+            }
+        } finally {
+            mPool.onDispatcherBusy(request);
+        }
+        if (request == null && mPool.shouldRetire(this)) {
+            mRetired = true;
+        }
+        return request;
     }
 
     @VisibleForTesting
@@ -125,11 +235,37 @@ public class NetworkDispatcher extends Thread {
                 return;
             }
 
+            // If the caller no longer needs a response, fail the request without any I/O.
+            if (request.hasDeadlinePassed()) {
+                request.addMarker("network-discard-deadline");
+                postError(request, new DeadlineExceededError());
+                request.notifyListenerResponseNotUsable();
+                return;
+            }
+
             addTrafficStatsTag(request);
 
             // Perform the network request.
             NetworkResponse networkResponse = mNetwork.performRequest(request);
             request.addMarker("network-http-complete");
+            // Not every Network measures its time; fall back to the time spent here.
+            onNetworkResult(
+                    request,
+                    networkResponse.networkTimeMs > 0
+                            ? networkResponse.networkTimeMs
+                            : SystemClock.elapsedRealtime() - startTimeMs,
+                    /* timedOut= */ false);
+
+            // Prefetches only store the raw response, without parsing or delivering it.
+            if (request.isPrefetch()) {
+                Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(networkResponse);
+                if (entry != null) {
+                    mCache.put(request.getCacheKey(), entry);
+                    request.addMarker("network-cache-written");
+                }
+                request.finish("network-prefetch-complete");
+                return;
+            }
 
             // If the server returned 304 AND we delivered a response already,
             // we're done -- don't deliver a second identical response.
@@ -156,19 +292,41 @@ public class NetworkDispatcher extends Thread {
             request.notifyListenerResponseReceived(response);
         } catch (VolleyError volleyError) {
             volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+            // Only timeouts and server responses say something about the network's latency.
+            if (volleyError instanceof TimeoutError || volleyError.networkResponse != null) {
+                onNetworkResult(
+                        request,
+                        volleyError.getNetworkTimeMs(),
+                        volleyError instanceof TimeoutError);
+            }
             parseAndDeliverNetworkError(request, volleyError);
             request.notifyListenerResponseNotUsable();
         } catch (Exception e) {
             VolleyLog.e(e, "Unhandled exception %s", e.toString());
             VolleyError volleyError = new VolleyError(e);
             volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-            mDelivery.postError(request, volleyError);
+            postError(request, volleyError);
             request.notifyListenerResponseNotUsable();
         }
     }
 
+    private void onNetworkResult(Request<?> request, long latencyMs, boolean timedOut) {
+        if (mPool != null) {
+            mPool.onNetworkResult(request, latencyMs, timedOut);
+        }
+    }
+
     private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
         error = request.parseNetworkError(error);
+        postError(request, error);
+    }
+
+    /** Posts an error, unless the request is a prefetch, which is just finished instead. */
+    private void postError(Request<?> request, VolleyError error) {
+        if (request.isPrefetch()) {
+            request.finish("network-prefetch-error");
+            return;
+        }
         mDelivery.postError(request, error);
     }
 }
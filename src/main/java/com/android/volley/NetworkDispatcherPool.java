@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The set of {@link NetworkDispatcher} threads servicing a {@link RequestQueue}'s network queue.
+ *
+ * <p>The pool always runs at least {@code minSize} dispatchers. When requests are queued and no
+ * dispatcher is idle to take them, or a request has waited on the queue for longer than {@link
+ * #MAX_QUEUE_WAIT_MS}, another dispatcher is started, up to {@code maxSize}. Dispatchers above the
+ * minimum exit once they have been idle for the keep-alive period. If {@code minSize == maxSize}
+ * the pool is fixed and its dispatchers never exit on their own.
+ *
+ * <p>If the pool is given an executor, dispatchers run as tasks of that executor instead of
+ * starting their own threads.
+ */
+class NetworkDispatcherPool implements NetworkDispatcher.Pool {
+
+    /** A request which waited longer than this on the queue causes the pool to grow. */
+    private static final long MAX_QUEUE_WAIT_MS = 100;
+
+    private final NetworkQueue mQueue;
+    private final Network mNetwork;
+    private final Cache mCache;
+    private final ResponseDelivery mDelivery;
+    private final int mMinSize;
+    private final int mMaxSize;
+    private final long mKeepAliveMs;
+
+    /** Executor to run dispatchers on, or null if they run on their own threads. */
+    @Nullable private final ExecutorService mExecutor;
+
+    /** Number of dispatchers currently blocked waiting for a request. */
+    private final AtomicInteger mIdleCount = new AtomicInteger();
+
+    @GuardedBy("mDispatchers")
+    private final List<NetworkDispatcher> mDispatchers = new ArrayList<>();
+
+    /** Tasks of dispatchers running on {@link #mExecutor}. */
+    @GuardedBy("mDispatchers")
+    private final Map<NetworkDispatcher, Future<?>> mTasks = new HashMap<>();
+
+    @GuardedBy("mDispatchers")
+    private boolean mStarted = false;
+
+    /**
+     * @param queue Queue of requests the dispatchers take from
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param minSize Number of dispatchers which are always running
+     * @param maxSize Maximum number of dispatchers to run at once
+     * @param keepAliveMs Time a dispatcher above {@code minSize} may be idle before exiting
+     * @param executor Executor to run dispatchers on, or null to start a thread for each
+     */
+    NetworkDispatcherPool(
+            NetworkQueue queue,
+            Network network,
+            Cache cache,
+            ResponseDelivery delivery,
+            int minSize,
+            int maxSize,
+            long keepAliveMs,
+            @Nullable ExecutorService executor) {
+        if (minSize < 0 || maxSize < minSize) {
+            throw new IllegalArgumentException(
+                    "Invalid network dispatcher pool bounds: min=" + minSize + ", max=" + maxSize);
+        }
+        if (maxSize > minSize && keepAliveMs <= 0) {
+            throw new IllegalArgumentException("keepAliveMs must be positive for elastic pools");
+        }
+        mQueue = queue;
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mKeepAliveMs = keepAliveMs;
+        mExecutor = executor;
+    }
+
+    /** Starts the minimum number of dispatchers. */
+    void start() {
+        synchronized (mDispatchers) {
+            mStarted = true;
+            while (mDispatchers.size() < mMinSize) {
+                startDispatcherLocked();
+            }
+        }
+    }
+
+    /** Stops all dispatchers. Requests which are still queued are not processed. */
+    void stop() {
+        synchronized (mDispatchers) {
+            mStarted = false;
+            for (NetworkDispatcher dispatcher : mDispatchers) {
+                dispatcher.quit();
+            }
+            // The dispatchers' tasks don't run on the threads quit() interrupts.
+            for (Future<?> task : mTasks.values()) {
+                task.cancel(/* mayInterruptIfRunning= */ true);
+            }
+            mDispatchers.clear();
+            mTasks.clear();
+        }
+    }
+
+    /** Returns the number of dispatchers which are currently running. */
+    int size() {
+        synchronized (mDispatchers) {
+            return mDispatchers.size();
+        }
+    }
+
+    /** Called when a request has been added to the queue. */
+    void onRequestQueued() {
+        if (mMaxSize == mMinSize) {
+            return;
+        }
+        // Only grow if there is more work waiting than there are dispatchers ready to take it, and
+        // some of it may actually be dispatched now rather than waiting for a busy host.
+        if (mQueue.size() > mIdleCount.get() && mQueue.peek() != null) {
+            maybeGrow();
+        }
+    }
+
+    @Override
+    public void onDispatcherIdle() {
+        mIdleCount.incrementAndGet();
+    }
+
+    @Override
+    public void onDispatcherBusy(@Nullable Request<?> request) {
+        mIdleCount.decrementAndGet();
+        if (request == null || mMaxSize == mMinSize) {
+            return;
+        }
+        long queueWaitMs = SystemClock.elapsedRealtime() - request.getQueuedTimeMs();
+        if (queueWaitMs > MAX_QUEUE_WAIT_MS && mQueue.peek() != null) {
+            request.addMarker("network-queue-wait-grow [waited=" + queueWaitMs + "]");
+            maybeGrow();
+        }
+    }
+
+    @Override
+    public boolean shouldRetire(NetworkDispatcher dispatcher) {
+        synchronized (mDispatchers) {
+            if (mDispatchers.size() <= mMinSize) {
+                return false;
+            }
+            // Never leave a dispatchable request behind; onRequestQueued() will not grow the pool
+            // again for requests which were added while this dispatcher was still counted as idle.
+            // Requests held back by host or rate limits don't keep the pool large, but the last
+            // dispatcher stays to take them once their limit allows.
+            if (mQueue.peek() != null || (mDispatchers.size() == 1 && !mQueue.isEmpty())) {
+                return false;
+            }
+            mTasks.remove(dispatcher);
+            return mDispatchers.remove(dispatcher);
+        }
+    }
+
+    @Override
+    public void onRequestProcessed(Request<?> request) {
+        mQueue.release(request);
+    }
+
+    @Override
+    public void onNetworkResult(Request<?> request, long latencyMs, boolean timedOut) {
+        mQueue.onNetworkResult(request, latencyMs, timedOut);
+    }
+
+    private void maybeGrow() {
+        synchronized (mDispatchers) {
+            if (mStarted && mDispatchers.size() < mMaxSize) {
+                startDispatcherLocked();
+            }
+        }
+    }
+
+    @GuardedBy("mDispatchers")
+    private void startDispatcherLocked() {
+        // Dispatchers of fixed-size pools never time out waiting for a request.
+        long keepAliveMs = mMaxSize == mMinSize ? 0 : mKeepAliveMs;
+        final NetworkDispatcher dispatcher =
+                new NetworkDispatcher(
+                        mQueue, mNetwork, mCache, mDelivery, keepAliveMs, /* pool= */ this);
+        mDispatchers.add(dispatcher);
+        if (mExecutor == null) {
+            dispatcher.start();
+            return;
+        }
+        Future<?> task =
+                mExecutor.submit(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                dispatcher.processRequests(/* isTask= */ true);
+                            }
+                        });
+        mTasks.put(dispatcher, task);
+    }
+}
@@ -0,0 +1,772 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of requests waiting for a {@link NetworkDispatcher}.
+ *
+ * <p>Requests are kept in one priority queue per host, where the host is taken from {@link
+ * Request#getUrl()}. A request which has been taken from the queue counts as in flight for its host
+ * until {@link #release(Request)} is called. If a host has as many requests in flight as its limit
+ * allows, its queued requests are skipped until one of them is released. Likewise, a host with a
+ * rate limit whose {@link TokenBucket} is empty is skipped until a token has been added, and
+ * dispatchers wait for that time rather than taking its requests.
+ *
+ * <p>Without any per-host limits, requests are taken in the same order as a {@link
+ * java.util.concurrent.PriorityBlockingQueue} ordered by the {@link DispatchOrder} would return
+ * them. Once a limit has been set, the highest (effective) {@link Request.Priority} among all hosts
+ * is still taken first, but hosts with requests of equal priority take turns, so that one busy host
+ * can't delay every other host.
+ *
+ * <p>If an immediate lane has been set, requests of {@link Request.Priority#IMMEDIATE} priority
+ * bypass this queue and are added to that lane instead.
+ */
+class NetworkQueue extends AbstractQueue<Request<?>> implements BlockingQueue<Request<?>> {
+
+    /** Limit used for hosts without an explicit limit, until one is set. */
+    private static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /** Receives callbacks whenever a request has been added or taken, without the lock held. */
+    interface Listener {
+        void onRequestQueued();
+
+        void onRequestTaken();
+    }
+
+    /** Queued and in-flight requests for a single host. */
+    private static class HostQueue {
+        final String host;
+        final PriorityQueue<Request<?>> queued;
+        int inFlight = 0;
+
+        HostQueue(String host, DispatchOrder order) {
+            this.host = host;
+            queued = new PriorityQueue<>(11, order);
+        }
+    }
+
+    private final DispatchOrder mOrder;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** Signalled when a request may have become available to take. */
+    private final Condition mAvailable = mLock.newCondition();
+
+    /** Queues for all hosts with queued or in-flight requests. */
+    @GuardedBy("mLock")
+    private final Map<String, HostQueue> mHostQueues = new HashMap<>();
+
+    /** Hosts with queued requests, in the order in which they get their next turn. */
+    @GuardedBy("mLock")
+    private final ArrayDeque<HostQueue> mRotation = new ArrayDeque<>();
+
+    /** Requests which have been taken but not yet released, mapped to their host's queue. */
+    @GuardedBy("mLock")
+    private final Map<Request<?>, HostQueue> mInFlight = new IdentityHashMap<>();
+
+    @GuardedBy("mLock")
+    private final Map<String, Integer> mHostLimits = new HashMap<>();
+
+    @GuardedBy("mLock")
+    private int mDefaultHostLimit = UNLIMITED;
+
+    /** Rate limits of hosts with their own limit, as prototypes for {@link #mBuckets}. */
+    @GuardedBy("mLock")
+    private final Map<String, TokenBucket> mHostRates = new HashMap<>();
+
+    /** Rate limit for hosts without their own limit, or null if they are not rate limited. */
+    @GuardedBy("mLock")
+    @Nullable
+    private TokenBucket mDefaultRate = null;
+
+    /** Token buckets of rate-limited hosts. Kept while the host is idle until they are full. */
+    @GuardedBy("mLock")
+    private final Map<String, TokenBucket> mBuckets = new HashMap<>();
+
+    /** Whether hosts take turns; enabled once any limit is set. */
+    @GuardedBy("mLock")
+    private boolean mRoundRobin = false;
+
+    @GuardedBy("mLock")
+    private int mCount = 0;
+
+    /** Number of queued requests above which prefetches are dropped. */
+    private volatile int mPrefetchLimit = UNLIMITED;
+
+    /** Limits the number of requests in flight across all hosts, if set. */
+    @Nullable private volatile AdaptiveConcurrencyLimit mConcurrencyLimit;
+
+    /** Queue which IMMEDIATE requests are diverted to, if any. */
+    @Nullable private volatile NetworkQueue mImmediateLane;
+
+    /** Total time requests taken from this queue spent waiting in it. */
+    @GuardedBy("mLock")
+    private long mTotalWaitMs = 0;
+
+    /** Number of requests taken from this queue. */
+    @GuardedBy("mLock")
+    private long mTakenCount = 0;
+
+    @Nullable private volatile Listener mListener;
+
+    NetworkQueue() {
+        this(new DispatchOrder());
+    }
+
+    NetworkQueue(DispatchOrder order) {
+        mOrder = order;
+    }
+
+    void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the number of queued requests above which the queue is considered under pressure. A
+     * prefetch added while at least this many requests are queued is dropped, and so are all queued
+     * prefetches once another request takes the queue above this size.
+     */
+    void setPrefetchLimit(int maxQueued) {
+        mPrefetchLimit = maxQueued;
+    }
+
+    /** Limits the number of requests in flight across all hosts to the given adaptive limit. */
+    void setConcurrencyLimit(@Nullable AdaptiveConcurrencyLimit concurrencyLimit) {
+        mLock.lock();
+        try {
+            mConcurrencyLimit = concurrencyLimit;
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Adjusts the concurrency limit, if any, to a request which has been performed over the
+     * network.
+     *
+     * <p>Latencies are only compared among requests of the same type to the same host, since they
+     * may differ widely between, say, small API calls and image downloads.
+     *
+     * @param request The request which was performed
+     * @param latencyMs Time the request spent on the network
+     * @param timedOut Whether the request failed with a timeout
+     */
+    void onNetworkResult(Request<?> request, long latencyMs, boolean timedOut) {
+        AdaptiveConcurrencyLimit concurrencyLimit = mConcurrencyLimit;
+        if (concurrencyLimit == null) {
+            return;
+        }
+        String requestClass = hostOf(request) + " " + request.getClass().getName();
+        if (concurrencyLimit.onSample(requestClass, latencyMs, timedOut, inFlightCount())) {
+            // The new limit may let waiting dispatchers take a request.
+            mLock.lock();
+            try {
+                mAvailable.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Diverts requests of {@link Request.Priority#IMMEDIATE} priority to the given queue, so that
+     * they can be taken by dispatchers reserved for them. Requests in that queue are not subject to
+     * the limits of this one.
+     */
+    void setImmediateLane(@Nullable NetworkQueue immediateLane) {
+        mImmediateLane = immediateLane;
+    }
+
+    /** Returns the total time requests taken from this queue have spent waiting in it. */
+    long getTotalWaitTimeMs() {
+        mLock.lock();
+        try {
+            return mTotalWaitMs;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of requests which have been taken from this queue. */
+    long getTakenCount() {
+        mLock.lock();
+        try {
+            return mTakenCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Sets the number of requests which may be in flight at once for hosts without own limit. */
+    void setDefaultHostLimit(int maxInFlight) {
+        checkLimit(maxInFlight);
+        mLock.lock();
+        try {
+            mDefaultHostLimit = maxInFlight;
+            mRoundRobin = true;
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Sets the number of requests which may be in flight at once for the given host. */
+    void setHostLimit(String host, int maxInFlight) {
+        checkLimit(maxInFlight);
+        mLock.lock();
+        try {
+            mHostLimits.put(host, maxInFlight);
+            mRoundRobin = true;
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Limits the rate at which requests are dispatched to hosts without own rate limit. Requests to
+     * a host which has used up its burst wait in the queue until it may be dispatched again.
+     */
+    void setDefaultRateLimit(double requestsPerSecond, int burst) {
+        long nowMs = SystemClock.elapsedRealtime();
+        TokenBucket rate = new TokenBucket(requestsPerSecond, burst, nowMs);
+        mLock.lock();
+        try {
+            mDefaultRate = rate;
+            // Let existing buckets pick up the new rate.
+            for (Iterator<String> it = mBuckets.keySet().iterator(); it.hasNext(); ) {
+                if (!mHostRates.containsKey(it.next())) {
+                    it.remove();
+                }
+            }
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Limits the rate at which requests are dispatched to the given host. */
+    void setHostRateLimit(String host, double requestsPerSecond, int burst) {
+        long nowMs = SystemClock.elapsedRealtime();
+        TokenBucket rate = new TokenBucket(requestsPerSecond, burst, nowMs);
+        mLock.lock();
+        try {
+            mHostRates.put(host, rate);
+            mBuckets.remove(host);
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static void checkLimit(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Host limit must be positive: " + maxInFlight);
+        }
+    }
+
+    /**
+     * Marks a request previously returned from this queue as no longer in flight. Has no effect if
+     * the request is not in flight.
+     */
+    void release(Request<?> request) {
+        mLock.lock();
+        try {
+            HostQueue hostQueue = mInFlight.remove(request);
+            if (hostQueue == null) {
+                return;
+            }
+            hostQueue.inFlight--;
+            removeIfUnusedLocked(hostQueue);
+            // With a concurrency limit, any host's request may have been waiting for this one.
+            if (!hostQueue.queued.isEmpty() || (mConcurrencyLimit != null && mCount > 0)) {
+                mAvailable.signal();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of requests which have been taken but not yet released. */
+    int inFlightCount() {
+        mLock.lock();
+        try {
+            return mInFlight.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        NetworkQueue immediateLane = mImmediateLane;
+        if (immediateLane != null
+                && request.getPriority() == Request.Priority.IMMEDIATE
+                && !request.isPrefetch()) {
+            return immediateLane.offer(request);
+        }
+        // Parse the URL outside of the lock.
+        String host = hostOf(request);
+        request.markQueued();
+        boolean added;
+        List<Request<?>> dropped = null;
+        mLock.lock();
+        try {
+            // Prefetches are only worth queueing while the queue isn't under pressure.
+            added = !request.isPrefetch() || mCount < mPrefetchLimit;
+            if (added) {
+                addLocked(host, request);
+                if (!request.isPrefetch() && mCount > mPrefetchLimit) {
+                    dropped = removePrefetchesLocked();
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (!added) {
+            request.finish("network-queue-prefetch-dropped");
+            return true;
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onRequestQueued();
+        }
+        if (dropped != null && !dropped.isEmpty()) {
+            for (Request<?> prefetch : dropped) {
+                prefetch.finish("network-queue-prefetch-dropped");
+            }
+            // Requests waiting for room in a bounded queue may now fit.
+            notifyTaken();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request<?> take() throws InterruptedException {
+        Request<?> request;
+        mLock.lockInterruptibly();
+        try {
+            while ((request = pollLocked()) == null) {
+                long throttleMs = throttleDelayLocked();
+                if (throttleMs > 0) {
+                    mAvailable.await(throttleMs, TimeUnit.MILLISECONDS);
+                } else {
+                    mAvailable.await();
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        notifyTaken();
+        return request;
+    }
+
+    @Override
+    public Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        Request<?> request;
+        mLock.lockInterruptibly();
+        try {
+            while ((request = pollLocked()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                long throttleMs = throttleDelayLocked();
+                long waitNanos =
+                        throttleMs > 0
+                                ? Math.min(nanos, TimeUnit.MILLISECONDS.toNanos(throttleMs))
+                                : nanos;
+                nanos -= waitNanos - mAvailable.awaitNanos(waitNanos);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        notifyTaken();
+        return request;
+    }
+
+    @Override
+    public Request<?> poll() {
+        Request<?> request;
+        mLock.lock();
+        try {
+            request = pollLocked();
+        } finally {
+            mLock.unlock();
+        }
+        if (request != null) {
+            notifyTaken();
+        }
+        return request;
+    }
+
+    @Override
+    public Request<?> peek() {
+        mLock.lock();
+        try {
+            HostQueue next = selectLocked(SystemClock.elapsedRealtime());
+            return next != null ? next.queued.peek() : null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of queued requests, including those of hosts which are at capacity. */
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        mLock.lock();
+        try {
+            for (HostQueue hostQueue : mRotation) {
+                if (hostQueue.queued.remove(o)) {
+                    mCount--;
+                    if (hostQueue.queued.isEmpty()) {
+                        mRotation.remove(hostQueue);
+                        removeIfUnusedLocked(hostQueue);
+                    }
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        mLock.lock();
+        try {
+            for (HostQueue hostQueue : mRotation) {
+                hostQueue.queued.clear();
+                removeIfUnusedLocked(hostQueue);
+            }
+            mRotation.clear();
+            mCount = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns a snapshot of all queued requests, in no particular order. */
+    @Override
+    public Iterator<Request<?>> iterator() {
+        final List<Request<?>> snapshot = new ArrayList<>();
+        mLock.lock();
+        try {
+            for (HostQueue hostQueue : mRotation) {
+                snapshot.addAll(hostQueue.queued);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        final Iterator<Request<?>> delegate = snapshot.iterator();
+        return new Iterator<Request<?>>() {
+            private Request<?> mLast;
+
+            @Override
+            public boolean hasNext() {
+                return delegate.hasNext();
+            }
+
+            @Override
+            public Request<?> next() {
+                mLast = delegate.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                NetworkQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int drained = 0;
+        mLock.lock();
+        try {
+            Request<?> request;
+            while (drained < maxElements && (request = pollLocked()) != null) {
+                c.add(request);
+                drained++;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (drained > 0) {
+            notifyTaken();
+        }
+        return drained;
+    }
+
+    private void notifyTaken() {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onRequestTaken();
+        }
+    }
+
+    /** Takes the next request which may be dispatched, marking it in flight. */
+    @GuardedBy("mLock")
+    @Nullable
+    private Request<?> pollLocked() {
+        long nowMs = SystemClock.elapsedRealtime();
+        HostQueue hostQueue = selectLocked(nowMs);
+        if (hostQueue == null) {
+            return null;
+        }
+        TokenBucket bucket = bucketLocked(hostQueue.host, nowMs);
+        if (bucket != null) {
+            bucket.take(nowMs);
+        }
+        Request<?> request = hostQueue.queued.poll();
+        mCount--;
+        // The host's turn is over; it goes to the back of the line.
+        mRotation.remove(hostQueue);
+        if (!hostQueue.queued.isEmpty()) {
+            mRotation.addLast(hostQueue);
+        }
+        hostQueue.inFlight++;
+        mInFlight.put(request, hostQueue);
+        mTotalWaitMs += nowMs - request.getQueuedTimeMs();
+        mTakenCount++;
+        mOrder.onTaken(request, "network");
+        return request;
+    }
+
+    @GuardedBy("mLock")
+    private void addLocked(String host, Request<?> request) {
+        HostQueue hostQueue = mHostQueues.get(host);
+        if (hostQueue == null) {
+            hostQueue = new HostQueue(host, mOrder);
+            mHostQueues.put(host, hostQueue);
+        }
+        if (hostQueue.queued.isEmpty()) {
+            mRotation.addLast(hostQueue);
+        }
+        hostQueue.queued.add(request);
+        mCount++;
+        mAvailable.signal();
+    }
+
+    /** Removes all queued prefetches, returning them. */
+    @GuardedBy("mLock")
+    private List<Request<?>> removePrefetchesLocked() {
+        List<Request<?>> removed = new ArrayList<>();
+        for (Iterator<HostQueue> hosts = mRotation.iterator(); hosts.hasNext(); ) {
+            HostQueue hostQueue = hosts.next();
+            for (Iterator<Request<?>> it = hostQueue.queued.iterator(); it.hasNext(); ) {
+                Request<?> request = it.next();
+                if (request.isPrefetch()) {
+                    it.remove();
+                    removed.add(request);
+                }
+            }
+            if (hostQueue.queued.isEmpty()) {
+                hosts.remove();
+                removeIfUnusedLocked(hostQueue);
+            }
+        }
+        mCount -= removed.size();
+        return removed;
+    }
+
+    /** Returns the host whose head request should be dispatched next, if any. */
+    @GuardedBy("mLock")
+    @Nullable
+    private HostQueue selectLocked(long nowMs) {
+        AdaptiveConcurrencyLimit concurrencyLimit = mConcurrencyLimit;
+        if (concurrencyLimit != null && mInFlight.size() >= concurrencyLimit.getLimit()) {
+            return null;
+        }
+        HostQueue best = null;
+        for (HostQueue hostQueue : mRotation) {
+            if (hostQueue.inFlight >= limitLocked(hostQueue.host)) {
+                continue;
+            }
+            TokenBucket bucket = bucketLocked(hostQueue.host, nowMs);
+            if (bucket != null && bucket.msUntilToken(nowMs) > 0) {
+                continue;
+            }
+            if (best == null
+                    || isBetterLocked(hostQueue.queued.peek(), best.queued.peek(), nowMs)) {
+                best = hostQueue;
+            }
+        }
+        return best;
+    }
+
+    /** Whether {@code candidate} should be dispatched before {@code current}. */
+    @GuardedBy("mLock")
+    private boolean isBetterLocked(Request<?> candidate, Request<?> current, long nowMs) {
+        if (mRoundRobin) {
+            int byPrefetch = mOrder.comparePrefetch(candidate, current);
+            if (byPrefetch != 0) {
+                return byPrefetch < 0;
+            }
+            int byDeadline = mOrder.compareDeadlines(candidate, current);
+            if (byDeadline != 0) {
+                return byDeadline < 0;
+            }
+            // Earlier hosts in the rotation win ties, so only a strictly higher priority counts.
+            return mOrder.getEffectivePriority(candidate, nowMs).ordinal()
+                    > mOrder.getEffectivePriority(current, nowMs).ordinal();
+        }
+        return mOrder.compare(candidate, current) < 0;
+    }
+
+    /**
+     * Returns how long until a host which is only held back by its rate limit may be dispatched
+     * again, or 0 if there is no such host.
+     */
+    @GuardedBy("mLock")
+    private long throttleDelayLocked() {
+        if (mBuckets.isEmpty()) {
+            return 0;
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        long delayMs = 0;
+        for (HostQueue hostQueue : mRotation) {
+            if (hostQueue.inFlight >= limitLocked(hostQueue.host)) {
+                continue;
+            }
+            TokenBucket bucket = mBuckets.get(hostQueue.host);
+            if (bucket != null) {
+                long hostDelayMs = bucket.msUntilToken(nowMs);
+                if (hostDelayMs > 0 && (delayMs == 0 || hostDelayMs < delayMs)) {
+                    delayMs = hostDelayMs;
+                }
+            }
+        }
+        return delayMs;
+    }
+
+    /** Returns the token bucket of the given host, or null if it isn't rate limited. */
+    @GuardedBy("mLock")
+    @Nullable
+    private TokenBucket bucketLocked(String host, long nowMs) {
+        TokenBucket bucket = mBuckets.get(host);
+        if (bucket != null) {
+            return bucket;
+        }
+        TokenBucket rate = mHostRates.get(host);
+        if (rate == null) {
+            rate = mDefaultRate;
+        }
+        if (rate == null) {
+            return null;
+        }
+        // Forget buckets of idle hosts which have refilled, since a new bucket is equivalent.
+        for (Iterator<Map.Entry<String, TokenBucket>> it = mBuckets.entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<String, TokenBucket> entry = it.next();
+            if (!mHostQueues.containsKey(entry.getKey()) && entry.getValue().isFull(nowMs)) {
+                it.remove();
+            }
+        }
+        bucket = rate.copy(nowMs);
+        mBuckets.put(host, bucket);
+        return bucket;
+    }
+
+    @GuardedBy("mLock")
+    private int limitLocked(String host) {
+        Integer limit = mHostLimits.get(host);
+        return limit != null ? limit : mDefaultHostLimit;
+    }
+
+    @GuardedBy("mLock")
+    private void removeIfUnusedLocked(HostQueue hostQueue) {
+        if (hostQueue.inFlight == 0 && hostQueue.queued.isEmpty()) {
+            mHostQueues.remove(hostQueue.host);
+        }
+    }
+
+    /** Returns the host of the request's URL, or the empty string if it has none. */
+    static String hostOf(Request<?> request) {
+        String url = request.getUrl();
+        if (!TextUtils.isEmpty(url)) {
+            String host = Uri.parse(url).getHost();
+            if (host != null) {
+                return host;
+            }
+        }
+        return "";
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.support.annotation.GuardedBy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link HedgingPolicy} which sends a duplicate of a request once it has taken longer than a given
+ * percentile of recent response times from the same host.
+ *
+ * <p>For example, with a percentile of 0.95, roughly one in twenty requests is hedged. Until enough
+ * responses from a host have been observed, a fixed initial delay is used instead.
+ */
+public class PercentileHedgingPolicy implements HedgingPolicy {
+
+    /** Number of recent response times kept per host. */
+    private static final int WINDOW_SIZE = 100;
+
+    /** Number of response times needed before the percentile is used. */
+    private static final int MIN_SAMPLES = 20;
+
+    private final double mPercentile;
+    private final long mInitialDelayMs;
+
+    @GuardedBy("mWindows")
+    private final Map<String, Window> mWindows = new HashMap<>();
+
+    /**
+     * @param percentile Fraction of responses from a host which should arrive before a duplicate is
+     *     sent; must be between 0 and 1
+     * @param initialDelayMs Delay used until enough responses have been observed, or a negative
+     *     value to not hedge until then
+     */
+    public PercentileHedgingPolicy(double percentile, long initialDelayMs) {
+        if (!(percentile > 0 && percentile < 1)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1: " + percentile);
+        }
+        mPercentile = percentile;
+        mInitialDelayMs = initialDelayMs;
+    }
+
+    @Override
+    public long getHedgeDelayMs(Request<?> request) {
+        long[] samples;
+        synchronized (mWindows) {
+            Window window = mWindows.get(NetworkQueue.hostOf(request));
+            if (window == null || window.count < MIN_SAMPLES) {
+                return mInitialDelayMs;
+            }
+            samples = Arrays.copyOf(window.samples, window.count);
+        }
+        Arrays.sort(samples);
+        return samples[(int) Math.ceil(mPercentile * samples.length) - 1];
+    }
+
+    @Override
+    public void onResponseTime(Request<?> request, long responseTimeMs) {
+        String host = NetworkQueue.hostOf(request);
+        synchronized (mWindows) {
+            Window window = mWindows.get(host);
+            if (window == null) {
+                window = new Window();
+                mWindows.put(host, window);
+            }
+            window.samples[window.next] = responseTimeMs;
+            window.next = (window.next + 1) % WINDOW_SIZE;
+            window.count = Math.min(window.count + 1, WINDOW_SIZE);
+        }
+    }
+
+    /** The most recent response times from a host. */
+    private static class Window {
+        final long[] samples = new long[WINDOW_SIZE];
+        int next = 0;
+        int count = 0;
+    }
+}
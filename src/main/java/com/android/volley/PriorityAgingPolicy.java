@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Aging policy for requests waiting in a {@link RequestQueue}.
+ *
+ * <p>Without an aging policy, a request is never dispatched while a request of higher {@link
+ * Request.Priority} is waiting, so a steady stream of higher priority requests can hold back lower
+ * priority ones indefinitely. With an aging policy, each priority is given a head start, and
+ * requests are dispatched in order of the time they were queued minus their head start. A request
+ * which has waited longer than the difference between two head starts is therefore dispatched ahead
+ * of newly queued requests of the higher priority.
+ *
+ * <p>Head starts must not change while requests are queued. See {@link LinearPriorityAgingPolicy}
+ * for a simple implementation.
+ */
+public interface PriorityAgingPolicy {
+
+    /**
+     * Returns the time in milliseconds requests of the given priority are treated as having already
+     * waited when they are queued.
+     */
+    long getHeadStartMs(Request.Priority priority);
+}
@@ -20,6 +20,7 @@ import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.CallSuper;
 import android.support.annotation.GuardedBy;
 import android.support.annotation.Nullable;
@@ -63,6 +64,17 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         void onNoUsableResponseReceived(Request<?> request);
     }
 
+    /** Callback to receive the progress of sending the body of a request. */
+    public interface UploadProgressListener {
+        /**
+         * Called on a worker thread whenever part of the body has been written to the connection.
+         *
+         * @param bytesWritten Number of bytes written so far
+         * @param totalBytes Length of the body, or -1 if unknown
+         */
+        void onUploadProgress(long bytesWritten, long totalBytes);
+    }
+
     /** An event log tracing the lifetime of this request; for debugging. */
     private final MarkerLog mEventLog = MarkerLog.ENABLED ? new MarkerLog() : null;
 
@@ -104,6 +116,16 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     @GuardedBy("mLock")
     private boolean mResponseDelivered = false;
 
+    /** Aborts the transfer in progress when this request is canceled; see {@link #cancel()}. */
+    @Nullable
+    @GuardedBy("mLock")
+    private Runnable mCancelAction;
+
+    /** Receives the progress of sending the body; see {@link #setUploadProgressListener}. */
+    @Nullable
+    @GuardedBy("mLock")
+    private UploadProgressListener mUploadProgressListener;
+
     /** Whether the request should be retried in the event of an HTTP 5xx (server) error. */
     private boolean mShouldRetryServerErrors = false;
 
@@ -124,6 +146,18 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     @GuardedBy("mLock")
     private NetworkRequestCompleteListener mRequestCompleteListener;
 
+    /** Time at which this request was last placed on a dispatch queue; see {@link #markQueued}. */
+    private volatile long mQueuedTimeMs;
+
+    /** Time after which this request is no longer useful; see {@link #setDeadline(long)}. */
+    private long mDeadlineMs = Long.MAX_VALUE;
+
+    /** When to send a duplicate of this request; see {@link #setHedgingPolicy}. */
+    @Nullable private HedgingPolicy mHedgingPolicy;
+
+    /** Whether this request only warms the cache; see {@link RequestQueue#prefetch(Request)}. */
+    private boolean mPrefetch = false;
+
     /**
      * Creates a new request with the given URL and error listener. Note that the normal response
      * listener is not provided here as delivery of responses is provided by subclasses, who have a
@@ -163,7 +197,11 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * @return This Request object to allow for chaining.
      */
     public Request<?> setTag(Object tag) {
+        Object oldTag = mTag;
         mTag = tag;
+        if (mRequestQueue != null && oldTag != tag) {
+            mRequestQueue.onTagChanged(this, oldTag);
+        }
         return this;
     }
 
@@ -280,6 +318,79 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mSequence;
     }
 
+    /** Records that this request has just been placed on a dispatch queue. */
+    /* package */ void markQueued() {
+        mQueuedTimeMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns the {@link SystemClock#elapsedRealtime()} at which this request was last placed on a
+     * dispatch queue, or 0 if it never was.
+     */
+    /* package */ long getQueuedTimeMs() {
+        return mQueuedTimeMs;
+    }
+
+    /**
+     * Sets the time after which a response to this request is no longer useful, as a {@link
+     * SystemClock#elapsedRealtime()} timestamp. This covers the time spent waiting in the request
+     * queue as well as all network attempts.
+     *
+     * <p>A request whose deadline has passed before it is sent to the network fails with a {@link
+     * DeadlineExceededError}, and a failed attempt is not retried once the deadline has passed. A
+     * network attempt which is already in progress is not interrupted.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeadline(long deadlineMs) {
+        mDeadlineMs = deadlineMs;
+        return this;
+    }
+
+    /**
+     * Returns the deadline set with {@link #setDeadline(long)}, or {@link Long#MAX_VALUE} if there
+     * is none.
+     */
+    public long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    /** Returns true if this request has a deadline and it has passed. */
+    public boolean hasDeadlinePassed() {
+        return mDeadlineMs != Long.MAX_VALUE && SystemClock.elapsedRealtime() >= mDeadlineMs;
+    }
+
+    /**
+     * Sets the policy deciding when a duplicate of this request is sent if no response has arrived
+     * yet. The first successful response is used and the other attempt is abandoned. Only GET and
+     * HEAD requests are hedged, and only by a {@link com.android.volley.toolbox.HedgingNetwork}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setHedgingPolicy(@Nullable HedgingPolicy hedgingPolicy) {
+        mHedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    /** Returns the policy set with {@link #setHedgingPolicy}, or null if there is none. */
+    @Nullable
+    public HedgingPolicy getHedgingPolicy() {
+        return mHedgingPolicy;
+    }
+
+    /** Marks this request as a prefetch. Used by {@link RequestQueue#prefetch(Request)}. */
+    /* package */ void markPrefetch() {
+        mPrefetch = true;
+    }
+
+    /**
+     * Returns true if this request was added with {@link RequestQueue#prefetch(Request)}, and so
+     * only stores its response in the cache.
+     */
+    public boolean isPrefetch() {
+        return mPrefetch;
+    }
+
     /** Returns the URL of this request. */
     public String getUrl() {
         return mUrl;
@@ -331,12 +442,42 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * </ul>
      *
      * <p>There are no guarantees if both of these conditions aren't met.
+     *
+     * <p>A transfer which is already in progress is aborted by the action set with {@link
+     * #setCancelAction(Runnable)}, if any.
      */
     @CallSuper
     public void cancel() {
+        Runnable cancelAction;
         synchronized (mLock) {
             mCanceled = true;
             mErrorListener = null;
+            mUploadProgressListener = null;
+            cancelAction = mCancelAction;
+            mCancelAction = null;
+        }
+        if (cancelAction != null) {
+            cancelAction.run();
+        }
+    }
+
+    /**
+     * Sets the action which aborts the transfer of this request in progress once it is canceled.
+     * Used by HTTP stacks, so that a canceled request stops using the network and frees its
+     * dispatcher. The action is run by {@link #cancel()} on the caller's thread, so it must not
+     * block. If this request has already been canceled, the action is run right away.
+     *
+     * @param cancelAction The action, or null to clear it
+     */
+    public void setCancelAction(@Nullable Runnable cancelAction) {
+        synchronized (mLock) {
+            if (!mCanceled) {
+                mCancelAction = cancelAction;
+                return;
+            }
+        }
+        if (cancelAction != null) {
+            cancelAction.run();
         }
     }
 
@@ -468,6 +609,42 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return null;
     }
 
+    /**
+     * Returns a writer which streams the body of this request to the connection, or null to send
+     * {@link #getBody()} instead, which is the default.
+     *
+     * <p>Override this method for large bodies, such as file uploads, which shouldn't be held in
+     * memory as a whole. It is supported by {@link com.android.volley.toolbox.HurlStack} and {@link
+     * com.android.volley.toolbox.HttpClientStack}. {@code HurlStack} streams such bodies, so
+     * HttpURLConnection can't answer authentication challenges or follow 307/308 redirects for
+     * them.
+     *
+     * @throws AuthFailureError in the event of auth failure
+     */
+    @Nullable
+    public BodyWriter getBodyWriter() throws AuthFailureError {
+        return null;
+    }
+
+    /**
+     * Sets the listener to receive the progress of sending the body of this request.
+     *
+     * @param listener The listener, or null to clear it
+     */
+    public void setUploadProgressListener(@Nullable UploadProgressListener listener) {
+        synchronized (mLock) {
+            mUploadProgressListener = listener;
+        }
+    }
+
+    /** Returns the listener set with {@link #setUploadProgressListener}, if any. */
+    @Nullable
+    public UploadProgressListener getUploadProgressListener() {
+        synchronized (mLock) {
+            return mUploadProgressListener;
+        }
+    }
+
     /** Converts <code>params</code> into an application/x-www-form-urlencoded encoded string. */
     private byte[] encodeParameters(Map<String, String> params, String paramsEncoding) {
         StringBuilder encodedParams = new StringBuilder();
@@ -18,10 +18,18 @@ package com.android.volley;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -43,6 +51,41 @@ public class RequestQueue {
         void onRequestFinished(Request<T> request);
     }
 
+    /** What to do with a request which is added while the queue it would enter is full. */
+    public enum OverflowPolicy {
+        /** Fail the new request with a {@link QueueFullError}. */
+        REJECT,
+
+        /**
+         * Fail the queued request which would be dispatched last with a {@link QueueFullError} to
+         * make room for the new request, or the new request if it would be dispatched later still.
+         */
+        DROP_LOWEST_PRIORITY,
+
+        /**
+         * Block the thread calling {@link #add(Request)} until there is room. Use with care when
+         * adding requests from the main thread.
+         */
+        BLOCK
+    }
+
+    /**
+     * Callback interface for changes of the limit set with {@link #setAdaptiveConcurrencyLimit}.
+     */
+    public interface ConcurrencyLimitListener {
+        /** Called with the new limit whenever it has changed, on the thread which changed it. */
+        void onConcurrencyLimitChanged(int limit);
+    }
+
+    /** The lanes of the network queue; see {@link #setImmediateLaneSize(int)}. */
+    public enum NetworkLane {
+        /** The lane taken by the regular network dispatchers. */
+        DEFAULT,
+
+        /** The lane of {@link Request.Priority#IMMEDIATE} requests, if it has been enabled. */
+        IMMEDIATE
+    }
+
     /** Used for generating monotonically-increasing sequence numbers for requests. */
     private final AtomicInteger mSequenceGenerator = new AtomicInteger();
 
@@ -50,17 +93,52 @@ public class RequestQueue {
      * The set of all requests currently being processed by this RequestQueue. A Request will be in
      * this set if it is waiting in any queue or currently being processed by any dispatcher.
      */
-    private final Set<Request<?>> mCurrentRequests = new HashSet<>();
+    private final Set<Request<?>> mCurrentRequests =
+            Collections.newSetFromMap(new ConcurrentHashMap<Request<?>, Boolean>());
+
+    /** The tagged requests in {@link #mCurrentRequests}, by tag. */
+    private final ConcurrentMap<TagKey, TagBucket> mRequestsByTag = new ConcurrentHashMap<>();
+
+    /** Collapses identical uncacheable requests, if enabled. */
+    private final SingleFlightRequestManager mSingleFlightRequestManager =
+            new SingleFlightRequestManager(this);
+
+    /** The order in which requests are taken from the cache and network queues. */
+    private final DispatchOrder mDispatchOrder = new DispatchOrder();
 
     /** The cache triage queue. */
-    private final PriorityBlockingQueue<Request<?>> mCacheQueue = new PriorityBlockingQueue<>();
+    private final PriorityBlockingQueue<Request<?>> mCacheQueue =
+            new PriorityBlockingQueue<Request<?>>(11, mDispatchOrder) {
+                @Override
+                public Request<?> take() throws InterruptedException {
+                    Request<?> request = super.take();
+                    mDispatchOrder.onTaken(request, "cache");
+                    mAdmissionController.onDequeued();
+                    return request;
+                }
+            };
 
     /** The queue of requests that are actually going out to the network. */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue = new PriorityBlockingQueue<>();
+    private final NetworkQueue mNetworkQueue = new NetworkQueue(mDispatchOrder);
+
+    /** The queue of IMMEDIATE requests, if they have network dispatchers of their own. */
+    private final NetworkQueue mImmediateNetworkQueue = new NetworkQueue(mDispatchOrder);
+
+    /** Maximum number of requests in the cache queue when a request is added. */
+    private volatile int mMaxCacheQueueSize = Integer.MAX_VALUE;
+
+    /** Maximum number of requests in the network queue when a request is added. */
+    private volatile int mMaxNetworkQueueSize = Integer.MAX_VALUE;
 
     /** Number of network request dispatcher threads to start. */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /** Number of cache dispatcher threads to start. */
+    private static final int DEFAULT_CACHE_THREAD_POOL_SIZE = 1;
+
+    /** Default time an idle network dispatcher above the minimum pool size is kept alive. */
+    private static final long DEFAULT_NETWORK_KEEP_ALIVE_MS = 30 * 1000;
+
     /** Cache interface for retrieving and storing responses. */
     private final Cache mCache;
 
@@ -71,12 +149,38 @@ public class RequestQueue {
     private final ResponseDelivery mDelivery;
 
     /** The network dispatchers. */
-    private final NetworkDispatcher[] mDispatchers;
+    private final NetworkDispatcherPool mDispatchers;
+
+    /** Executor to run network dispatchers on, or null if they run on their own threads. */
+    @Nullable private final ExecutorService mNetworkExecutor;
+
+    /** Limits the number of requests in flight at once, if set. */
+    @Nullable private volatile AdaptiveConcurrencyLimit mConcurrencyLimit;
+
+    @Nullable private volatile ConcurrencyLimitListener mConcurrencyLimitListener;
 
-    /** The cache dispatcher. */
-    private CacheDispatcher mCacheDispatcher;
+    /** Number of network dispatchers reserved for IMMEDIATE requests. */
+    private volatile int mImmediateLaneSize = 0;
 
-    private final List<RequestFinishedListener> mFinishedListeners = new ArrayList<>();
+    /** The network dispatchers reserved for IMMEDIATE requests, once they have been started. */
+    @Nullable private NetworkDispatcherPool mImmediateDispatchers;
+
+    /** Applies the bounds on the cache and network queues. */
+    private final AdmissionController mAdmissionController;
+
+    /** Number of cache dispatcher threads to start. */
+    private volatile int mCacheThreadPoolSize = DEFAULT_CACHE_THREAD_POOL_SIZE;
+
+    /** The cache dispatchers. */
+    private final List<CacheDispatcher> mCacheDispatchers = new ArrayList<>();
+
+    /** Executor to run cache dispatchers on, or null if they run on their own threads. */
+    @Nullable private final ExecutorService mCacheExecutor;
+
+    /** Tasks of cache dispatchers running on {@link #mCacheExecutor}. */
+    private final List<Future<?>> mCacheTasks = new ArrayList<>();
+
+    private final List<RequestFinishedListener> mFinishedListeners = new CopyOnWriteArrayList<>();
 
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
@@ -88,10 +192,127 @@ public class RequestQueue {
      */
     public RequestQueue(
             Cache cache, Network network, int threadPoolSize, ResponseDelivery delivery) {
+        this(
+                cache,
+                network,
+                threadPoolSize,
+                threadPoolSize,
+                DEFAULT_NETWORK_KEEP_ALIVE_MS,
+                delivery);
+    }
+
+    /**
+     * Creates the worker pool with an elastic set of network dispatchers. Processing will not begin
+     * until {@link #start()} is called.
+     *
+     * <p>{@code minThreadPoolSize} network dispatcher threads are always running. When requests
+     * back up on the network queue, additional threads are started, up to {@code
+     * maxThreadPoolSize}. Threads above the minimum exit after being idle for {@code keepAliveMs}.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param minThreadPoolSize Number of network dispatcher threads which are always running
+     * @param maxThreadPoolSize Maximum number of network dispatcher threads
+     * @param keepAliveMs Time an idle thread above {@code minThreadPoolSize} waits for a request
+     *     before exiting
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(
+            Cache cache,
+            Network network,
+            int minThreadPoolSize,
+            int maxThreadPoolSize,
+            long keepAliveMs,
+            ResponseDelivery delivery) {
+        this(
+                cache,
+                network,
+                minThreadPoolSize,
+                maxThreadPoolSize,
+                keepAliveMs,
+                /* cacheExecutor= */ null,
+                /* networkExecutor= */ null,
+                delivery);
+    }
+
+    /**
+     * Creates a queue whose dispatchers run as tasks of the given executors rather than on threads
+     * of their own. Processing will not begin until {@link #start()} is called.
+     *
+     * <p>Each dispatcher is a long-running task which takes one request at a time from its queue,
+     * so the executors must be able to run as many tasks at once as there are dispatchers: the
+     * number set with {@link #setCacheThreadPoolSize(int)} for {@code cacheExecutor}, and {@code
+     * networkParallelism} for {@code networkExecutor}. An executor which starts a virtual thread
+     * per task allows for a large number of requests in flight at little cost. The executors may be
+     * shared with other queues, and are not shut down by {@link #stop()}.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param cacheExecutor Executor to run cache dispatchers on
+     * @param networkExecutor Executor to run network dispatchers on
+     * @param networkParallelism Number of network requests which may be performed at once
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(
+            Cache cache,
+            Network network,
+            ExecutorService cacheExecutor,
+            ExecutorService networkExecutor,
+            int networkParallelism,
+            ResponseDelivery delivery) {
+        this(
+                cache,
+                network,
+                networkParallelism,
+                networkParallelism,
+                DEFAULT_NETWORK_KEEP_ALIVE_MS,
+                cacheExecutor,
+                networkExecutor,
+                delivery);
+        if (cacheExecutor == null || networkExecutor == null) {
+            throw new IllegalArgumentException("Executors must not be null");
+        }
+    }
+
+    private RequestQueue(
+            Cache cache,
+            Network network,
+            int minThreadPoolSize,
+            int maxThreadPoolSize,
+            long keepAliveMs,
+            @Nullable ExecutorService cacheExecutor,
+            @Nullable ExecutorService networkExecutor,
+            ResponseDelivery delivery) {
         mCache = cache;
         mNetwork = network;
-        mDispatchers = new NetworkDispatcher[threadPoolSize];
         mDelivery = delivery;
+        mCacheExecutor = cacheExecutor;
+        mNetworkExecutor = networkExecutor;
+        mDispatchers =
+                new NetworkDispatcherPool(
+                        mNetworkQueue,
+                        network,
+                        cache,
+                        delivery,
+                        minThreadPoolSize,
+                        maxThreadPoolSize,
+                        keepAliveMs,
+                        networkExecutor);
+        mAdmissionController = new AdmissionController(delivery, mDispatchOrder);
+        // Prefetches give way once more requests are waiting than the dispatchers can take at once.
+        mNetworkQueue.setPrefetchLimit(maxThreadPoolSize);
+        mNetworkQueue.setListener(
+                new NetworkQueue.Listener() {
+                    @Override
+                    public void onRequestQueued() {
+                        mDispatchers.onRequestQueued();
+                    }
+
+                    @Override
+                    public void onRequestTaken() {
+                        mAdmissionController.onDequeued();
+                    }
+                });
     }
 
     /**
@@ -122,29 +343,312 @@ public class RequestQueue {
     /** Starts the dispatchers in this queue. */
     public void start() {
         stop(); // Make sure any currently running dispatchers are stopped.
-        // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
-        mCacheDispatcher.start();
+        // Create the cache dispatchers and start them. They share the cache's initialization and
+        // the requests waiting for a duplicate which is already in flight.
+        WaitingRequestManager waitingRequestManager =
+                new WaitingRequestManager(mNetworkQueue, mDelivery);
+        CacheDispatcher.CacheInitializer cacheInitializer =
+                new CacheDispatcher.CacheInitializer(mCache);
+        for (int i = 0; i < mCacheThreadPoolSize; i++) {
+            final CacheDispatcher cacheDispatcher =
+                    new CacheDispatcher(
+                            mCacheQueue,
+                            mNetworkQueue,
+                            mCache,
+                            mDelivery,
+                            waitingRequestManager,
+                            cacheInitializer);
+            mCacheDispatchers.add(cacheDispatcher);
+            if (mCacheExecutor == null) {
+                cacheDispatcher.start();
+                continue;
+            }
+            mCacheTasks.add(
+                    mCacheExecutor.submit(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    cacheDispatcher.processRequests(/* isTask= */ true);
+                                }
+                            }));
+        }
 
-        // Create network dispatchers (and corresponding threads) up to the pool size.
-        for (int i = 0; i < mDispatchers.length; i++) {
-            NetworkDispatcher networkDispatcher =
-                    new NetworkDispatcher(mNetworkQueue, mNetwork, mCache, mDelivery);
-            mDispatchers[i] = networkDispatcher;
-            networkDispatcher.start();
+        // Create network dispatchers (and corresponding threads) up to the minimum pool size.
+        mDispatchers.start();
+
+        // Reserve dispatchers for IMMEDIATE requests, if requested.
+        int immediateLaneSize = mImmediateLaneSize;
+        if (immediateLaneSize > 0) {
+            mImmediateDispatchers =
+                    new NetworkDispatcherPool(
+                            mImmediateNetworkQueue,
+                            mNetwork,
+                            mCache,
+                            mDelivery,
+                            immediateLaneSize,
+                            immediateLaneSize,
+                            DEFAULT_NETWORK_KEEP_ALIVE_MS,
+                            mNetworkExecutor);
+            mImmediateDispatchers.start();
+            mNetworkQueue.setImmediateLane(mImmediateNetworkQueue);
+        } else {
+            mNetworkQueue.setImmediateLane(null);
+            // Return requests left in the lane while it was enabled to the shared queue.
+            for (Request<?> request : mImmediateNetworkQueue) {
+                if (mImmediateNetworkQueue.remove(request)) {
+                    mNetworkQueue.add(request);
+                }
+            }
         }
     }
 
     /** Stops the cache and network dispatchers. */
     public void stop() {
-        if (mCacheDispatcher != null) {
-            mCacheDispatcher.quit();
+        for (CacheDispatcher cacheDispatcher : mCacheDispatchers) {
+            cacheDispatcher.quit();
         }
-        for (final NetworkDispatcher mDispatcher : mDispatchers) {
-            if (mDispatcher != null) {
-                mDispatcher.quit();
-            }
+        for (Future<?> task : mCacheTasks) {
+            task.cancel(/* mayInterruptIfRunning= */ true);
+        }
+        mCacheDispatchers.clear();
+        mCacheTasks.clear();
+        mDispatchers.stop();
+        if (mImmediateDispatchers != null) {
+            mImmediateDispatchers.stop();
+            mImmediateDispatchers = null;
+        }
+    }
+
+    /**
+     * Sets the number of cache dispatcher threads, which read cached responses and parse them in
+     * parallel. Defaults to 1. Takes effect the next time {@link #start()} is called.
+     *
+     * <p>Cache reads may still be serialized by the {@link Cache} implementation; {@link
+     * com.android.volley.toolbox.DiskBasedCache} reads one entry at a time, but parsing of cached
+     * responses proceeds in parallel.
+     *
+     * @param threadPoolSize Number of cache dispatcher threads; must be positive
+     */
+    public void setCacheThreadPoolSize(int threadPoolSize) {
+        if (threadPoolSize <= 0) {
+            throw new IllegalArgumentException("threadPoolSize must be positive");
+        }
+        mCacheThreadPoolSize = threadPoolSize;
+    }
+
+    /**
+     * Reserves network dispatchers for requests of {@link Request.Priority#IMMEDIATE} priority.
+     * Defaults to 0, in which case IMMEDIATE requests go to the front of the shared network queue
+     * but must still wait for a dispatcher to become free. Takes effect the next time {@link
+     * #start()} is called.
+     *
+     * <p>With a reserved lane, IMMEDIATE requests are queued separately and only taken by the
+     * reserved dispatchers, so they never wait behind slow requests of lower priority. Per-host
+     * limits set with {@link #setMaxRequestsPerHost} and {@link #setMaxRequestRatePerHost} don't
+     * apply to them. When dispatchers run on an executor, it must be able to run the reserved
+     * dispatchers in addition to the regular ones.
+     *
+     * @param threadPoolSize Number of dispatchers to reserve; 0 to not reserve any
+     */
+    public void setImmediateLaneSize(int threadPoolSize) {
+        if (threadPoolSize < 0) {
+            throw new IllegalArgumentException("threadPoolSize must not be negative");
         }
+        mImmediateLaneSize = threadPoolSize;
+    }
+
+    /**
+     * Limits the number of requests performed at once to a limit which adapts to the latency of the
+     * network.
+     *
+     * <p>The lowest recent latency of each type of request to each host is taken as that of an
+     * uncongested network. While requests complete within about twice that latency on average, the
+     * limit slowly grows towards {@code maxLimit}. Slower requests shrink it by 10%, and timeouts
+     * by half, at most once per limit's worth of requests and down to {@code minLimit}. The limit
+     * starts at {@code maxLimit}, and requests above it wait in the network queue. The limit has no
+     * effect above the maximum number of network dispatchers, and doesn't apply to the dispatchers
+     * reserved with {@link #setImmediateLaneSize(int)}.
+     *
+     * @param minLimit Lowest limit; must be positive
+     * @param maxLimit Highest limit; must be at least {@code minLimit}
+     */
+    public void setAdaptiveConcurrencyLimit(int minLimit, int maxLimit) {
+        AdaptiveConcurrencyLimit concurrencyLimit =
+                new AdaptiveConcurrencyLimit(minLimit, maxLimit);
+        concurrencyLimit.setListener(
+                new AdaptiveConcurrencyLimit.Listener() {
+                    @Override
+                    public void onLimitChanged(int limit) {
+                        ConcurrencyLimitListener listener = mConcurrencyLimitListener;
+                        if (listener != null) {
+                            listener.onConcurrencyLimitChanged(limit);
+                        }
+                    }
+                });
+        mConcurrencyLimit = concurrencyLimit;
+        mNetworkQueue.setConcurrencyLimit(concurrencyLimit);
+    }
+
+    /**
+     * Returns the current limit set with {@link #setAdaptiveConcurrencyLimit}, or {@link
+     * Integer#MAX_VALUE} if there is none.
+     */
+    public int getConcurrencyLimit() {
+        AdaptiveConcurrencyLimit concurrencyLimit = mConcurrencyLimit;
+        return concurrencyLimit != null ? concurrencyLimit.getLimit() : Integer.MAX_VALUE;
+    }
+
+    /** Sets the listener for changes of the limit set with {@link #setAdaptiveConcurrencyLimit}. */
+    public void setConcurrencyLimitListener(@Nullable ConcurrencyLimitListener listener) {
+        mConcurrencyLimitListener = listener;
+    }
+
+    /**
+     * Returns the total time requests dispatched from the given lane of the network queue have
+     * spent waiting for a network dispatcher. Together with {@link #getNetworkDispatchCount}, this
+     * gives the average wait over any period.
+     */
+    public long getNetworkQueueWaitTimeMs(NetworkLane lane) {
+        return networkQueueOf(lane).getTotalWaitTimeMs();
+    }
+
+    /** Returns the number of requests which have been dispatched from the given lane. */
+    public long getNetworkDispatchCount(NetworkLane lane) {
+        return networkQueueOf(lane).getTakenCount();
+    }
+
+    private NetworkQueue networkQueueOf(NetworkLane lane) {
+        return lane == NetworkLane.IMMEDIATE ? mImmediateNetworkQueue : mNetworkQueue;
+    }
+
+    /**
+     * Limits the number of requests to any single host which may be performed at once. Further
+     * requests to a host which is at its limit wait in the network queue without occupying a
+     * network dispatcher.
+     *
+     * <p>Once any per-host limit has been set, requests of equal {@link Request.Priority} to
+     * different hosts are dispatched round-robin by host rather than in the order they were added,
+     * so that a host with a large backlog can't delay requests to other hosts. The host of a
+     * request is taken from {@link Request#getUrl()}.
+     *
+     * @param maxRequests Maximum number of requests in flight per host; must be positive
+     */
+    public void setMaxRequestsPerHost(int maxRequests) {
+        mNetworkQueue.setDefaultHostLimit(maxRequests);
+    }
+
+    /**
+     * Limits the number of requests to the given host which may be performed at once, overriding
+     * the limit set with {@link #setMaxRequestsPerHost(int)} for this host.
+     *
+     * @param host Host name as returned by {@link android.net.Uri#getHost()}
+     * @param maxRequests Maximum number of requests in flight to this host; must be positive
+     */
+    public void setMaxRequestsPerHost(String host, int maxRequests) {
+        mNetworkQueue.setHostLimit(host, maxRequests);
+    }
+
+    /**
+     * Limits the rate at which requests are sent to any single host. Each host may be sent up to
+     * {@code burst} requests at once, and after that {@code requestsPerSecond} on average. Further
+     * requests to a host wait in the network queue without occupying a network dispatcher until the
+     * host may be sent another request.
+     *
+     * @param requestsPerSecond Average number of requests per second per host; must be positive
+     * @param burst Maximum number of requests sent in short succession; must be positive
+     */
+    public void setMaxRequestRatePerHost(double requestsPerSecond, int burst) {
+        mNetworkQueue.setDefaultRateLimit(requestsPerSecond, burst);
+    }
+
+    /**
+     * Limits the rate at which requests are sent to the given host, overriding the limit set with
+     * {@link #setMaxRequestRatePerHost(double, int)} for this host.
+     *
+     * @param host Host name as returned by {@link android.net.Uri#getHost()}
+     * @param requestsPerSecond Average number of requests per second; must be positive
+     * @param burst Maximum number of requests sent in short succession; must be positive
+     */
+    public void setMaxRequestRatePerHost(String host, double requestsPerSecond, int burst) {
+        mNetworkQueue.setHostRateLimit(host, requestsPerSecond, burst);
+    }
+
+    /**
+     * Sets the aging policy applied to requests waiting in this queue, or null to always dispatch
+     * requests strictly in order of {@link Request.Priority}. Requests whose effective priority has
+     * been raised by the time they are dispatched are annotated with a "cache-queue-aged" or
+     * "network-queue-aged" marker.
+     *
+     * <p>Must be called before any requests are added.
+     */
+    public void setPriorityAgingPolicy(@Nullable PriorityAgingPolicy agingPolicy) {
+        mDispatchOrder.setAgingPolicy(agingPolicy);
+    }
+
+    /**
+     * Sets whether requests are dispatched in order of their {@link Request#getDeadline()}, with
+     * the earliest deadline first. Requests without a deadline go last. Among requests with the
+     * same deadline, the usual ordering by priority applies.
+     *
+     * <p>Must be called before any requests are added.
+     */
+    public void setEarliestDeadlineFirst(boolean earliestDeadlineFirst) {
+        mDispatchOrder.setEarliestDeadlineFirst(earliestDeadlineFirst);
+    }
+
+    /**
+     * Sets whether identical requests which bypass the cache are collapsed while one of them is in
+     * flight. Requests are identical if they are of the same class and have the same method, URL
+     * and values for each of {@code keyHeaderNames}; only GET, HEAD, OPTIONS and TRACE requests are
+     * collapsed. A single network request is made and its parsed response is delivered to all
+     * identical requests. If it fails, the next identical request is sent to the network instead.
+     *
+     * <p>Cacheable requests are always collapsed by cache key, regardless of this setting.
+     *
+     * @param enabled Whether to collapse identical uncacheable requests
+     * @param keyHeaderNames Request headers which must also have equal values, such as {@code
+     *     Authorization}
+     */
+    public void setSingleFlight(boolean enabled, String... keyHeaderNames) {
+        mSingleFlightRequestManager.setEnabled(enabled, keyHeaderNames);
+    }
+
+    /**
+     * Bounds the number of requests waiting in the cache and network queues. When a request is
+     * added while the queue it would enter is full, the given policy decides which request fails
+     * with a {@link QueueFullError}, or whether {@link #add(Request)} waits for room. Requests
+     * which move from the cache queue to the network queue are not subject to the bound.
+     *
+     * <p>Requests which fail this way are counted by {@link #getRejectedRequestCount()} and {@link
+     * #getDroppedRequestCount()}.
+     *
+     * @param maxCacheQueueSize Maximum number of requests waiting for cache triage, or {@link
+     *     Integer#MAX_VALUE} for no limit
+     * @param maxNetworkQueueSize Maximum number of uncacheable requests waiting for the network, or
+     *     {@link Integer#MAX_VALUE} for no limit
+     * @param policy What to do when a queue is full
+     */
+    public void setMaxQueueSizes(
+            int maxCacheQueueSize, int maxNetworkQueueSize, OverflowPolicy policy) {
+        if (maxCacheQueueSize <= 0 || maxNetworkQueueSize <= 0) {
+            throw new IllegalArgumentException("Queue sizes must be positive");
+        }
+        mAdmissionController.setPolicy(policy);
+        mMaxCacheQueueSize = maxCacheQueueSize;
+        mMaxNetworkQueueSize = maxNetworkQueueSize;
+    }
+
+    /** Returns the number of added requests which failed because their queue was full. */
+    public long getRejectedRequestCount() {
+        return mAdmissionController.getRejectedCount();
+    }
+
+    /**
+     * Returns the number of queued requests which failed to make room for a request of higher
+     * priority.
+     */
+    public long getDroppedRequestCount() {
+        return mAdmissionController.getDroppedCount();
     }
 
     /** Gets a sequence number. */
@@ -152,6 +656,16 @@ public class RequestQueue {
         return mSequenceGenerator.incrementAndGet();
     }
 
+    /** Returns the {@link ResponseDelivery} used to post responses and errors. */
+    ResponseDelivery getResponseDelivery() {
+        return mDelivery;
+    }
+
+    /** Returns the order in which queued requests are dispatched. */
+    DispatchOrder getDispatchOrder() {
+        return mDispatchOrder;
+    }
+
     /** Gets the {@link Cache} instance being used. */
     public Cache getCache() {
         return mCache;
@@ -171,11 +685,9 @@ public class RequestQueue {
      * @param filter The filtering function to use
      */
     public void cancelAll(RequestFilter filter) {
-        synchronized (mCurrentRequests) {
-            for (Request<?> request : mCurrentRequests) {
-                if (filter.apply(request)) {
-                    request.cancel();
-                }
+        for (Request<?> request : mCurrentRequests) {
+            if (filter.apply(request)) {
+                request.cancel();
             }
         }
     }
@@ -188,13 +700,17 @@ public class RequestQueue {
         if (tag == null) {
             throw new IllegalArgumentException("Cannot cancelAll with a null tag");
         }
-        cancelAll(
-                new RequestFilter() {
-                    @Override
-                    public boolean apply(Request<?> request) {
-                        return request.getTag() == tag;
-                    }
-                });
+        TagBucket bucket = mRequestsByTag.get(new TagKey(tag));
+        if (bucket == null) {
+            return;
+        }
+        List<Request<?>> requests;
+        synchronized (bucket) {
+            requests = new ArrayList<>(bucket.requests);
+        }
+        for (Request<?> request : requests) {
+            request.cancel();
+        }
     }
 
     /**
@@ -206,21 +722,66 @@ public class RequestQueue {
     public <T> Request<T> add(Request<T> request) {
         // Tag the request as belonging to this queue and add it to the set of current requests.
         request.setRequestQueue(this);
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.add(request);
-        }
+        mCurrentRequests.add(request);
+        indexTag(request, request.getTag());
 
         // Process requests in the order they are added.
         request.setSequence(getSequenceNumber());
         request.addMarker("add-to-queue");
 
+        beginRequest(request);
+        return request;
+    }
+
+    /**
+     * Adds a request which only warms the cache, for a response which is likely to be needed soon.
+     *
+     * <p>A prefetch is skipped if the cache already holds a fresh response for it, or a request for
+     * the same cache key is in flight. Otherwise its response is stored in the cache as is: it is
+     * neither parsed nor delivered, and the request's listeners are not called. Prefetches are
+     * dispatched after all other requests, whatever their priority, and are dropped as soon as more
+     * requests are waiting for the network than there are network dispatchers.
+     *
+     * @param request The request to prefetch, which must be cacheable
+     * @return The passed-in request
+     */
+    public <T> Request<T> prefetch(Request<T> request) {
+        if (!request.shouldCache()) {
+            throw new IllegalArgumentException("Only cacheable requests can be prefetched");
+        }
+        request.markPrefetch();
+        return add(request);
+    }
+
+    /** Starts processing a request which has just been added. */
+    <T> void beginRequest(Request<T> request) {
         // If the request is uncacheable, skip the cache queue and go straight to the network.
         if (!request.shouldCache()) {
-            mNetworkQueue.add(request);
-            return request;
+            beginUncachedRequest(request);
+        } else {
+            request.markQueued();
+            mAdmissionController.offer(request, mCacheQueue, mMaxCacheQueueSize);
         }
-        mCacheQueue.add(request);
-        return request;
+    }
+
+    /**
+     * Sends an uncacheable request to the network, unless an identical request is in flight whose
+     * response it can share.
+     */
+    <T> void beginUncachedRequest(Request<T> request) {
+        if (!mSingleFlightRequestManager.maybeAddToWaitingRequests(request)) {
+            admitToNetwork(request);
+        }
+    }
+
+    /** Sends a newly added request to the network, subject to the bound on the network queue. */
+    <T> void admitToNetwork(Request<T> request) {
+        mAdmissionController.offer(request, mNetworkQueue, mMaxNetworkQueueSize);
+    }
+
+    /** Sends a request to the network, bypassing the cache. */
+    <T> void sendRequestOverNetwork(Request<T> request) {
+        mNetworkQueue.add(request);
     }
 
     /**
@@ -230,26 +791,103 @@ public class RequestQueue {
     @SuppressWarnings("unchecked") // see above note on RequestFinishedListener
     <T> void finish(Request<T> request) {
         // Remove from the set of requests currently being processed.
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
+        mCurrentRequests.remove(request);
+        unindexTag(request, request.getTag());
+        for (RequestFinishedListener<T> listener : mFinishedListeners) {
+            listener.onRequestFinished(request);
         }
-        synchronized (mFinishedListeners) {
-            for (RequestFinishedListener<T> listener : mFinishedListeners) {
-                listener.onRequestFinished(request);
+    }
+
+    /** Called from {@link Request#setTag(Object)} to re-index a request which changed its tag. */
+    void onTagChanged(Request<?> request, @Nullable Object oldTag) {
+        unindexTag(request, oldTag);
+        if (mCurrentRequests.contains(request)) {
+            Object tag = request.getTag();
+            indexTag(request, tag);
+            // The request may have finished concurrently, after the check above.
+            if (!mCurrentRequests.contains(request)) {
+                unindexTag(request, tag);
             }
         }
     }
 
-    public <T> void addRequestFinishedListener(RequestFinishedListener<T> listener) {
-        synchronized (mFinishedListeners) {
-            mFinishedListeners.add(listener);
+    private void indexTag(Request<?> request, @Nullable Object tag) {
+        if (tag == null) {
+            return;
+        }
+        TagKey key = new TagKey(tag);
+        while (true) {
+            TagBucket bucket = mRequestsByTag.get(key);
+            if (bucket == null) {
+                TagBucket newBucket = new TagBucket();
+                bucket = mRequestsByTag.putIfAbsent(key, newBucket);
+                if (bucket == null) {
+                    bucket = newBucket;
+                }
+            }
+            synchronized (bucket) {
+                if (!bucket.removed) {
+                    bucket.requests.add(request);
+                    return;
+                }
+            }
+            // The bucket was emptied and removed concurrently; retry with a new one.
+        }
+    }
+
+    private void unindexTag(Request<?> request, @Nullable Object tag) {
+        if (tag == null) {
+            return;
+        }
+        TagKey key = new TagKey(tag);
+        TagBucket bucket = mRequestsByTag.get(key);
+        if (bucket == null) {
+            return;
+        }
+        synchronized (bucket) {
+            if (bucket.requests.remove(request) && bucket.requests.isEmpty()) {
+                // Don't keep the tag, which is often an Activity, reachable after its last request.
+                bucket.removed = true;
+                mRequestsByTag.remove(key, bucket);
+            }
         }
     }
 
+    public <T> void addRequestFinishedListener(RequestFinishedListener<T> listener) {
+        mFinishedListeners.add(listener);
+    }
+
     /** Remove a RequestFinishedListener. Has no effect if listener was not previously added. */
     public <T> void removeRequestFinishedListener(RequestFinishedListener<T> listener) {
-        synchronized (mFinishedListeners) {
-            mFinishedListeners.remove(listener);
+        mFinishedListeners.remove(listener);
+    }
+
+    /** A tag in {@link #mRequestsByTag}. Tags are compared by identity, as in cancelAll(Object). */
+    private static final class TagKey {
+        private final Object mTag;
+
+        TagKey(Object tag) {
+            mTag = tag;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TagKey && ((TagKey) o).mTag == mTag;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mTag);
+        }
+    }
+
+    /** The current requests with a single tag. */
+    private static final class TagBucket {
+        @GuardedBy("this")
+        final Set<Request<?>> requests = new HashSet<>();
+
+        /** Set once the bucket is empty and has been removed from {@link #mRequestsByTag}. */
+        @GuardedBy("this")
+        boolean removed = false;
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses identical uncacheable requests which are in flight at the same time into a single
+ * network request, whose response is delivered to all of them.
+ *
+ * <p>This is the counterpart of {@link WaitingRequestManager} for requests which bypass the cache.
+ * Requests are identical if they are of the same class and have the same method, cache key and
+ * values for the configured key headers; requests whose responses have side effects, such as
+ * writing a file, include those in their cache key. Only safe methods (GET, HEAD, OPTIONS and
+ * TRACE) are collapsed. Since requests of the same class parse a network response in the same way,
+ * waiting requests are delivered the parsed response of the request which went to the network;
+ * responses whose result is mutable are shared between them.
+ */
+class SingleFlightRequestManager implements Request.NetworkRequestCompleteListener {
+
+    /**
+     * Requests waiting for an identical request in flight, by key. containsKey(key) indicates that
+     * a request is in flight for the given key, which is not contained in the list.
+     */
+    private final Map<String, List<Request<?>>> mWaitingRequests = new HashMap<>();
+
+    /** The key of each request in flight, as computed when it was sent to the network. */
+    private final Map<Request<?>, String> mInFlightKeys = new HashMap<>();
+
+    private final RequestQueue mRequestQueue;
+
+    /** Names of the headers whose values are part of the key, or null if disabled. */
+    @Nullable private volatile List<String> mKeyHeaderNames = null;
+
+    SingleFlightRequestManager(RequestQueue requestQueue) {
+        mRequestQueue = requestQueue;
+    }
+
+    /**
+     * Enables or disables collapsing of identical requests.
+     *
+     * @param keyHeaderNames Names of the request headers which must also match, case-insensitively
+     */
+    void setEnabled(boolean enabled, String... keyHeaderNames) {
+        mKeyHeaderNames =
+                enabled ? Collections.unmodifiableList(Arrays.asList(keyHeaderNames)) : null;
+    }
+
+    @Override
+    public void onResponseReceived(Request<?> request, Response<?> response) {
+        if (!response.isSuccess()) {
+            onNoUsableResponseReceived(request);
+            return;
+        }
+        List<Request<?>> waitingRequests;
+        synchronized (this) {
+            String key = mInFlightKeys.remove(request);
+            if (key == null) {
+                return;
+            }
+            waitingRequests = mWaitingRequests.remove(key);
+        }
+        if (waitingRequests != null) {
+            for (Request<?> waiting : waitingRequests) {
+                waiting.addMarker("single-flight-response");
+                mRequestQueue.getResponseDelivery().postResponse(waiting, response);
+            }
+        }
+    }
+
+    @Override
+    public void onNoUsableResponseReceived(Request<?> request) {
+        Request<?> nextInLine;
+        synchronized (this) {
+            String key = mInFlightKeys.remove(request);
+            if (key == null) {
+                return;
+            }
+            List<Request<?>> waitingRequests = mWaitingRequests.remove(key);
+            if (waitingRequests == null || waitingRequests.isEmpty()) {
+                return;
+            }
+            // Let the next waiting request try the network itself.
+            nextInLine = waitingRequests.remove(0);
+            mWaitingRequests.put(key, waitingRequests);
+            mInFlightKeys.put(nextInLine, key);
+        }
+        nextInLine.setNetworkRequestCompleteListener(this);
+        mRequestQueue.sendRequestOverNetwork(nextInLine);
+    }
+
+    /**
+     * If an identical request is already in flight, holds the given request until it completes.
+     *
+     * @return whether the request is being held. If false, it should be sent to the network.
+     */
+    boolean maybeAddToWaitingRequests(Request<?> request) {
+        String key = getKey(request);
+        if (key == null) {
+            return false;
+        }
+        synchronized (this) {
+            List<Request<?>> waitingRequests = mWaitingRequests.get(key);
+            if (waitingRequests != null) {
+                request.addMarker("single-flight-waiting");
+                waitingRequests.add(request);
+                return true;
+            }
+            mWaitingRequests.put(key, new ArrayList<Request<?>>());
+            mInFlightKeys.put(request, key);
+        }
+        request.setNetworkRequestCompleteListener(this);
+        return false;
+    }
+
+    /**
+     * Returns the key identifying identical requests, or null if the request can't be collapsed.
+     */
+    @Nullable
+    private String getKey(Request<?> request) {
+        List<String> keyHeaderNames = mKeyHeaderNames;
+        if (keyHeaderNames == null || !isSafeMethod(request.getMethod())) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(request.getClass().getName())
+                .append(' ')
+                .append(request.getMethod())
+                .append(' ')
+                .append(request.getCacheKey());
+        if (keyHeaderNames.isEmpty()) {
+            return key.toString();
+        }
+        Map<String, String> headers;
+        try {
+            headers = request.getHeaders();
+        } catch (AuthFailureError e) {
+            // Let the request fail on its own when it goes to the network.
+            return null;
+        }
+        for (String name : keyHeaderNames) {
+            key.append('\n').append(name).append(": ").append(getHeader(headers, name));
+        }
+        return key.toString();
+    }
+
+    @Nullable
+    private static String getHeader(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSafeMethod(int method) {
+        return method == Request.Method.GET
+                || method == Request.Method.HEAD
+                || method == Request.Method.OPTIONS
+                || method == Request.Method.TRACE;
+    }
+}
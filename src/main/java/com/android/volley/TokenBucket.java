@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Limits the rate at which requests are dispatched, while allowing short bursts.
+ *
+ * <p>The bucket holds up to {@code burst} tokens and gains {@code requestsPerSecond} tokens per
+ * second. Each request takes one token. This class is not thread-safe.
+ */
+class TokenBucket {
+    final double requestsPerSecond;
+    final int burst;
+
+    private double mTokens;
+    private long mLastRefillMs;
+
+    TokenBucket(double requestsPerSecond, int burst, long nowMs) {
+        if (!(requestsPerSecond > 0) || burst <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid rate limit: " + requestsPerSecond + "/s, burst " + burst);
+        }
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = burst;
+        mTokens = burst;
+        mLastRefillMs = nowMs;
+    }
+
+    /** Returns a new, full bucket with the same rate and burst. */
+    TokenBucket copy(long nowMs) {
+        return new TokenBucket(requestsPerSecond, burst, nowMs);
+    }
+
+    /** Returns how long until a token is available, or 0 if one is available now. */
+    long msUntilToken(long nowMs) {
+        refill(nowMs);
+        if (mTokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - mTokens) * 1000 / requestsPerSecond);
+    }
+
+    /** Takes a token, which must be available. */
+    void take(long nowMs) {
+        refill(nowMs);
+        mTokens -= 1;
+    }
+
+    /** Whether the bucket has refilled completely, making it equivalent to a new one. */
+    boolean isFull(long nowMs) {
+        refill(nowMs);
+        return mTokens >= burst;
+    }
+
+    private void refill(long nowMs) {
+        if (nowMs > mLastRefillMs) {
+            mTokens = Math.min(burst, mTokens + (nowMs - mLastRefillMs) * requestsPerSecond / 1000);
+            mLastRefillMs = nowMs;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.VolleyLog;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An HTTP stack which executes requests without blocking the calling thread. The asynchronous
+ * counterpart of {@link BaseHttpStack}, for use with {@link BasicAsyncNetwork}.
+ */
+public abstract class AsyncHttpStack extends BaseHttpStack {
+
+    private volatile ExecutorService mBlockingExecutor;
+    private volatile ExecutorService mNonBlockingExecutor;
+
+    /** Callback for the result of {@link #executeRequest(Request, Map, OnRequestComplete)}. */
+    public interface OnRequestComplete {
+        /** Called when a response has been received. */
+        void onSuccess(HttpResponse httpResponse);
+
+        /** Called when the request could not be executed because of an authentication failure. */
+        void onAuthError(AuthFailureError authFailureError);
+
+        /** Called when the request failed with an I/O error. */
+        void onError(IOException ioException);
+    }
+
+    /**
+     * Executes the request without blocking the calling thread, and invokes exactly one method of
+     * the callback once it completes.
+     *
+     * @param request the request to perform
+     * @param additionalHeaders additional headers to be sent together with {@link
+     *     Request#getHeaders()}
+     * @param callback callback to invoke with the result; may be called on any thread
+     */
+    public abstract void executeRequest(
+            Request<?> request, Map<String, String> additionalHeaders, OnRequestComplete callback);
+
+    /** Sets the executor for work which may block. */
+    public void setBlockingExecutor(ExecutorService executor) {
+        mBlockingExecutor = executor;
+    }
+
+    /** Sets the executor for short, non-blocking tasks such as dispatching callbacks. */
+    public void setNonBlockingExecutor(ExecutorService executor) {
+        mNonBlockingExecutor = executor;
+    }
+
+    /** Returns the executor set with {@link #setBlockingExecutor}, or null if none was set. */
+    protected ExecutorService getBlockingExecutor() {
+        return mBlockingExecutor;
+    }
+
+    /** Returns the executor set with {@link #setNonBlockingExecutor}, or null if none was set. */
+    protected ExecutorService getNonBlockingExecutor() {
+        return mNonBlockingExecutor;
+    }
+
+    /** Executes the request and blocks until it completes. */
+    @Override
+    public final HttpResponse executeRequest(
+            Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<HttpResponse> response = new AtomicReference<>();
+        final AtomicReference<IOException> ioError = new AtomicReference<>();
+        final AtomicReference<AuthFailureError> authError = new AtomicReference<>();
+        executeRequest(
+                request,
+                additionalHeaders,
+                new OnRequestComplete() {
+                    @Override
+                    public void onSuccess(HttpResponse httpResponse) {
+                        response.set(httpResponse);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onAuthError(AuthFailureError authFailureError) {
+                        authError.set(authFailureError);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(IOException ioException) {
+                        ioError.set(ioException);
+                        latch.countDown();
+                    }
+                });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            VolleyLog.e(e, "while waiting for CountDownLatch");
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.toString());
+        }
+
+        if (response.get() != null) {
+            return response.get();
+        } else if (ioError.get() != null) {
+            throw ioError.get();
+        } else if (authError.get() != null) {
+            throw authError.get();
+        } else {
+            throw new IOException("Neither response entry was set");
+        }
+    }
+}
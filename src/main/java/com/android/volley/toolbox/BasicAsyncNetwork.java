@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import com.android.volley.AsyncNetwork;
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.NetworkUtility.RetryInfo;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * An {@link AsyncNetwork} performing Volley requests over an {@link AsyncHttpStack}. The
+ * asynchronous counterpart of {@link BasicNetwork}, with the same handling of cache validation,
+ * errors and retries.
+ */
+public class BasicAsyncNetwork extends AsyncNetwork {
+
+    private static final int DEFAULT_POOL_SIZE = 4096;
+
+    private final AsyncHttpStack mAsyncStack;
+    private final ByteArrayPool mPool;
+
+    /** @param httpStack HTTP stack to be used */
+    public BasicAsyncNetwork(AsyncHttpStack httpStack) {
+        // If a pool isn't passed in, then build a small default pool that will give us a lot of
+        // benefit and not use too much memory.
+        this(httpStack, new ByteArrayPool(DEFAULT_POOL_SIZE));
+    }
+
+    /**
+     * @param httpStack HTTP stack to be used
+     * @param pool a buffer pool that improves GC performance in copy operations
+     */
+    public BasicAsyncNetwork(AsyncHttpStack httpStack, ByteArrayPool pool) {
+        mAsyncStack = httpStack;
+        mPool = pool;
+    }
+
+    @Override
+    public void setBlockingExecutor(ExecutorService executor) {
+        super.setBlockingExecutor(executor);
+        mAsyncStack.setBlockingExecutor(executor);
+    }
+
+    @Override
+    public void setNonBlockingExecutor(ExecutorService executor) {
+        super.setNonBlockingExecutor(executor);
+        mAsyncStack.setNonBlockingExecutor(executor);
+    }
+
+    @Override
+    public void performRequest(final Request<?> request, final OnRequestComplete callback) {
+        final long requestStartMs = SystemClock.elapsedRealtime();
+        // Gather headers.
+        Map<String, String> additionalRequestHeaders =
+                NetworkUtility.getCacheHeaders(request.getCacheEntry());
+        final boolean decodeContent;
+        try {
+            decodeContent = ContentDecoder.shouldDecode(request);
+        } catch (AuthFailureError e) {
+            callback.onError(e);
+            return;
+        }
+        if (decodeContent) {
+            additionalRequestHeaders = ContentDecoder.withAcceptEncoding(additionalRequestHeaders);
+        }
+        mAsyncStack.executeRequest(
+                request,
+                additionalRequestHeaders,
+                new AsyncHttpStack.OnRequestComplete() {
+                    @Override
+                    public void onSuccess(HttpResponse httpResponse) {
+                        if (decodeContent) {
+                            try {
+                                httpResponse = ContentDecoder.decode(request, httpResponse, mPool);
+                            } catch (IOException e) {
+                                onRequestFailed(
+                                        request,
+                                        callback,
+                                        e,
+                                        requestStartMs,
+                                        httpResponse,
+                                        /* responseContents= */ null);
+                                return;
+                            }
+                        }
+                        onRequestSucceeded(request, requestStartMs, httpResponse, callback);
+                    }
+
+                    @Override
+                    public void onAuthError(AuthFailureError authFailureError) {
+                        callback.onError(authFailureError);
+                    }
+
+                    @Override
+                    public void onError(IOException ioException) {
+                        onRequestFailed(
+                                request,
+                                callback,
+                                ioException,
+                                requestStartMs,
+                                /* httpResponse= */ null,
+                                /* responseContents= */ null);
+                    }
+                });
+    }
+
+    /** Handles a response from the stack, reading its body on the blocking executor if needed. */
+    private void onRequestSucceeded(
+            final Request<?> request,
+            final long requestStartMs,
+            final HttpResponse httpResponse,
+            final OnRequestComplete callback) {
+        final int statusCode = httpResponse.getStatusCode();
+        final List<Header> responseHeaders = httpResponse.getHeaders();
+        // Handle cache validation.
+        if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            long requestDuration = SystemClock.elapsedRealtime() - requestStartMs;
+            callback.onSuccess(
+                    NetworkUtility.getNotModifiedNetworkResponse(
+                            request, requestDuration, responseHeaders));
+            return;
+        }
+
+        byte[] responseContents = httpResponse.getContentBytes();
+        if (responseContents == null && httpResponse.getContent() == null) {
+            // Add 0 byte response as a way of honestly representing a
+            // no-content request.
+            responseContents = new byte[0];
+        }
+
+        if (responseContents != null) {
+            onResponseRead(
+                    requestStartMs,
+                    statusCode,
+                    httpResponse,
+                    request,
+                    callback,
+                    responseHeaders,
+                    responseContents);
+            return;
+        }
+
+        // The body has to be read from a stream, which may block.
+        final InputStream inputStream = httpResponse.getContent();
+        ExecutorService blockingExecutor = getBlockingExecutor();
+        if (blockingExecutor == null) {
+            throw new IllegalStateException(
+                    "Reading a streamed response requires a blocking executor");
+        }
+        blockingExecutor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        byte[] finalResponseContents;
+                        try {
+                            finalResponseContents =
+                                    NetworkUtility.inputStreamToBytes(
+                                            request,
+                                            inputStream,
+                                            httpResponse.getContentLength(),
+                                            mPool);
+                        } catch (IOException e) {
+                            onRequestFailed(
+                                    request,
+                                    callback,
+                                    e,
+                                    requestStartMs,
+                                    httpResponse,
+                                    /* responseContents= */ null);
+                            return;
+                        } catch (ServerError e) {
+                            callback.onError(e);
+                            return;
+                        }
+                        onResponseRead(
+                                requestStartMs,
+                                statusCode,
+                                httpResponse,
+                                request,
+                                callback,
+                                responseHeaders,
+                                finalResponseContents);
+                    }
+                });
+    }
+
+    private void onResponseRead(
+            long requestStartMs,
+            int statusCode,
+            HttpResponse httpResponse,
+            Request<?> request,
+            OnRequestComplete callback,
+            List<Header> responseHeaders,
+            byte[] responseContents) {
+        // if the request is slow, log it.
+        long requestLifetime = SystemClock.elapsedRealtime() - requestStartMs;
+        NetworkUtility.logSlowRequests(requestLifetime, request, responseContents, statusCode);
+
+        if (statusCode < 200 || statusCode > 299) {
+            onRequestFailed(
+                    request,
+                    callback,
+                    new IOException(),
+                    requestStartMs,
+                    httpResponse,
+                    responseContents);
+            return;
+        }
+
+        callback.onSuccess(
+                new NetworkResponse(
+                        statusCode,
+                        responseContents,
+                        /* notModified= */ false,
+                        SystemClock.elapsedRealtime() - requestStartMs,
+                        responseHeaders));
+    }
+
+    /** Retries the request if its retry policy allows it, or reports the error otherwise. */
+    private void onRequestFailed(
+            Request<?> request,
+            OnRequestComplete callback,
+            IOException exception,
+            long requestStartMs,
+            @Nullable HttpResponse httpResponse,
+            @Nullable byte[] responseContents) {
+        try {
+            RetryInfo retryInfo =
+                    NetworkUtility.getRetryInfo(
+                            request, exception, requestStartMs, httpResponse, responseContents);
+            NetworkUtility.attemptRetryOnException(request, retryInfo);
+        } catch (VolleyError volleyError) {
+            callback.onError(volleyError);
+            return;
+        }
+        performRequest(request, callback);
+    }
+}
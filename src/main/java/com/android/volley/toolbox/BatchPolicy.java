@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.support.annotation.Nullable;
+import com.android.volley.Request;
+
+/** Decides which requests a {@link BatchingNetwork} combines into batches, and when. */
+public interface BatchPolicy {
+
+    /**
+     * Returns the URL of the batch endpoint the given request may be sent through, or null if the
+     * request must be sent on its own. Only requests with the same batch URL share a batch.
+     */
+    @Nullable
+    String getBatchUrl(Request<?> request);
+
+    /** Returns the largest number of requests to put in a single batch. */
+    int getMaxBatchSize();
+
+    /**
+     * Returns the longest time to hold the first request of a batch while waiting for more requests
+     * to join it.
+     */
+    long getMaxDelayMs();
+}
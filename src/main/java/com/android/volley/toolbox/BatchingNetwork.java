@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+import com.android.volley.AuthFailureError;
+import com.android.volley.ClientError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Header;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Network} which combines GET requests into multipart/mixed batch requests to a batch
+ * endpoint, as decided by a {@link BatchPolicy}.
+ *
+ * <p>The first request for a batch endpoint is held for up to {@link BatchPolicy#getMaxDelayMs()},
+ * or until {@link BatchPolicy#getMaxBatchSize()} requests have joined it. The batch is then posted
+ * over the wrapped network, and each part of the batch response is returned as the {@link
+ * NetworkResponse} of its own request, which is parsed and cached as usual. A part with an error
+ * status fails only its own request. If the batch as a whole fails, or leaves a request unanswered,
+ * the request is sent on its own, subject to its own retry policy. Canceled requests are left out
+ * of a batch, and a batch of a single request is sent as a plain request. See {@link
+ * MultipartBatch} for the format.
+ *
+ * <p>Each {@link com.android.volley.NetworkDispatcher} waits while its request is in a batch, so a
+ * batch can hold at most as many requests as there are network dispatchers. Batching is therefore
+ * most effective with many dispatchers, such as those of a {@link com.android.volley.RequestQueue}
+ * running on an executor.
+ */
+public class BatchingNetwork implements Network {
+
+    private final Network mNetwork;
+    private final BatchPolicy mPolicy;
+
+    /** Batches which requests may still join, by batch URL. */
+    @GuardedBy("mOpenBatches")
+    private final Map<String, Batch> mOpenBatches = new HashMap<>();
+
+    private final AtomicLong mBatchCount = new AtomicLong();
+    private final AtomicLong mBatchedRequestCount = new AtomicLong();
+
+    /**
+     * @param network Network to send batches and other requests over
+     * @param policy Policy deciding which requests are batched
+     */
+    public BatchingNetwork(Network network, BatchPolicy policy) {
+        mNetwork = network;
+        mPolicy = policy;
+    }
+
+    /** Returns the number of batch requests which have been sent. */
+    public long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    /** Returns the number of requests which have been sent as part of a batch. */
+    public long getBatchedRequestCount() {
+        return mBatchedRequestCount.get();
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        String batchUrl =
+                request.getMethod() == Request.Method.GET ? mPolicy.getBatchUrl(request) : null;
+        if (batchUrl == null) {
+            return mNetwork.performRequest(request);
+        }
+        Slot slot = new Slot(request);
+        Batch batch;
+        boolean isFirst;
+        synchronized (mOpenBatches) {
+            batch = mOpenBatches.get(batchUrl);
+            isFirst = batch == null;
+            if (isFirst) {
+                batch = new Batch(batchUrl);
+                mOpenBatches.put(batchUrl, batch);
+            }
+            batch.slots.add(slot);
+            if (batch.slots.size() >= mPolicy.getMaxBatchSize()) {
+                closeLocked(batch);
+                // Let the first request's thread send the batch right away.
+                mOpenBatches.notifyAll();
+            }
+        }
+        // The thread of the first request waits for the batch to fill up, then sends it.
+        if (isFirst) {
+            awaitBatch(batch);
+            send(batch);
+        }
+        // Stop waiting for the batch as soon as the request is canceled.
+        final Slot canceledSlot = slot;
+        request.setCancelAction(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        canceledSlot.fail(new VolleyError("Request was canceled"));
+                    }
+                });
+        try {
+            slot.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VolleyError(e);
+        } finally {
+            request.setCancelAction(null);
+        }
+        if (slot.sendAlone) {
+            return mNetwork.performRequest(request);
+        }
+        if (slot.error != null) {
+            throw slot.error;
+        }
+        return slot.response;
+    }
+
+    /** Waits until the batch is full or its delay has elapsed, and closes it. */
+    private void awaitBatch(Batch batch) {
+        long deadlineMs = SystemClock.elapsedRealtime() + mPolicy.getMaxDelayMs();
+        boolean interrupted = false;
+        synchronized (mOpenBatches) {
+            long remainingMs;
+            while (!batch.closed
+                    && (remainingMs = deadlineMs - SystemClock.elapsedRealtime()) > 0) {
+                try {
+                    mOpenBatches.wait(remainingMs);
+                } catch (InterruptedException e) {
+                    // The other requests of the batch still need it to be sent.
+                    interrupted = true;
+                    break;
+                }
+            }
+            closeLocked(batch);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @GuardedBy("mOpenBatches")
+    private void closeLocked(Batch batch) {
+        if (!batch.closed) {
+            batch.closed = true;
+            mOpenBatches.remove(batch.url);
+        }
+    }
+
+    /** Sends a closed batch, completing all of its slots. */
+    private void send(Batch batch) {
+        List<Slot> slots = new ArrayList<>(batch.slots.size());
+        for (Slot slot : batch.slots) {
+            if (slot.request.isCanceled()) {
+                slot.fail(new VolleyError("Request was canceled"));
+            } else {
+                slots.add(slot);
+            }
+        }
+        if (slots.size() <= 1) {
+            for (Slot slot : slots) {
+                slot.fallBack();
+            }
+            return;
+        }
+        mBatchCount.incrementAndGet();
+        mBatchedRequestCount.addAndGet(slots.size());
+        List<Request<?>> requests = new ArrayList<>(slots.size());
+        int timeoutMs = 0;
+        for (Slot slot : slots) {
+            requests.add(slot.request);
+            timeoutMs = Math.max(timeoutMs, slot.request.getTimeoutMs());
+            slot.request.addMarker("batch-sent [size=" + slots.size() + "]");
+        }
+        try {
+            String boundary = MultipartBatch.newBoundary();
+            NetworkResponse batchResponse =
+                    mNetwork.performRequest(
+                            new BatchRequest(
+                                    batch.url,
+                                    MultipartBatch.encodeRequests(requests, boundary),
+                                    boundary,
+                                    timeoutMs));
+            String responseBoundary =
+                    MultipartBatch.parseBoundary(contentTypeOf(batchResponse.allHeaders));
+            if (responseBoundary == null) {
+                throw new ServerError(batchResponse);
+            }
+            List<MultipartBatch.Part> parts =
+                    MultipartBatch.parseResponses(batchResponse.data, responseBoundary);
+            for (int i = 0; i < parts.size(); i++) {
+                MultipartBatch.Part part = parts.get(i);
+                int index = part.index >= 0 ? part.index : i;
+                if (index < slots.size()) {
+                    complete(slots.get(index), part, batchResponse.networkTimeMs);
+                }
+            }
+        } catch (VolleyError e) {
+            VolleyLog.d("Batch to %s failed, sending its requests one by one: %s", batch.url, e);
+        } catch (IOException e) {
+            VolleyLog.d("Batch to %s failed, sending its requests one by one: %s", batch.url, e);
+        } finally {
+            // Requests which the batch didn't answer are sent on their own.
+            for (Slot slot : slots) {
+                slot.fallBack();
+            }
+        }
+    }
+
+    /** Completes a slot with the part of the batch response which answers it. */
+    private static void complete(Slot slot, MultipartBatch.Part part, long networkTimeMs) {
+        if (part.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            slot.succeed(
+                    NetworkUtility.getNotModifiedNetworkResponse(
+                            slot.request, networkTimeMs, part.headers));
+            return;
+        }
+        NetworkResponse response =
+                new NetworkResponse(
+                        part.statusCode,
+                        part.body,
+                        /* notModified= */ false,
+                        networkTimeMs,
+                        part.headers);
+        if (part.statusCode >= 200 && part.statusCode <= 299) {
+            slot.succeed(response);
+        } else if (part.statusCode == HttpURLConnection.HTTP_UNAUTHORIZED
+                || part.statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
+            slot.fail(new AuthFailureError(response));
+        } else if (part.statusCode >= 400 && part.statusCode <= 499) {
+            slot.fail(new ClientError(response));
+        } else {
+            slot.fail(new ServerError(response));
+        }
+    }
+
+    private static String contentTypeOf(List<Header> headers) {
+        if (headers != null) {
+            for (Header header : headers) {
+                if (header.getName().equalsIgnoreCase("Content-Type")) {
+                    return header.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A request waiting for its part of a batch response. Only the first outcome counts; the fields
+     * are read once {@link #done} has been counted down.
+     */
+    private static class Slot {
+        final Request<?> request;
+        final CountDownLatch done = new CountDownLatch(1);
+        NetworkResponse response;
+        VolleyError error;
+
+        /** Whether the request must be sent on its own. */
+        boolean sendAlone;
+
+        Slot(Request<?> request) {
+            this.request = request;
+        }
+
+        synchronized void succeed(NetworkResponse response) {
+            if (done.getCount() > 0) {
+                this.response = response;
+                done.countDown();
+            }
+        }
+
+        synchronized void fail(VolleyError error) {
+            if (done.getCount() > 0) {
+                this.error = error;
+                done.countDown();
+            }
+        }
+
+        synchronized void fallBack() {
+            if (done.getCount() > 0) {
+                sendAlone = true;
+                done.countDown();
+            }
+        }
+    }
+
+    /** Requests to be sent to the same batch endpoint together. */
+    private static class Batch {
+        final String url;
+        final List<Slot> slots = new ArrayList<>();
+
+        /** Whether requests may no longer join; guarded by {@link #mOpenBatches}. */
+        boolean closed = false;
+
+        Batch(String url) {
+            this.url = url;
+        }
+    }
+
+    /** The batch request posted to the batch endpoint. */
+    private static class BatchRequest extends Request<Void> {
+        private final byte[] mBody;
+        private final String mBoundary;
+
+        BatchRequest(String url, byte[] body, String boundary, int timeoutMs) {
+            super(Method.POST, url, /* listener= */ null);
+            mBody = body;
+            mBoundary = boundary;
+            setShouldCache(false);
+            // A failed batch isn't sent again as a whole; its requests are sent on their own.
+            setRetryPolicy(new DefaultRetryPolicy(timeoutMs, /* maxNumRetries= */ 0, 1f));
+        }
+
+        @Override
+        public String getBodyContentType() {
+            return MultipartBatch.contentType(mBoundary);
+        }
+
+        @Override
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            // The parts of the response are parsed by their own requests.
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {}
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import com.android.volley.ServerError;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Transparent decoding of gzip and deflate response bodies.
+ *
+ * <p>Requests are sent with {@code Accept-Encoding: gzip, deflate}, unless they set their own
+ * Accept-Encoding header, in which case they receive the body as it was sent. Decoded responses
+ * lose their Content-Encoding and Content-Length headers, since neither describes the decoded body.
+ * The decoded form is what gets cached: cache hits are then parsed without inflating the body
+ * again, and the cache size limit applies to the data which is actually kept in memory on a hit.
+ *
+ * <p>{@link Inflater}s hold native memory which is only freed once they are ended, so a few of them
+ * are kept in a pool and reused across responses.
+ */
+final class ContentDecoder {
+
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /** Largest number of idle {@link Inflater}s kept of each kind. */
+    private static final int MAX_POOLED_INFLATERS = 4;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int GZIP_FHCRC = 2;
+    private static final int GZIP_FEXTRA = 4;
+    private static final int GZIP_FNAME = 8;
+    private static final int GZIP_FCOMMENT = 16;
+
+    /** Idle inflaters for raw deflate data, as in gzip bodies. */
+    @GuardedBy("ContentDecoder.class")
+    private static final Deque<Inflater> sRawInflaters = new ArrayDeque<>();
+
+    /** Idle inflaters for zlib-wrapped deflate data. */
+    @GuardedBy("ContentDecoder.class")
+    private static final Deque<Inflater> sZlibInflaters = new ArrayDeque<>();
+
+    private ContentDecoder() {}
+
+    /**
+     * Returns whether responses to the given request should be decoded, which is the case unless
+     * the request negotiates its own encoding.
+     */
+    static boolean shouldDecode(Request<?> request) throws AuthFailureError {
+        for (String name : request.getHeaders().keySet()) {
+            if (name.equalsIgnoreCase("Accept-Encoding")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns a copy of the given request headers with the encodings which can be decoded. */
+    static Map<String, String> withAcceptEncoding(Map<String, String> headers) {
+        Map<String, String> result = new HashMap<>(headers);
+        result.put("Accept-Encoding", ACCEPT_ENCODING);
+        return result;
+    }
+
+    /**
+     * Returns the response with its body decoded, or the response itself if its body isn't encoded.
+     *
+     * <p>A body which has been read into memory is decoded right away. A streamed body is decoded
+     * as it is read, so this method never blocks on the network.
+     *
+     * @throws IOException if the body can't be decoded
+     */
+    static HttpResponse decode(Request<?> request, HttpResponse response, ByteArrayPool pool)
+            throws IOException {
+        String encoding = null;
+        for (Header header : response.getHeaders()) {
+            if (header.getName().equalsIgnoreCase("Content-Encoding")) {
+                encoding = header.getValue().trim();
+            }
+        }
+        boolean gzip = "gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding);
+        if (!gzip && !"deflate".equalsIgnoreCase(encoding)) {
+            return response;
+        }
+        List<Header> headers = new ArrayList<>();
+        for (Header header : response.getHeaders()) {
+            if (!header.getName().equalsIgnoreCase("Content-Encoding")
+                    && !header.getName().equalsIgnoreCase("Content-Length")) {
+                headers.add(header);
+            }
+        }
+        byte[] contentBytes = response.getContentBytes();
+        if (contentBytes != null) {
+            try {
+                return new HttpResponse(
+                        response.getStatusCode(),
+                        headers,
+                        NetworkUtility.inputStreamToBytes(
+                                request,
+                                new DecodingInputStream(
+                                        new ByteArrayInputStream(contentBytes), gzip),
+                                /* contentLength= */ -1,
+                                pool));
+            } catch (ServerError e) {
+                // Only thrown for a missing stream.
+                throw new IOException(e);
+            }
+        }
+        InputStream content = response.getContent();
+        if (content == null) {
+            return new HttpResponse(response.getStatusCode(), headers);
+        }
+        return new HttpResponse(
+                response.getStatusCode(),
+                headers,
+                /* contentLength= */ -1,
+                new DecodingInputStream(content, gzip));
+    }
+
+    private static synchronized Inflater obtainInflater(boolean nowrap) {
+        Inflater inflater = (nowrap ? sRawInflaters : sZlibInflaters).poll();
+        return inflater != null ? inflater : new Inflater(nowrap);
+    }
+
+    private static void releaseInflater(Inflater inflater, boolean nowrap) {
+        inflater.reset();
+        synchronized (ContentDecoder.class) {
+            Deque<Inflater> pool = nowrap ? sRawInflaters : sZlibInflaters;
+            if (pool.size() < MAX_POOLED_INFLATERS) {
+                pool.push(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    /**
+     * Decodes an encoded body. The encoding headers are only read on the first read, so that
+     * creating the stream doesn't block.
+     */
+    private static class DecodingInputStream extends InputStream {
+        private final InputStream mIn;
+        private final boolean mGzip;
+        @Nullable private InputStream mDecoded;
+
+        DecodingInputStream(InputStream in, boolean gzip) {
+            mIn = in;
+            mGzip = gzip;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return decoded().read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return decoded().read(buffer, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mDecoded != null ? mDecoded.available() : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mDecoded != null) {
+                mDecoded.close();
+            } else {
+                mIn.close();
+            }
+        }
+
+        private InputStream decoded() throws IOException {
+            if (mDecoded != null) {
+                return mDecoded;
+            }
+            PushbackInputStream in = new PushbackInputStream(mIn, 2);
+            int first = in.read();
+            if (first == -1) {
+                // Some servers send an encoding header with an empty body.
+                mDecoded = in;
+            } else if (mGzip) {
+                in.unread(first);
+                readGzipHeader(in);
+                mDecoded = new PooledInflaterInputStream(in, /* nowrap= */ true, /* gzip= */ true);
+            } else {
+                // "deflate" should be zlib-wrapped, but some servers send raw deflate data.
+                int second = in.read();
+                boolean zlib =
+                        second != -1 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+                if (second != -1) {
+                    in.unread(second);
+                }
+                in.unread(first);
+                mDecoded = new PooledInflaterInputStream(in, !zlib, /* gzip= */ false);
+            }
+            return mDecoded;
+        }
+    }
+
+    /** Reads and checks a gzip member header, leaving the stream at the compressed data. */
+    private static void readGzipHeader(InputStream in) throws IOException {
+        if (readUShort(in) != GZIP_MAGIC) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (readUByte(in) != 8) {
+            throw new ZipException("Unsupported GZIP compression method");
+        }
+        int flags = readUByte(in);
+        // Modification time, extra flags and operating system.
+        skipBytes(in, 6);
+        if ((flags & GZIP_FEXTRA) != 0) {
+            skipBytes(in, readUShort(in));
+        }
+        if ((flags & GZIP_FNAME) != 0) {
+            while (readUByte(in) != 0) {
+                // Skip the file name.
+            }
+        }
+        if ((flags & GZIP_FCOMMENT) != 0) {
+            while (readUByte(in) != 0) {
+                // Skip the comment.
+            }
+        }
+        if ((flags & GZIP_FHCRC) != 0) {
+            skipBytes(in, 2);
+        }
+    }
+
+    private static int readUByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of GZIP header");
+        }
+        return b;
+    }
+
+    private static int readUShort(InputStream in) throws IOException {
+        return readUByte(in) | (readUByte(in) << 8);
+    }
+
+    private static void skipBytes(InputStream in, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readUByte(in);
+        }
+    }
+
+    /**
+     * Inflates a body with a pooled {@link Inflater}, which is returned to the pool on close. For
+     * gzip bodies, the trailer is checked once the compressed data ends.
+     */
+    private static class PooledInflaterInputStream extends InflaterInputStream {
+        private final boolean mNowrap;
+        private final boolean mGzip;
+        private final CRC32 mCrc = new CRC32();
+        private boolean mReleased = false;
+        private boolean mTrailerChecked = false;
+
+        PooledInflaterInputStream(InputStream in, boolean nowrap, boolean gzip) {
+            super(in, obtainInflater(nowrap));
+            mNowrap = nowrap;
+            mGzip = gzip;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            ensureNotReleased();
+            int count = super.read(buffer, offset, length);
+            if (mGzip) {
+                if (count > 0) {
+                    mCrc.update(buffer, offset, count);
+                } else if (count == -1 && inf.finished() && !mTrailerChecked) {
+                    mTrailerChecked = true;
+                    checkGzipTrailer();
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            ensureNotReleased();
+            return super.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mReleased) {
+                mReleased = true;
+                // InflaterInputStream.close() isn't used, since older versions of Android end the
+                // inflater even though it was passed in.
+                try {
+                    in.close();
+                } finally {
+                    releaseInflater(inf, mNowrap);
+                }
+            }
+        }
+
+        /** Keeps a closed stream from using the inflater, which may belong to another stream. */
+        private void ensureNotReleased() throws IOException {
+            if (mReleased) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        private void checkGzipTrailer() throws IOException {
+            // The trailer may be partly or wholly in the input buffer already.
+            int remaining = inf.getRemaining();
+            InputStream trailer =
+                    remaining > 0
+                            ? new SequenceInputStream(
+                                    new ByteArrayInputStream(buf, len - remaining, remaining), in)
+                            : in;
+            long crc = readUInt(trailer);
+            long size = readUInt(trailer);
+            if (crc != mCrc.getValue() || size != (inf.getBytesWritten() & 0xffffffffL)) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+        }
+
+        private static long readUInt(InputStream in) throws IOException {
+            return readUShort(in) | ((long) readUShort(in) << 16);
+        }
+    }
+}
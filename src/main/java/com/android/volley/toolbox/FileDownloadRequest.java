@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A request which downloads the response body to a file.
+ *
+ * <p>The body is streamed to a temporary file next to the target through a pooled buffer, so memory
+ * use doesn't depend on the size of the file. Once the whole body has been written, the temporary
+ * file is renamed to the target, which therefore either holds a complete download or is left
+ * untouched. Interrupted downloads are resumed where possible; see {@link #setResumable}. Responses
+ * aren't cached, as the cache would hold another copy of the whole body.
+ */
+public class FileDownloadRequest extends StreamingRequest<File> {
+
+    /** Receives the progress of a download. */
+    public interface ProgressListener {
+        /**
+         * Called on a worker thread whenever part of the body has been written.
+         *
+         * @param bytesWritten Number of bytes written so far
+         * @param totalBytes Length of the body, or -1 if unknown
+         */
+        void onProgress(long bytesWritten, long totalBytes);
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Buffers shared by all downloads. */
+    private static final ByteArrayPool sBufferPool = new ByteArrayPool(4 * BUFFER_SIZE);
+
+    /** Status code of a response to a Range request which the file can't satisfy. */
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final File mTarget;
+
+    /** The partial download. */
+    private final File mTemp;
+
+    /** Holds the ETag or Last-Modified value of the file being downloaded to {@link #mTemp}. */
+    private final File mValidatorFile;
+
+    private volatile boolean mResumable = true;
+
+    private volatile int mMaxSegments = 1;
+
+    /** Lock to guard the listeners as they are cleared on cancel() and read on delivery. */
+    private final Object mLock = new Object();
+
+    @Nullable
+    @GuardedBy("mLock")
+    private Listener<File> mListener;
+
+    @Nullable
+    @GuardedBy("mLock")
+    private ProgressListener mProgressListener;
+
+    /**
+     * Creates a new GET request.
+     *
+     * @param url URL to download
+     * @param target File to write the body to, replacing any existing file
+     * @param listener Listener to receive the target file once the download is complete
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    public FileDownloadRequest(
+            String url,
+            File target,
+            Listener<File> listener,
+            @Nullable ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        mTarget = target;
+        mTemp = new File(target.getPath() + ".download");
+        mValidatorFile = new File(target.getPath() + ".download.validator");
+        mListener = listener;
+    }
+
+    /**
+     * Sets whether an interrupted download may be resumed, which is the default. A partial download
+     * is then kept if the server identified the version of the file with an ETag or Last-Modified
+     * header. Retries of this request, and later requests for the same target, ask only for the
+     * rest of the file with a Range request, and start over if the file has changed in between.
+     */
+    public void setResumable(boolean resumable) {
+        mResumable = resumable;
+    }
+
+    /** Sets the listener to receive the progress of the download. */
+    public void setProgressListener(@Nullable ProgressListener progressListener) {
+        synchronized (mLock) {
+            mProgressListener = progressListener;
+        }
+    }
+
+    /** Returns the file the body is written to. */
+    public File getTarget() {
+        return mTarget;
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        synchronized (mLock) {
+            mListener = null;
+            mProgressListener = null;
+        }
+    }
+
+    /**
+     * Includes the target in the key, so that downloads of the same URL to different files aren't
+     * taken for identical requests.
+     */
+    @Override
+    public String getCacheKey() {
+        return super.getCacheKey() + "\n" + mTarget.getPath();
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = new HashMap<>(super.getHeaders());
+        // Offsets into a partial download only hold for the unencoded body.
+        headers.put("Accept-Encoding", "identity");
+        long offset = mTemp.length();
+        String validator = mResumable && offset > 0 ? readValidator() : null;
+        if (validator != null) {
+            headers.put("Range", "bytes=" + offset + "-");
+            headers.put("If-Range", validator);
+        }
+        return headers;
+    }
+
+    @Override
+    protected VolleyError parseNetworkError(VolleyError volleyError) {
+        if (volleyError.networkResponse != null
+                && volleyError.networkResponse.statusCode == HTTP_RANGE_NOT_SATISFIABLE) {
+            // The partial download doesn't match the file on the server; start over next time.
+            discardPartial();
+        }
+        return volleyError;
+    }
+
+    @Override
+    protected File parseResponseStream(NetworkResponse response, InputStream body)
+            throws IOException {
+        long offset = 0;
+        if (response.statusCode == HttpURLConnection.HTTP_PARTIAL) {
+            offset = contentRangeStart(response);
+            if (offset != mTemp.length()) {
+                discardPartial();
+                throw new IOException("Unexpected range in partial response: " + offset);
+            }
+        } else {
+            // The whole body, either because nothing was downloaded yet or because the server
+            // doesn't support ranges or has changed the file since.
+            String validator = mResumable ? validatorOf(response) : null;
+            if (validator != null) {
+                writeValidator(validator);
+            } else if (mValidatorFile.exists() && !mValidatorFile.delete()) {
+                throw new IOException("Could not delete " + mValidatorFile);
+            }
+        }
+        long length = contentLength(response);
+        long totalBytes = length < 0 ? -1 : offset + length;
+        FileOutputStream out = new FileOutputStream(mTemp, /* append= */ offset > 0);
+        byte[] buffer = sBufferPool.getBuf(BUFFER_SIZE);
+        boolean complete = false;
+        try {
+            long bytesWritten = offset;
+            int count;
+            while ((count = body.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                bytesWritten += count;
+                notifyProgress(bytesWritten, totalBytes);
+            }
+            // Make sure the data is on disk before the rename makes it visible.
+            out.getFD().sync();
+            out.close();
+            commit();
+            complete = true;
+            return mTarget;
+        } finally {
+            sBufferPool.returnBuf(buffer);
+            if (!complete) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    VolleyLog.v("Error occurred when closing %s", mTemp);
+                }
+                if (!mValidatorFile.exists()) {
+                    // Without a validator, the partial download can't be resumed.
+                    discardPartial();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void deliverResponse(File response) {
+        Listener<File> listener;
+        synchronized (mLock) {
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onResponse(response);
+        }
+    }
+
+    /** Returns the number of segments this file may be downloaded in at once. */
+    public int getMaxSegments() {
+        return mMaxSegments;
+    }
+
+    /**
+     * Sets the number of segments this file may be downloaded in at once, when it is performed by a
+     * {@link SegmentedDownloadNetwork}. The default is 1, which downloads the file as a whole.
+     */
+    public void setMaxSegments(int maxSegments) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments must be at least 1: " + maxSegments);
+        }
+        mMaxSegments = maxSegments;
+    }
+
+    /** Returns the file the body is written to until it is complete. */
+    File getTempFile() {
+        return mTemp;
+    }
+
+    /** Reports the progress of the download to the progress listener, if any. */
+    void notifyProgress(long bytesWritten, long totalBytes) {
+        ProgressListener progressListener;
+        synchronized (mLock) {
+            progressListener = mProgressListener;
+        }
+        if (progressListener != null) {
+            progressListener.onProgress(bytesWritten, totalBytes);
+        }
+    }
+
+    /** Moves the complete body from the temporary file to the target. */
+    void commit() throws IOException {
+        if (!mTemp.renameTo(mTarget)) {
+            throw new IOException("Failed to rename " + mTemp + " to " + mTarget);
+        }
+        if (mValidatorFile.exists() && !mValidatorFile.delete()) {
+            VolleyLog.d("Could not delete %s", mValidatorFile);
+        }
+    }
+
+    /** Returns whether a partial download exists which a plain request would resume. */
+    boolean hasResumablePartial() {
+        return mResumable && mTemp.length() > 0 && readValidator() != null;
+    }
+
+    /**
+     * Keeps the first {@code length} bytes of the temporary file as a partial download of the
+     * version of the file identified by {@code validator}, so that it can be resumed, or discards
+     * it if this request isn't resumable.
+     */
+    void keepPartial(long length, String validator) throws IOException {
+        if (!mResumable || length <= 0) {
+            discardPartial();
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile(mTemp, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+        writeValidator(validator);
+    }
+
+    /** Deletes the partial download, if any. */
+    void discardPartial() {
+        if (mTemp.exists() && !mTemp.delete()) {
+            VolleyLog.d("Could not delete %s", mTemp);
+        }
+        if (mValidatorFile.exists() && !mValidatorFile.delete()) {
+            VolleyLog.d("Could not delete %s", mValidatorFile);
+        }
+    }
+
+    @Nullable
+    private String readValidator() {
+        if (!mValidatorFile.exists()) {
+            return null;
+        }
+        try {
+            byte[] bytes = new byte[(int) mValidatorFile.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(mValidatorFile));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+            return new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            VolleyLog.d("Could not read %s", mValidatorFile);
+            return null;
+        }
+    }
+
+    private void writeValidator(String validator) throws IOException {
+        FileOutputStream out = new FileOutputStream(mValidatorFile);
+        try {
+            out.write(validator.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the value for an If-Range header identifying the version of the file in the given
+     * response, or null if it has none. Weak entity tags can't be used for ranges.
+     */
+    @Nullable
+    private static String validatorOf(NetworkResponse response) {
+        if (response.headers == null) {
+            return null;
+        }
+        String etag = response.headers.get("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return response.headers.get("Last-Modified");
+    }
+
+    /** Returns the first byte position of a Content-Range header, or -1 if there is none. */
+    private static long contentRangeStart(NetworkResponse response) {
+        String value = response.headers != null ? response.headers.get("Content-Range") : null;
+        if (value != null) {
+            // For example "bytes 100-199/200".
+            value = value.trim();
+            int dash = value.indexOf('-');
+            if (value.startsWith("bytes ") && dash > 0) {
+                try {
+                    return Long.parseLong(value.substring("bytes ".length(), dash).trim());
+                } catch (NumberFormatException e) {
+                    // Invalid range.
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static long contentLength(NetworkResponse response) {
+        String value = response.headers != null ? response.headers.get("Content-Length") : null;
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                // Unknown length.
+            }
+        }
+        return -1;
+    }
+}
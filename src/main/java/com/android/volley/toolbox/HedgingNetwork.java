@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.HedgingPolicy;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.RetryPolicy;
+import com.android.volley.VolleyError;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Network} which hedges slow requests: if a request with a {@link HedgingPolicy} has not
+ * been answered within the delay given by its policy, a duplicate is sent over the wrapped network.
+ * The first successful response wins, and the other attempt is cancelled.
+ *
+ * <p>Only GET and HEAD requests are hedged, and never {@link StreamingRequest}s, whose parsing has
+ * side effects such as writing a file. To bound the extra load, hedges are limited to a fraction of
+ * the requests with a hedging policy. Requests which are hedged get a "hedge-sent" marker, and a
+ * "hedge-won" marker naming the attempt whose response was used.
+ *
+ * <p>Attempts of hedged requests run on threads owned by this network while the calling {@link
+ * com.android.volley.NetworkDispatcher} waits. Each attempt performs its own copy of the request,
+ * so that the losing attempt can be canceled, which aborts its transfer. The first attempt uses the
+ * request's {@link RetryPolicy}; the hedge is sent once, without retries. Requests which could not
+ * be hedged because the budget is spent run directly on the dispatcher's thread instead.
+ *
+ * <p>There are at most two attempt threads per waiting dispatcher. They are daemon threads which
+ * exit after a minute without work, so the network needs no shutdown.
+ */
+public class HedgingNetwork implements Network {
+
+    /** Default maximum fraction of requests which may be hedged. */
+    private static final double DEFAULT_MAX_HEDGE_RATIO = 0.1;
+
+    /** Maximum number of hedges which may be sent in a burst after a quiet period. */
+    private static final int MAX_HEDGE_BURST = 10;
+
+    private final Network mNetwork;
+    private final HedgeBudget mBudget;
+
+    private final ExecutorService mExecutor =
+            Executors.newCachedThreadPool(
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            Thread thread =
+                                    new Thread(
+                                            new Runnable() {
+                                                @Override
+                                                public void run() {
+                                                    Process.setThreadPriority(
+                                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                                    runnable.run();
+                                                }
+                                            },
+                                            "Volley-Hedging-" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+
+    private final AtomicLong mHedgeCount = new AtomicLong();
+    private final AtomicLong mHedgeWinCount = new AtomicLong();
+
+    /** @param network Network to send requests and their hedges over */
+    public HedgingNetwork(Network network) {
+        this(network, DEFAULT_MAX_HEDGE_RATIO);
+    }
+
+    /**
+     * @param network Network to send requests and their hedges over
+     * @param maxHedgeRatio Maximum fraction of requests with a {@link HedgingPolicy} which may be
+     *     hedged, between 0 and 1
+     */
+    public HedgingNetwork(Network network, double maxHedgeRatio) {
+        if (!(maxHedgeRatio >= 0 && maxHedgeRatio <= 1)) {
+            throw new IllegalArgumentException("Invalid hedge ratio: " + maxHedgeRatio);
+        }
+        mNetwork = network;
+        mBudget = new HedgeBudget(maxHedgeRatio);
+    }
+
+    /** Returns the number of duplicate requests which have been sent. */
+    public long getHedgeCount() {
+        return mHedgeCount.get();
+    }
+
+    /** Returns the number of duplicate requests whose response was used. */
+    public long getHedgeWinCount() {
+        return mHedgeWinCount.get();
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        HedgingPolicy policy = request.getHedgingPolicy();
+        if (policy == null || !isIdempotent(request) || request instanceof StreamingRequest) {
+            return mNetwork.performRequest(request);
+        }
+        mBudget.onRequest();
+        long delayMs = policy.getHedgeDelayMs(request);
+        // Without a token no hedge can be sent, so there is no point in a separate attempt thread.
+        if (delayMs < 0 || !mBudget.hasToken()) {
+            long startMs = SystemClock.elapsedRealtime();
+            NetworkResponse response = mNetwork.performRequest(request);
+            policy.onResponseTime(request, SystemClock.elapsedRealtime() - startMs);
+            return response;
+        }
+        try {
+            return performHedgedRequest(request, policy, delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VolleyError(e);
+        }
+    }
+
+    private NetworkResponse performHedgedRequest(
+            Request<?> request, HedgingPolicy policy, long delayMs)
+            throws VolleyError, InterruptedException {
+        CompletionService<NetworkResponse> completion = new ExecutorCompletionService<>(mExecutor);
+        final AttemptRequest primary = new AttemptRequest(request, request.getRetryPolicy());
+        final AttemptRequest[] hedge = new AttemptRequest[1];
+        // Canceling the request cancels every attempt.
+        request.setCancelAction(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        primary.cancel();
+                        AttemptRequest hedgeAttempt;
+                        synchronized (hedge) {
+                            hedgeAttempt = hedge[0];
+                        }
+                        if (hedgeAttempt != null) {
+                            hedgeAttempt.cancel();
+                        }
+                    }
+                });
+        long startMs = SystemClock.elapsedRealtime();
+        Future<NetworkResponse> primaryFuture = completion.submit(new Attempt(primary));
+        Future<NetworkResponse> hedgeFuture = null;
+        int pending = 1;
+        Future<NetworkResponse> done = completion.poll(delayMs, TimeUnit.MILLISECONDS);
+        if (done == null && !request.isCanceled() && mBudget.tryAcquire()) {
+            request.addMarker("hedge-sent [delay=" + delayMs + "]");
+            mHedgeCount.incrementAndGet();
+            AttemptRequest hedgeAttempt =
+                    new AttemptRequest(
+                            request,
+                            new DefaultRetryPolicy(
+                                    request.getTimeoutMs(),
+                                    /* maxNumRetries= */ 0,
+                                    /* backoffMultiplier= */ 1f));
+            synchronized (hedge) {
+                hedge[0] = hedgeAttempt;
+            }
+            if (request.isCanceled()) {
+                hedgeAttempt.cancel();
+            }
+            hedgeFuture = completion.submit(new Attempt(hedgeAttempt));
+            pending++;
+        }
+        try {
+            VolleyError lastError = null;
+            while (pending > 0) {
+                if (done == null) {
+                    done = completion.take();
+                }
+                pending--;
+                try {
+                    NetworkResponse response = done.get();
+                    if (hedgeFuture != null) {
+                        boolean hedgeWon = done == hedgeFuture;
+                        request.addMarker("hedge-won [attempt=" + (hedgeWon ? 2 : 1) + "]");
+                        if (hedgeWon) {
+                            mHedgeWinCount.incrementAndGet();
+                        }
+                    }
+                    policy.onResponseTime(request, SystemClock.elapsedRealtime() - startMs);
+                    return response;
+                } catch (ExecutionException e) {
+                    // Wait for the other attempt, if any; its result may still be usable.
+                    lastError = toVolleyError(e.getCause());
+                }
+                done = null;
+            }
+            throw lastError;
+        } finally {
+            request.setCancelAction(null);
+            // Abort whichever attempt is still running. Interrupting its thread wouldn't stop
+            // blocking socket I/O, but canceling its request aborts the transfer.
+            if (!primaryFuture.isDone()) {
+                primary.cancel();
+            }
+            if (hedgeFuture != null && !hedgeFuture.isDone()) {
+                hedge[0].cancel();
+            }
+        }
+    }
+
+    private static VolleyError toVolleyError(Throwable cause) {
+        if (cause instanceof VolleyError) {
+            return (VolleyError) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new VolleyError(cause);
+    }
+
+    private static boolean isIdempotent(Request<?> request) {
+        int method = request.getMethod();
+        return method == Request.Method.GET || method == Request.Method.HEAD;
+    }
+
+    /** A single attempt at performing a request over the wrapped network. */
+    private class Attempt implements Callable<NetworkResponse> {
+        private final AttemptRequest mRequest;
+
+        Attempt(AttemptRequest request) {
+            mRequest = request;
+        }
+
+        @Override
+        public NetworkResponse call() throws VolleyError {
+            return mNetwork.performRequest(mRequest);
+        }
+    }
+
+    /**
+     * A copy of a request for one attempt, with its own retry policy and cancel action. The headers
+     * are read from the original; hedged requests have no body.
+     */
+    private static class AttemptRequest extends Request<Void> {
+        private final Request<?> mOriginal;
+
+        AttemptRequest(Request<?> original, RetryPolicy retryPolicy) {
+            super(original.getMethod(), original.getUrl(), /* listener= */ null);
+            mOriginal = original;
+            setRetryPolicy(retryPolicy);
+            setShouldCache(original.shouldCache());
+            setShouldRetryServerErrors(original.shouldRetryServerErrors());
+            setDeadline(original.getDeadline());
+            setCacheEntry(original.getCacheEntry());
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return super.isCanceled() || mOriginal.isCanceled();
+        }
+
+        @Override
+        public void addMarker(String tag) {
+            mOriginal.addMarker(tag);
+        }
+
+        @Override
+        public String getCacheKey() {
+            return mOriginal.getCacheKey();
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            return mOriginal.getHeaders();
+        }
+
+        @Override
+        public Priority getPriority() {
+            return mOriginal.getPriority();
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            // Only the original request parses the response.
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {}
+    }
+
+    /** Earns a fraction of a hedge for every request, so hedges stay within the given ratio. */
+    private static class HedgeBudget {
+        private final double mRatio;
+
+        @GuardedBy("this")
+        private double mTokens = 0;
+
+        HedgeBudget(double ratio) {
+            mRatio = ratio;
+        }
+
+        synchronized void onRequest() {
+            mTokens = Math.min(MAX_HEDGE_BURST, mTokens + mRatio);
+        }
+
+        synchronized boolean hasToken() {
+            return mTokens >= 1;
+        }
+
+        synchronized boolean tryAcquire() {
+            if (mTokens < 1) {
+                return false;
+            }
+            mTokens -= 1;
+            return true;
+        }
+    }
+}
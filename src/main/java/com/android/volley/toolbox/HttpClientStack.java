@@ -17,9 +17,13 @@
 package com.android.volley.toolbox;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.BodyWriter;
 import com.android.volley.Request;
 import com.android.volley.Request.Method;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
@@ -37,7 +41,9 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpTrace;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
@@ -76,7 +82,7 @@ public class HttpClientStack implements HttpStack {
     @Override
     public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
             throws IOException, AuthFailureError {
-        HttpUriRequest httpRequest = createHttpRequest(request, additionalHeaders);
+        final HttpUriRequest httpRequest = createHttpRequest(request, additionalHeaders);
         setHeaders(httpRequest, additionalHeaders);
         // Request.getHeaders() takes precedence over the given additional (cache) headers) and any
         // headers set by createHttpRequest (like the Content-Type header).
@@ -88,7 +94,69 @@ public class HttpClientStack implements HttpStack {
         // data collection and possibly different for wifi vs. 3G.
         HttpConnectionParams.setConnectionTimeout(httpParams, 5000);
         HttpConnectionParams.setSoTimeout(httpParams, timeoutMs);
-        return mClient.execute(httpRequest);
+        // Aborting releases the connection, including while the caller reads the body.
+        request.setCancelAction(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        httpRequest.abort();
+                    }
+                });
+        boolean keepCancelAction = false;
+        try {
+            HttpResponse response = mClient.execute(httpRequest);
+            HttpEntity entity = response != null ? response.getEntity() : null;
+            if (entity != null) {
+                // Keep the action until the caller is done with the body.
+                response.setEntity(new CancelActionClearingEntity(entity, request));
+                keepCancelAction = true;
+            }
+            return response;
+        } finally {
+            if (!keepCancelAction) {
+                request.setCancelAction(null);
+            }
+        }
+    }
+
+    /** Clears the request's cancel action once the response entity has been consumed. */
+    private static class CancelActionClearingEntity extends HttpEntityWrapper {
+        private final Request<?> mRequest;
+
+        CancelActionClearingEntity(HttpEntity entity, Request<?> request) {
+            super(entity);
+            mRequest = request;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream content = super.getContent();
+            if (content == null) {
+                return null;
+            }
+            return new FilterInputStream(content) {
+                @Override
+                public void close() throws IOException {
+                    mRequest.setCancelAction(null);
+                    super.close();
+                }
+            };
+        }
+
+        @Override
+        public void consumeContent() throws IOException {
+            mRequest.setCancelAction(null);
+            super.consumeContent();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try {
+                super.writeTo(out);
+            } finally {
+                mRequest.setCancelAction(null);
+            }
+        }
     }
 
     /** Creates the appropriate subclass of HttpUriRequest for passed in request. */
@@ -155,6 +223,11 @@ public class HttpClientStack implements HttpStack {
     private static void setEntityIfNonEmptyBody(
             HttpEntityEnclosingRequestBase httpRequest, Request<?> request)
             throws AuthFailureError {
+        BodyWriter bodyWriter = request.getBodyWriter();
+        if (bodyWriter != null) {
+            httpRequest.setEntity(new BodyWriterEntity(request, bodyWriter));
+            return;
+        }
         byte[] body = request.getBody();
         if (body != null) {
             HttpEntity entity = new ByteArrayEntity(body);
@@ -171,6 +244,47 @@ public class HttpClientStack implements HttpStack {
         // Nothing.
     }
 
+    /** An entity which streams a request body from its {@link BodyWriter}. */
+    private static class BodyWriterEntity extends AbstractHttpEntity {
+        private final Request<?> mRequest;
+        private final BodyWriter mBodyWriter;
+
+        BodyWriterEntity(Request<?> request, BodyWriter bodyWriter) {
+            mRequest = request;
+            mBodyWriter = bodyWriter;
+            setChunked(bodyWriter.getContentLength() < 0);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mBodyWriter.getContentLength();
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("Body can only be written");
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            OutputStream upload =
+                    new UploadOutputStream(out, mRequest, mBodyWriter.getContentLength());
+            mBodyWriter.writeTo(upload);
+            // The connection's stream is closed by HttpClient.
+            upload.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
     /**
      * The HttpPatch class does not exist in the Android framework, so this has been defined here.
      */
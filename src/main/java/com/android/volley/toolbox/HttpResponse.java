@@ -15,7 +15,9 @@
  */
 package com.android.volley.toolbox;
 
+import android.support.annotation.Nullable;
 import com.android.volley.Header;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.Collections;
 import java.util.List;
@@ -26,7 +28,8 @@ public final class HttpResponse {
     private final int mStatusCode;
     private final List<Header> mHeaders;
     private final int mContentLength;
-    private final InputStream mContent;
+    @Nullable private final InputStream mContent;
+    @Nullable private final byte[] mContentBytes;
 
     /**
      * Construct a new HttpResponse for an empty response body.
@@ -53,6 +56,24 @@ public final class HttpResponse {
         mHeaders = headers;
         mContentLength = contentLength;
         mContent = content;
+        mContentBytes = null;
+    }
+
+    /**
+     * Construct a new HttpResponse whose content has already been read into memory, as is typically
+     * the case for responses from an {@link AsyncHttpStack}.
+     *
+     * @param statusCode the HTTP status code of the response
+     * @param headers the response headers
+     * @param contentBytes the response content. May be null to indicate that the response has no
+     *     content.
+     */
+    public HttpResponse(int statusCode, List<Header> headers, @Nullable byte[] contentBytes) {
+        mStatusCode = statusCode;
+        mHeaders = headers;
+        mContentLength = contentBytes != null ? contentBytes.length : -1;
+        mContent = null;
+        mContentBytes = contentBytes;
     }
 
     /** Returns the HTTP status code of the response. */
@@ -74,7 +95,22 @@ public final class HttpResponse {
      * Returns an {@link InputStream} of the response content. May be null to indicate that the
      * response has no content.
      */
+    @Nullable
     public final InputStream getContent() {
-        return mContent;
+        if (mContent != null) {
+            return mContent;
+        } else if (mContentBytes != null) {
+            return new ByteArrayInputStream(mContentBytes);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the response content if it has already been read into memory, or null if it must be
+     * read from {@link #getContent()} or there is no content.
+     */
+    @Nullable
+    public final byte[] getContentBytes() {
+        return mContentBytes;
     }
 }
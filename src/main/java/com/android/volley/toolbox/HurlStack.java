@@ -16,15 +16,18 @@
 
 package com.android.volley.toolbox;
 
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.support.annotation.VisibleForTesting;
 import com.android.volley.AuthFailureError;
+import com.android.volley.BodyWriter;
 import com.android.volley.Header;
 import com.android.volley.Request;
 import com.android.volley.Request.Method;
-import java.io.DataOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
@@ -85,7 +88,15 @@ public class HurlStack extends BaseHttpStack {
             url = rewritten;
         }
         URL parsedUrl = new URL(url);
-        HttpURLConnection connection = openConnection(parsedUrl, request);
+        final HttpURLConnection connection = openConnection(parsedUrl, request);
+        // Disconnecting aborts the transfer, including the caller's read of the body.
+        request.setCancelAction(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.disconnect();
+                    }
+                });
         boolean keepConnectionOpen = false;
         try {
             for (String headerName : map.keySet()) {
@@ -111,9 +122,10 @@ public class HurlStack extends BaseHttpStack {
                     responseCode,
                     convertHeaders(connection.getHeaderFields()),
                     connection.getContentLength(),
-                    new UrlConnectionInputStream(connection));
+                    new UrlConnectionInputStream(connection, request));
         } finally {
             if (!keepConnectionOpen) {
+                request.setCancelAction(null);
                 connection.disconnect();
             }
         }
@@ -151,18 +163,22 @@ public class HurlStack extends BaseHttpStack {
 
     /**
      * Wrapper for a {@link HttpURLConnection}'s InputStream which disconnects the connection on
-     * stream close.
+     * stream close, and clears the request's cancel action, which would otherwise keep the
+     * connection reachable from the request.
      */
     static class UrlConnectionInputStream extends FilterInputStream {
         private final HttpURLConnection mConnection;
+        private final Request<?> mRequest;
 
-        UrlConnectionInputStream(HttpURLConnection connection) {
+        UrlConnectionInputStream(HttpURLConnection connection, Request<?> request) {
             super(inputStreamFromConnection(connection));
             mConnection = connection;
+            mRequest = request;
         }
 
         @Override
         public void close() throws IOException {
+            mRequest.setCancelAction(null);
             super.close();
             mConnection.disconnect();
         }
@@ -272,25 +288,77 @@ public class HurlStack extends BaseHttpStack {
 
     private static void addBodyIfExists(HttpURLConnection connection, Request<?> request)
             throws IOException, AuthFailureError {
+        BodyWriter bodyWriter = request.getBodyWriter();
+        if (bodyWriter != null) {
+            addBody(connection, request, bodyWriter);
+            return;
+        }
         byte[] body = request.getBody();
         if (body != null) {
             addBody(connection, request, body);
         }
     }
 
-    private static void addBody(HttpURLConnection connection, Request<?> request, byte[] body)
+    private static void addBody(HttpURLConnection connection, Request<?> request, final byte[] body)
+            throws IOException {
+        // Let HttpURLConnection buffer the body and set its Content-Length, so that it can resend
+        // the body itself for authentication challenges and 307/308 redirects.
+        connection.setDoOutput(true);
+        writeBody(
+                connection,
+                request,
+                new BodyWriter() {
+                    @Override
+                    public long getContentLength() {
+                        return body.length;
+                    }
+
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        out.write(body);
+                    }
+                });
+    }
+
+    private static void addBody(
+            HttpURLConnection connection, Request<?> request, BodyWriter bodyWriter)
             throws IOException {
-        // Prepare output. There is no need to set Content-Length explicitly,
-        // since this is handled by HttpURLConnection using the size of the prepared
-        // output stream.
         connection.setDoOutput(true);
+        // Stream the body rather than letting HttpURLConnection buffer it to compute its length.
+        long contentLength = bodyWriter.getContentLength();
+        if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+            connection.setFixedLengthStreamingMode((int) contentLength);
+        } else if (contentLength > Integer.MAX_VALUE
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            setFixedLengthStreamingMode(connection, contentLength);
+        } else {
+            // Unknown length, or a length which can't be declared before API 19.
+            connection.setChunkedStreamingMode(/* chunklen= */ 0);
+        }
+        writeBody(connection, request, bodyWriter);
+    }
+
+    private static void writeBody(
+            HttpURLConnection connection, Request<?> request, BodyWriter bodyWriter)
+            throws IOException {
         // Set the content-type unless it was already set (by Request#getHeaders).
         if (!connection.getRequestProperties().containsKey(HttpHeaderParser.HEADER_CONTENT_TYPE)) {
             connection.setRequestProperty(
                     HttpHeaderParser.HEADER_CONTENT_TYPE, request.getBodyContentType());
         }
-        DataOutputStream out = new DataOutputStream(connection.getOutputStream());
-        out.write(body);
-        out.close();
+        OutputStream out =
+                new UploadOutputStream(
+                        connection.getOutputStream(), request, bodyWriter.getContentLength());
+        try {
+            bodyWriter.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void setFixedLengthStreamingMode(
+            HttpURLConnection connection, long contentLength) {
+        connection.setFixedLengthStreamingMode(contentLength);
     }
 }
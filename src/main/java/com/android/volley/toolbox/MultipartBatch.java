@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.support.annotation.Nullable;
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Encodes requests into the body of a multipart/mixed batch request, and decodes the parts of the
+ * batch response.
+ *
+ * <p>Each part has the content type application/http and holds a complete HTTP message. Request
+ * parts have a Content-ID of {@code <item-N>}, where N is the index of the request in the batch,
+ * and use the absolute URL of the request in their request line. Response parts are matched to
+ * requests by a Content-ID of {@code <response-item-N>}, or by their order if they have none.
+ */
+final class MultipartBatch {
+
+    private static final String CRLF = "\r\n";
+
+    private MultipartBatch() {}
+
+    /** A single response from a batch response. */
+    static class Part {
+        /** Index of the request this part answers, or -1 if the part has no Content-ID. */
+        final int index;
+
+        final int statusCode;
+        final List<Header> headers;
+        final byte[] body;
+
+        Part(int index, int statusCode, List<Header> headers, byte[] body) {
+            this.index = index;
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    /** Returns a boundary which is very unlikely to appear in any part. */
+    static String newBoundary() {
+        return "batch_" + UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /** Returns the content type of a batch request with the given boundary. */
+    static String contentType(String boundary) {
+        return "multipart/mixed; boundary=" + boundary;
+    }
+
+    /** Encodes the given GET requests as the body of a batch request. */
+    static byte[] encodeRequests(List<Request<?>> requests, String boundary)
+            throws AuthFailureError {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < requests.size(); i++) {
+            Request<?> request = requests.get(i);
+            Map<String, String> headers = new HashMap<>();
+            headers.putAll(NetworkUtility.getCacheHeaders(request.getCacheEntry()));
+            // Request.getHeaders() takes precedence over the cache headers, as in HurlStack.
+            headers.putAll(request.getHeaders());
+
+            body.append("--").append(boundary).append(CRLF);
+            body.append("Content-Type: application/http").append(CRLF);
+            body.append("Content-ID: <item-").append(i).append('>').append(CRLF);
+            body.append(CRLF);
+            body.append("GET ").append(request.getUrl()).append(" HTTP/1.1").append(CRLF);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                body.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+            }
+            body.append(CRLF).append(CRLF);
+        }
+        body.append("--").append(boundary).append("--").append(CRLF);
+        return bytes(body.toString());
+    }
+
+    /**
+     * Returns the boundary of a multipart content type, or null if it has none.
+     *
+     * @param contentType Value of a Content-Type header, such as {@code multipart/mixed;
+     *     boundary=batch_1}
+     */
+    @Nullable
+    static String parseBoundary(@Nullable String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            String[] pair = param.trim().split("=", 2);
+            if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("boundary")) {
+                String boundary = pair[1].trim();
+                if (boundary.length() >= 2
+                        && boundary.startsWith("\"")
+                        && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary.isEmpty() ? null : boundary;
+            }
+        }
+        return null;
+    }
+
+    /** Decodes the parts of a batch response body. */
+    static List<Part> parseResponses(byte[] body, String boundary) throws IOException {
+        byte[] delimiter = bytes("--" + boundary);
+        byte[] partEnd = bytes(CRLF + "--" + boundary);
+        List<Part> parts = new ArrayList<>();
+        int position = indexOf(body, delimiter, 0);
+        if (position < 0) {
+            throw new IOException("Batch response has no parts");
+        }
+        position += delimiter.length;
+        while (true) {
+            if (startsWith(body, bytes("--"), position)) {
+                // The closing delimiter.
+                return parts;
+            }
+            int start = indexOf(body, bytes(CRLF), position);
+            int end = start < 0 ? -1 : indexOf(body, partEnd, start);
+            if (end < 0) {
+                throw new IOException("Batch response is truncated");
+            }
+            parts.add(parsePart(Arrays.copyOfRange(body, start + CRLF.length(), end)));
+            position = end + partEnd.length;
+        }
+    }
+
+    private static Part parsePart(byte[] part) throws IOException {
+        // The part's own headers, then the HTTP response it contains.
+        int index = -1;
+        int contentStart = headerBlockEnd(part, 0);
+        for (String line : lines(part, 0, contentStart)) {
+            String[] header = line.split(":", 2);
+            if (header.length == 2 && header[0].trim().equalsIgnoreCase("Content-ID")) {
+                index = parseContentId(header[1].trim());
+            }
+        }
+        int bodyStart = headerBlockEnd(part, contentStart);
+        List<String> lines = lines(part, contentStart, bodyStart);
+        if (lines.isEmpty()) {
+            throw new IOException("Batch response part has no status line");
+        }
+        String[] statusLine = lines.get(0).split(" ", 3);
+        int statusCode;
+        try {
+            statusCode = statusLine.length >= 2 ? Integer.parseInt(statusLine[1]) : -1;
+        } catch (NumberFormatException e) {
+            statusCode = -1;
+        }
+        if (statusCode < 100) {
+            throw new IOException("Bad status line in batch response: " + lines.get(0));
+        }
+        List<Header> headers = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] header = line.split(":", 2);
+            if (header.length == 2) {
+                headers.add(new Header(header[0].trim(), header[1].trim()));
+            }
+        }
+        return new Part(
+                index, statusCode, headers, Arrays.copyOfRange(part, bodyStart, part.length));
+    }
+
+    /** Parses a Content-ID of the form {@code <response-item-N>}, returning N, or -1. */
+    private static int parseContentId(String contentId) {
+        String prefix = "<response-item-";
+        if (!contentId.startsWith(prefix) || !contentId.endsWith(">")) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(contentId.substring(prefix.length(), contentId.length() - 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the index just past the blank line ending the header block which starts at {@code
+     * from}, or the end of the data if there is no blank line.
+     */
+    private static int headerBlockEnd(byte[] data, int from) {
+        if (startsWith(data, bytes(CRLF), from)) {
+            return from + CRLF.length();
+        }
+        int end = indexOf(data, bytes(CRLF + CRLF), from);
+        return end < 0 ? data.length : end + 2 * CRLF.length();
+    }
+
+    /** Returns the non-empty lines between the given indices. */
+    private static List<String> lines(byte[] data, int from, int to) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(data, from, to - from, "UTF-8").split(CRLF)) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix, int from) {
+        if (from + prefix.length > data.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] data, byte[] target, int from) {
+        for (int i = from; i <= data.length - target.length; i++) {
+            if (startsWith(data, target, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
+import com.android.volley.ClientError;
+import com.android.volley.Header;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.Request;
+import com.android.volley.RetryPolicy;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** Logic shared by {@link BasicNetwork} and {@link BasicAsyncNetwork}. */
+final class NetworkUtility {
+
+    private static final int SLOW_REQUEST_THRESHOLD_MS = 3000;
+
+    private NetworkUtility() {}
+
+    /** A failed attempt which may be retried, as determined by {@link #getRetryInfo}. */
+    static class RetryInfo {
+        private final String mLogPrefix;
+        private final VolleyError mErrorToRetry;
+
+        private RetryInfo(String logPrefix, VolleyError errorToRetry) {
+            mLogPrefix = logPrefix;
+            mErrorToRetry = errorToRetry;
+        }
+    }
+
+    /** Logs requests that took over SLOW_REQUEST_THRESHOLD_MS to complete. */
+    static void logSlowRequests(
+            long requestLifetime, Request<?> request, byte[] responseContents, int statusCode) {
+        if (VolleyLog.DEBUG || requestLifetime > SLOW_REQUEST_THRESHOLD_MS) {
+            VolleyLog.d(
+                    "HTTP response for request=<%s> [lifetime=%d], [size=%s], "
+                            + "[rc=%d], [retryCount=%s]",
+                    request,
+                    requestLifetime,
+                    responseContents != null ? responseContents.length : "null",
+                    statusCode,
+                    request.getRetryPolicy().getCurrentRetryCount());
+        }
+    }
+
+    /** Returns the conditional request headers for revalidating the given cache entry. */
+    static Map<String, String> getCacheHeaders(Cache.Entry entry) {
+        // If there's no cache entry, we're done.
+        if (entry == null) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> headers = new HashMap<>();
+
+        if (entry.etag != null) {
+            headers.put("If-None-Match", entry.etag);
+        }
+
+        if (entry.lastModified > 0) {
+            headers.put(
+                    "If-Modified-Since", HttpHeaderParser.formatEpochAsRfc1123(entry.lastModified));
+        }
+
+        return headers;
+    }
+
+    /** Builds the response for an HTTP 304, filling in the body and headers from the cache. */
+    static NetworkResponse getNotModifiedNetworkResponse(
+            Request<?> request, long requestDuration, List<Header> responseHeaders) {
+        Cache.Entry entry = request.getCacheEntry();
+        if (entry == null) {
+            return new NetworkResponse(
+                    HttpURLConnection.HTTP_NOT_MODIFIED,
+                    /* data= */ null,
+                    /* notModified= */ true,
+                    requestDuration,
+                    responseHeaders);
+        }
+        // Combine cached and response headers so the response will be complete.
+        List<Header> combinedHeaders = combineHeaders(responseHeaders, entry);
+        return new NetworkResponse(
+                HttpURLConnection.HTTP_NOT_MODIFIED,
+                entry.data,
+                /* notModified= */ true,
+                requestDuration,
+                combinedHeaders);
+    }
+
+    /**
+     * Reads the contents of an InputStream into a byte[], giving up as soon as the request is
+     * canceled.
+     */
+    static byte[] inputStreamToBytes(
+            Request<?> request, InputStream in, int contentLength, ByteArrayPool pool)
+            throws IOException, ServerError {
+        PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(pool, contentLength);
+        byte[] buffer = null;
+        try {
+            if (in == null) {
+                throw new ServerError();
+            }
+            buffer = pool.getBuf(1024);
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                if (request.isCanceled()) {
+                    throw new IOException("Request was canceled");
+                }
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            try {
+                // Close the InputStream and release the resources by "consuming the content".
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // This can happen if there was an exception above that left the stream in
+                // an invalid state.
+                VolleyLog.v("Error occurred when closing InputStream");
+            }
+            pool.returnBuf(buffer);
+            bytes.close();
+        }
+    }
+
+    /**
+     * Attempts to prepare the request for a retry. If there are no more attempts remaining in the
+     * request's retry policy, or its deadline has passed, the error is thrown.
+     *
+     * @param request The request to use.
+     */
+    static void attemptRetryOnException(Request<?> request, RetryInfo retryInfo)
+            throws VolleyError {
+        RetryPolicy retryPolicy = request.getRetryPolicy();
+        int oldTimeout = request.getTimeoutMs();
+
+        // Nobody is waiting for the response of a canceled request.
+        if (request.isCanceled()) {
+            request.addMarker(
+                    String.format("%s-canceled [timeout=%s]", retryInfo.mLogPrefix, oldTimeout));
+            throw retryInfo.mErrorToRetry;
+        }
+
+        if (request.hasDeadlinePassed()) {
+            request.addMarker(
+                    String.format(
+                            "%s-deadline-giveup [timeout=%s]", retryInfo.mLogPrefix, oldTimeout));
+            throw retryInfo.mErrorToRetry;
+        }
+
+        try {
+            retryPolicy.retry(retryInfo.mErrorToRetry);
+        } catch (VolleyError e) {
+            request.addMarker(
+                    String.format(
+                            "%s-timeout-giveup [timeout=%s]", retryInfo.mLogPrefix, oldTimeout));
+            throw e;
+        }
+        request.addMarker(String.format("%s-retry [timeout=%s]", retryInfo.mLogPrefix, oldTimeout));
+    }
+
+    /**
+     * Determines whether a failed attempt may be retried.
+     *
+     * @param exception The exception which ended the attempt
+     * @param requestStartMs Time the first attempt was started
+     * @param httpResponse The response of the attempt, or null if none was received
+     * @param responseContents The body of the response, or null if it wasn't read
+     * @return The error to pass to the request's retry policy
+     * @throws VolleyError if the error should not be retried
+     */
+    static RetryInfo getRetryInfo(
+            Request<?> request,
+            IOException exception,
+            long requestStartMs,
+            @Nullable HttpResponse httpResponse,
+            @Nullable byte[] responseContents)
+            throws VolleyError {
+        if (exception instanceof SocketTimeoutException) {
+            return new RetryInfo("socket", new TimeoutError());
+        } else if (exception instanceof MalformedURLException) {
+            throw new RuntimeException("Bad URL " + request.getUrl(), exception);
+        } else {
+            int statusCode;
+            if (httpResponse != null) {
+                statusCode = httpResponse.getStatusCode();
+            } else {
+                throw new NoConnectionError(exception);
+            }
+            VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
+            NetworkResponse networkResponse;
+            if (responseContents != null) {
+                List<Header> responseHeaders = httpResponse.getHeaders();
+                networkResponse =
+                        new NetworkResponse(
+                                statusCode,
+                                responseContents,
+                                /* notModified= */ false,
+                                SystemClock.elapsedRealtime() - requestStartMs,
+                                responseHeaders);
+                if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED
+                        || statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
+                    return new RetryInfo("auth", new AuthFailureError(networkResponse));
+                } else if (statusCode >= 400 && statusCode <= 499) {
+                    // Don't retry other client errors.
+                    throw new ClientError(networkResponse);
+                } else if (statusCode >= 500 && statusCode <= 599) {
+                    if (request.shouldRetryServerErrors()) {
+                        return new RetryInfo("server", new ServerError(networkResponse));
+                    } else {
+                        throw new ServerError(networkResponse);
+                    }
+                } else {
+                    // 3xx? No reason to retry.
+                    throw new ServerError(networkResponse);
+                }
+            } else {
+                return new RetryInfo("network", new NetworkError());
+            }
+        }
+    }
+
+    /**
+     * Combine cache headers with network response headers for an HTTP 304 response.
+     *
+     * <p>An HTTP 304 response does not have all header fields. We have to use the header fields
+     * from the cache entry plus the new ones from the response. See also:
+     * http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.3.5
+     *
+     * @param responseHeaders Headers from the network response.
+     * @param entry The cached response.
+     * @return The combined list of headers.
+     */
+    private static List<Header> combineHeaders(List<Header> responseHeaders, Cache.Entry entry) {
+        // First, create a case-insensitive set of header names from the network
+        // response.
+        Set<String> headerNamesFromNetworkResponse = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        if (!responseHeaders.isEmpty()) {
+            for (Header header : responseHeaders) {
+                headerNamesFromNetworkResponse.add(header.getName());
+            }
+        }
+
+        // Second, add headers from the cache entry to the network response as long as
+        // they didn't appear in the network response, which should take precedence.
+        List<Header> combinedHeaders = new ArrayList<>(responseHeaders);
+        if (entry.allResponseHeaders != null) {
+            if (!entry.allResponseHeaders.isEmpty()) {
+                for (Header header : entry.allResponseHeaders) {
+                    if (!headerNamesFromNetworkResponse.contains(header.getName())) {
+                        combinedHeaders.add(header);
+                    }
+                }
+            }
+        } else {
+            // Legacy caches only have entry.responseHeaders.
+            if (!entry.responseHeaders.isEmpty()) {
+                for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+                    if (!headerNamesFromNetworkResponse.contains(header.getKey())) {
+                        combinedHeaders.add(new Header(header.getKey(), header.getValue()));
+                    }
+                }
+            }
+        }
+        return combinedHeaders;
+    }
+}
@@ -0,0 +1,1186 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import com.android.volley.AuthFailureError;
+import com.android.volley.BodyWriter;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.VolleyLog;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * An {@link AsyncHttpStack} which speaks HTTP/1.1 over non-blocking {@link SocketChannel}s.
+ *
+ * <p>A single I/O thread drives all connections with a {@link Selector}, so requests which are
+ * waiting on the network don't each hold a thread. Connections are kept alive and reused for later
+ * requests to the same host. Response bodies are read ahead of the caller into pooled direct
+ * buffers, and reading pauses while the caller falls behind. Chunked bodies are decoded as they are
+ * read. The I/O thread exits once there are no connections left.
+ *
+ * <p>Only {@code http} URLs are supported. Request bodies are buffered in memory before they are
+ * sent. Callbacks are invoked on the executor set with {@link #setNonBlockingExecutor}, or on the
+ * I/O thread if there is none, in which case they must not block. Response bodies must be read on
+ * another thread.
+ */
+public class NioHttpStack extends AsyncHttpStack {
+
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+
+    /** Time after which an idle connection is closed. */
+    private static final long IDLE_CONNECTION_TIMEOUT_MS = 60 * 1000;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    /** Number of buffers read ahead of the caller of a response body before reading pauses. */
+    private static final int MAX_READ_AHEAD_BUFFERS = 4;
+
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final int mMaxIdleConnectionsPerHost;
+
+    /** Lock to guard the I/O thread's selector and the tasks posted to it. */
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final List<Runnable> mTasks = new ArrayList<>();
+
+    /** Selector of the running I/O thread, or null if it isn't running. */
+    @Nullable
+    @GuardedBy("mLock")
+    private Selector mSelector;
+
+    /** Selector of the I/O thread. Only used on the I/O thread. */
+    private Selector mIoSelector;
+
+    /** Idle connections by host and port. Only used on the I/O thread. */
+    private final Map<String, Deque<Connection>> mIdleConnections = new HashMap<>();
+
+    @GuardedBy("mBufferPool")
+    private final Deque<ByteBuffer> mBufferPool = new ArrayDeque<>();
+
+    public NioHttpStack() {
+        this(DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST);
+    }
+
+    /** @param maxIdleConnectionsPerHost Number of idle connections kept open to each host */
+    public NioHttpStack(int maxIdleConnectionsPerHost) {
+        if (maxIdleConnectionsPerHost < 0) {
+            throw new IllegalArgumentException(
+                    "maxIdleConnectionsPerHost must not be negative: " + maxIdleConnectionsPerHost);
+        }
+        mMaxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+    }
+
+    @Override
+    public void executeRequest(
+            final Request<?> request,
+            final Map<String, String> additionalHeaders,
+            final OnRequestComplete callback) {
+        Runnable prepare =
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        prepareExchange(request, additionalHeaders, callback);
+                    }
+                };
+        // Resolving the host and serializing the body may block.
+        ExecutorService blockingExecutor = getBlockingExecutor();
+        if (blockingExecutor != null) {
+            blockingExecutor.execute(prepare);
+        } else {
+            prepare.run();
+        }
+    }
+
+    private void prepareExchange(
+            Request<?> request, Map<String, String> additionalHeaders, OnRequestComplete callback) {
+        final Exchange exchange;
+        try {
+            exchange = newExchange(request, additionalHeaders, callback);
+        } catch (AuthFailureError e) {
+            callback.onAuthError(e);
+            return;
+        } catch (IOException e) {
+            callback.onError(e);
+            return;
+        }
+        request.setCancelAction(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        postQuietly(
+                                new ExchangeTask(exchange) {
+                                    @Override
+                                    public void run() {
+                                        abort(exchange, new IOException("Request was canceled"));
+                                    }
+                                });
+                    }
+                });
+        try {
+            post(
+                    new ExchangeTask(exchange) {
+                        @Override
+                        public void run() {
+                            start(exchange, /* allowPooled= */ true);
+                        }
+                    });
+        } catch (IOException e) {
+            callback.onError(e);
+        }
+    }
+
+    private Exchange newExchange(
+            Request<?> request, Map<String, String> additionalHeaders, OnRequestComplete callback)
+            throws IOException, AuthFailureError {
+        URL url = new URL(request.getUrl());
+        if (!"http".equals(url.getProtocol())) {
+            throw new IOException("Unsupported protocol: " + url.getProtocol());
+        }
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String target = url.getFile().isEmpty() ? "/" : url.getFile();
+
+        Map<String, String> headers = new HashMap<>(additionalHeaders);
+        // Request.getHeaders() takes precedence over the given additional (cache) headers.
+        headers.putAll(request.getHeaders());
+        String method = methodOf(request);
+        byte[] body = bodyOf(request);
+
+        StringBuilder head = new StringBuilder();
+        checkHeaderField(target);
+        head.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+        if (!containsHeader(headers, "Host")) {
+            head.append("Host: ").append(host);
+            if (url.getPort() != -1) {
+                head.append(':').append(port);
+            }
+            head.append("\r\n");
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            appendHeader(head, header.getKey(), header.getValue());
+        }
+        if (body != null) {
+            if (!containsHeader(headers, HttpHeaderParser.HEADER_CONTENT_TYPE)) {
+                appendHeader(
+                        head, HttpHeaderParser.HEADER_CONTENT_TYPE, request.getBodyContentType());
+            }
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+        return new Exchange(
+                request,
+                callback,
+                host + ":" + port,
+                address,
+                ByteBuffer.wrap(head.toString().getBytes(ISO_8859_1)),
+                ByteBuffer.wrap(body != null ? body : new byte[0]));
+    }
+
+    /**
+     * Appends a header line, refusing names and values which would split the request as {@link
+     * java.net.HttpURLConnection} does.
+     */
+    private static void appendHeader(StringBuilder head, String name, String value)
+            throws IOException {
+        if (name.isEmpty() || name.indexOf(':') != -1) {
+            throw new IOException("Invalid header name: " + name);
+        }
+        checkHeaderField(name);
+        checkHeaderField(value);
+        head.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    private static void checkHeaderField(String field) throws IOException {
+        if (field.indexOf('\r') != -1 || field.indexOf('\n') != -1) {
+            throw new IOException("Illegal line break in request head: " + field);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static String methodOf(Request<?> request) throws AuthFailureError {
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                // If the request's post body is null, then the request is a GET, otherwise a POST.
+                return request.getPostBody() != null ? "POST" : "GET";
+            case Method.GET:
+                return "GET";
+            case Method.DELETE:
+                return "DELETE";
+            case Method.POST:
+                return "POST";
+            case Method.PUT:
+                return "PUT";
+            case Method.HEAD:
+                return "HEAD";
+            case Method.OPTIONS:
+                return "OPTIONS";
+            case Method.TRACE:
+                return "TRACE";
+            case Method.PATCH:
+                return "PATCH";
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    @Nullable
+    @SuppressWarnings("deprecation")
+    private static byte[] bodyOf(Request<?> request) throws IOException, AuthFailureError {
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                return request.getPostBody();
+            case Method.POST:
+            case Method.PUT:
+            case Method.PATCH:
+                BodyWriter bodyWriter = request.getBodyWriter();
+                if (bodyWriter == null) {
+                    return request.getBody();
+                }
+                long contentLength = bodyWriter.getContentLength();
+                ByteArrayOutputStream out =
+                        new ByteArrayOutputStream(
+                                contentLength >= 0 && contentLength <= Integer.MAX_VALUE
+                                        ? (int) contentLength
+                                        : BUFFER_SIZE);
+                bodyWriter.writeTo(out);
+                return out.toByteArray();
+            default:
+                return null;
+        }
+    }
+
+    private static boolean containsHeader(Map<String, String> headers, String name) {
+        for (String key : headers.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Runs the task on the I/O thread, starting the thread if needed. */
+    private void post(Runnable task) throws IOException {
+        synchronized (mLock) {
+            if (mSelector == null) {
+                final Selector selector = Selector.open();
+                Thread thread =
+                        new Thread(
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        runLoop(selector);
+                                    }
+                                },
+                                "Volley-NioHttpStack");
+                thread.setDaemon(true);
+                thread.start();
+                mSelector = selector;
+            }
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+    }
+
+    private void postQuietly(Runnable task) {
+        try {
+            post(task);
+        } catch (IOException e) {
+            VolleyLog.e(e, "Could not start the I/O thread");
+        }
+    }
+
+    private void runLoop(Selector selector) {
+        mIoSelector = selector;
+        while (true) {
+            List<Runnable> tasks;
+            synchronized (mLock) {
+                if (mTasks.isEmpty() && selector.keys().isEmpty()) {
+                    mSelector = null;
+                    break;
+                }
+                tasks = new ArrayList<>(mTasks);
+                mTasks.clear();
+            }
+            for (Runnable task : tasks) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // Only the task's own exchange is affected; the loop keeps serving the others.
+                    onUnexpectedError(
+                            task instanceof ExchangeTask ? ((ExchangeTask) task).exchange : null,
+                            e);
+                }
+            }
+            long waitMs = checkTimeouts(selector, SystemClock.elapsedRealtime());
+            try {
+                selector.select(waitMs);
+            } catch (IOException e) {
+                VolleyLog.e(e, "Selector failed");
+                List<Runnable> pending;
+                synchronized (mLock) {
+                    mSelector = null;
+                    pending = new ArrayList<>(mTasks);
+                    mTasks.clear();
+                }
+                for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                    Connection connection = (Connection) key.attachment();
+                    if (connection.exchange != null) {
+                        abort(connection.exchange, e);
+                    }
+                    close(connection);
+                }
+                // Hand the remaining tasks to a new I/O thread.
+                for (Runnable task : pending) {
+                    postQuietly(task);
+                }
+                break;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    Connection connection = (Connection) key.attachment();
+                    Exchange exchange = connection.exchange;
+                    try {
+                        onReady(connection);
+                    } catch (RuntimeException e) {
+                        onUnexpectedError(exchange, e);
+                        close(connection);
+                    }
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            VolleyLog.v("Error occurred when closing Selector");
+        }
+    }
+
+    /**
+     * Closes idle connections and fails exchanges which have timed out, returning the time until
+     * the next deadline.
+     */
+    private long checkTimeouts(Selector selector, long nowMs) {
+        long waitMs = IDLE_CONNECTION_TIMEOUT_MS;
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            Connection connection = (Connection) key.attachment();
+            Exchange exchange = connection.exchange;
+            if (exchange == null) {
+                long idleMs = nowMs - connection.idleSinceMs;
+                if (idleMs >= IDLE_CONNECTION_TIMEOUT_MS) {
+                    close(connection);
+                } else {
+                    waitMs = Math.min(waitMs, IDLE_CONNECTION_TIMEOUT_MS - idleMs);
+                }
+            } else if (!exchange.completed) {
+                // Once the response has arrived, its reader enforces the timeout.
+                if (nowMs >= exchange.deadlineMs) {
+                    fail(
+                            exchange,
+                            new SocketTimeoutException(
+                                    "Timed out after " + exchange.timeoutMs + " ms"));
+                } else {
+                    waitMs = Math.min(waitMs, exchange.deadlineMs - nowMs);
+                }
+            }
+        }
+        return Math.max(1, waitMs);
+    }
+
+    /** Sends the exchange's request, over an idle connection to its host if there is one. */
+    private void start(Exchange exchange, boolean allowPooled) {
+        if (exchange.completed) {
+            return;
+        }
+        if (exchange.request.isCanceled()) {
+            abort(exchange, new IOException("Request was canceled"));
+            return;
+        }
+        Connection connection = allowPooled ? takeIdleConnection(exchange.hostKey) : null;
+        try {
+            if (connection != null) {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                connection = openConnection(exchange);
+            }
+        } catch (IOException e) {
+            abort(exchange, e);
+            return;
+        }
+        connection.exchange = exchange;
+        exchange.connection = connection;
+        exchange.deadlineMs = SystemClock.elapsedRealtime() + exchange.timeoutMs;
+    }
+
+    @Nullable
+    private Connection takeIdleConnection(String hostKey) {
+        Deque<Connection> idle = mIdleConnections.get(hostKey);
+        while (idle != null && !idle.isEmpty()) {
+            Connection connection = idle.pop();
+            if (connection.key.isValid() && connection.channel.isOpen()) {
+                connection.reused = true;
+                return connection;
+            }
+            close(connection);
+        }
+        return null;
+    }
+
+    private Connection openConnection(Exchange exchange) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean connected = channel.connect(exchange.address);
+            Connection connection = new Connection(exchange.hostKey, channel);
+            connection.key =
+                    channel.register(
+                            mIoSelector,
+                            connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT,
+                            connection);
+            return connection;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private void onReady(Connection connection) {
+        Exchange exchange = connection.exchange;
+        if (exchange == null) {
+            // An idle connection was closed by the server, or received something unexpected.
+            close(connection);
+            return;
+        }
+        SelectionKey key = connection.key;
+        try {
+            if (key.isConnectable()) {
+                connection.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+                exchange.deadlineMs = SystemClock.elapsedRealtime() + exchange.timeoutMs;
+            } else if (key.isWritable()) {
+                writeRequest(exchange);
+            } else if (key.isReadable()) {
+                if (exchange.responseBody == null) {
+                    readHead(exchange);
+                } else {
+                    readBody(exchange);
+                }
+            }
+        } catch (IOException e) {
+            fail(exchange, e);
+        }
+    }
+
+    private void writeRequest(Exchange exchange) throws IOException {
+        Connection connection = exchange.connection;
+        int bodyPosition = exchange.requestBody.position();
+        connection.channel.write(exchange.requestBuffers);
+        int bodyWritten = exchange.requestBody.position();
+        if (bodyWritten > bodyPosition) {
+            Request.UploadProgressListener listener = exchange.request.getUploadProgressListener();
+            if (listener != null) {
+                listener.onUploadProgress(bodyWritten, exchange.requestBody.limit());
+            }
+        }
+        if (!exchange.requestBody.hasRemaining()) {
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+        exchange.deadlineMs = SystemClock.elapsedRealtime() + exchange.timeoutMs;
+    }
+
+    private void readHead(Exchange exchange) throws IOException {
+        Connection connection = exchange.connection;
+        ByteBuffer buffer = obtainBuffer();
+        int count;
+        try {
+            count = connection.channel.read(buffer);
+        } catch (IOException e) {
+            recycleBuffer(buffer);
+            throw e;
+        }
+        if (count == -1) {
+            recycleBuffer(buffer);
+            throw new EOFException("Connection closed before the response was received");
+        }
+        exchange.receivedResponse |= count > 0;
+        exchange.deadlineMs = SystemClock.elapsedRealtime() + exchange.timeoutMs;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            exchange.head.write(b);
+            if (exchange.head.size() > MAX_HEAD_SIZE) {
+                recycleBuffer(buffer);
+                throw new IOException("Response head is too large");
+            }
+            if (b == '\r') {
+                continue;
+            } else if (b != '\n') {
+                exchange.headLineLength++;
+                continue;
+            } else if (exchange.headLineLength > 0) {
+                exchange.headLineLength = 0;
+                continue;
+            }
+            // An empty line ends the head.
+            String[] lines = new String(exchange.head.toByteArray(), ISO_8859_1).split("\r?\n");
+            exchange.head.reset();
+            int statusCode;
+            try {
+                statusCode = parseStatusCode(lines[0]);
+            } catch (IOException e) {
+                recycleBuffer(buffer);
+                throw e;
+            }
+            if (statusCode >= 100 && statusCode < HttpURLConnection.HTTP_OK) {
+                // Skip interim responses such as 100 Continue.
+                continue;
+            }
+            onHead(exchange, lines, statusCode, buffer);
+            return;
+        }
+        recycleBuffer(buffer);
+    }
+
+    private static int parseStatusCode(String statusLine) throws IOException {
+        // For example "HTTP/1.1 200 OK".
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+    }
+
+    /**
+     * Delivers a response whose head has been read.
+     *
+     * @param buffer Buffer positioned after the head, which is taken over by this method
+     */
+    private void onHead(Exchange exchange, String[] lines, int statusCode, ByteBuffer buffer)
+            throws IOException {
+        List<Header> headers = new ArrayList<>(lines.length - 1);
+        boolean keepAlive = lines[0].startsWith("HTTP/1.1");
+        boolean chunked = false;
+        long contentLength = -1;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            headers.add(new Header(name, value));
+            if (name.equalsIgnoreCase("Connection")) {
+                if (value.equalsIgnoreCase("close")) {
+                    keepAlive = false;
+                } else if (value.equalsIgnoreCase("keep-alive")) {
+                    keepAlive = true;
+                }
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase().contains("chunked");
+            } else if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    recycleBuffer(buffer);
+                    throw new IOException("Invalid Content-Length: " + value);
+                }
+            }
+        }
+        if (chunked) {
+            contentLength = -1;
+        }
+        boolean hasBody =
+                exchange.expectsBody
+                        && statusCode != HttpURLConnection.HTTP_NO_CONTENT
+                        && statusCode != HttpURLConnection.HTTP_NOT_MODIFIED
+                        && contentLength != 0;
+        if (!hasBody) {
+            release(exchange, keepAlive && !buffer.hasRemaining());
+            recycleBuffer(buffer);
+            complete(exchange, new HttpResponse(statusCode, headers), null);
+            return;
+        }
+        if (!chunked && contentLength < 0) {
+            // The body ends when the server closes the connection.
+            keepAlive = false;
+        }
+        ResponseBody body = new ResponseBody(exchange, chunked, contentLength, keepAlive);
+        exchange.responseBody = body;
+        if (!buffer.hasRemaining()) {
+            recycleBuffer(buffer);
+        } else if (!body.offer(buffer)) {
+            exchange.connection.key.interestOps(0);
+        }
+        complete(
+                exchange,
+                new HttpResponse(
+                        statusCode,
+                        headers,
+                        contentLength <= Integer.MAX_VALUE ? (int) contentLength : -1,
+                        body),
+                null);
+    }
+
+    private void readBody(Exchange exchange) throws IOException {
+        Connection connection = exchange.connection;
+        ByteBuffer buffer = obtainBuffer();
+        int count;
+        try {
+            count = connection.channel.read(buffer);
+        } catch (IOException e) {
+            recycleBuffer(buffer);
+            throw e;
+        }
+        if (count <= 0) {
+            recycleBuffer(buffer);
+            if (count == -1) {
+                // The connection is closed once the body has been read.
+                connection.key.interestOps(0);
+                exchange.responseBody.endOfStream();
+            }
+            return;
+        }
+        buffer.flip();
+        if (!exchange.responseBody.offer(buffer)) {
+            // Wait for the reader to catch up.
+            connection.key.interestOps(0);
+        }
+    }
+
+    /** Resumes reading a body once its reader has caught up. */
+    private void resume(Exchange exchange) {
+        Connection connection = exchange.connection;
+        if (connection != null && connection.exchange == exchange && connection.key.isValid()) {
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /** Ends the exchange, keeping its connection for later requests if it is reusable. */
+    private void release(Exchange exchange, boolean reusable) {
+        Connection connection = exchange.connection;
+        if (connection == null || connection.exchange != exchange) {
+            return;
+        }
+        connection.exchange = null;
+        exchange.connection = null;
+        Deque<Connection> idle = mIdleConnections.get(connection.hostKey);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            mIdleConnections.put(connection.hostKey, idle);
+        }
+        if (!reusable || !connection.key.isValid() || idle.size() >= mMaxIdleConnectionsPerHost) {
+            close(connection);
+            return;
+        }
+        // Stay registered for reads, to notice when the server closes the connection.
+        connection.key.interestOps(SelectionKey.OP_READ);
+        connection.idleSinceMs = SystemClock.elapsedRealtime();
+        idle.push(connection);
+    }
+
+    /**
+     * Fails the exchange after an I/O error. A request which fails on a reused connection before
+     * any of the response arrives is sent again on a new one, as the server may have closed the
+     * connection while it was idle.
+     */
+    private void fail(Exchange exchange, IOException error) {
+        Connection connection = exchange.connection;
+        if (!exchange.completed
+                && connection != null
+                && connection.reused
+                && !exchange.receivedResponse) {
+            close(connection);
+            exchange.connection = null;
+            exchange.requestHead.rewind();
+            exchange.requestBody.rewind();
+            start(exchange, /* allowPooled= */ false);
+            return;
+        }
+        abort(exchange, error);
+    }
+
+    /** Logs an exception thrown on the I/O thread and aborts the affected exchange, if any. */
+    private void onUnexpectedError(@Nullable Exchange exchange, RuntimeException e) {
+        VolleyLog.e(e, "Unexpected error on the I/O thread");
+        if (exchange == null) {
+            return;
+        }
+        try {
+            abort(exchange, new IOException(e));
+        } catch (RuntimeException again) {
+            VolleyLog.e(again, "Could not abort the exchange");
+        }
+    }
+
+    /** Closes the exchange's connection and reports the error to the caller. */
+    private void abort(Exchange exchange, IOException error) {
+        Connection connection = exchange.connection;
+        if (connection != null && connection.exchange == exchange) {
+            close(connection);
+        }
+        exchange.connection = null;
+        if (!exchange.completed) {
+            complete(exchange, null, error);
+        } else if (exchange.responseBody != null) {
+            exchange.responseBody.fail(error);
+        }
+    }
+
+    private void close(Connection connection) {
+        connection.exchange = null;
+        connection.key.cancel();
+        closeQuietly(connection.channel);
+        Deque<Connection> idle = mIdleConnections.get(connection.hostKey);
+        if (idle != null) {
+            idle.remove(connection);
+            if (idle.isEmpty()) {
+                mIdleConnections.remove(connection.hostKey);
+            }
+        }
+    }
+
+    private void complete(
+            final Exchange exchange,
+            @Nullable final HttpResponse response,
+            @Nullable final IOException error) {
+        exchange.completed = true;
+        Runnable callback =
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (response != null) {
+                            exchange.callback.onSuccess(response);
+                        } else {
+                            exchange.callback.onError(error);
+                        }
+                    }
+                };
+        ExecutorService nonBlockingExecutor = getNonBlockingExecutor();
+        if (nonBlockingExecutor != null) {
+            nonBlockingExecutor.execute(callback);
+        } else {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                // The exchange is already complete; don't let the caller's error stop the loop.
+                VolleyLog.e(e, "Request callback failed");
+            }
+        }
+    }
+
+    private ByteBuffer obtainBuffer() {
+        synchronized (mBufferPool) {
+            ByteBuffer buffer = mBufferPool.poll();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private void recycleBuffer(ByteBuffer buffer) {
+        synchronized (mBufferPool) {
+            if (mBufferPool.size() < MAX_POOLED_BUFFERS) {
+                mBufferPool.push(buffer);
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            VolleyLog.v("Error occurred when closing SocketChannel");
+        }
+    }
+
+    /** A connection to a host. Only used on the I/O thread. */
+    private static class Connection {
+        final String hostKey;
+        final SocketChannel channel;
+        SelectionKey key;
+
+        /** The exchange using this connection, or null if it is idle. */
+        @Nullable Exchange exchange;
+
+        /** Whether this connection was idle before it was used by its current exchange. */
+        boolean reused = false;
+
+        long idleSinceMs;
+
+        Connection(String hostKey, SocketChannel channel) {
+            this.hostKey = hostKey;
+            this.channel = channel;
+        }
+    }
+
+    /** A request and its response. Only used on the I/O thread, unless stated otherwise. */
+    /** A task for one exchange, which is aborted if the task throws. */
+    private abstract static class ExchangeTask implements Runnable {
+        final Exchange exchange;
+
+        ExchangeTask(Exchange exchange) {
+            this.exchange = exchange;
+        }
+    }
+
+    private static class Exchange {
+        final Request<?> request;
+        final OnRequestComplete callback;
+        final String hostKey;
+        final InetSocketAddress address;
+        final ByteBuffer requestHead;
+        final ByteBuffer requestBody;
+        final ByteBuffer[] requestBuffers;
+        final int timeoutMs;
+        final boolean expectsBody;
+
+        @Nullable Connection connection;
+        long deadlineMs;
+
+        /** Whether the callback has been invoked. */
+        boolean completed = false;
+
+        /** Whether any of the response has arrived. */
+        boolean receivedResponse = false;
+
+        /** The response head read so far. */
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+
+        /** Length of the current line of the head, excluding line breaks. */
+        int headLineLength = 0;
+
+        /** The body of the response, once its head has been read. Read on any thread. */
+        @Nullable ResponseBody responseBody;
+
+        Exchange(
+                Request<?> request,
+                OnRequestComplete callback,
+                String hostKey,
+                InetSocketAddress address,
+                ByteBuffer requestHead,
+                ByteBuffer requestBody) {
+            this.request = request;
+            this.callback = callback;
+            this.hostKey = hostKey;
+            this.address = address;
+            this.requestHead = requestHead;
+            this.requestBody = requestBody;
+            this.requestBuffers = new ByteBuffer[] {requestHead, requestBody};
+            this.timeoutMs = request.getTimeoutMs();
+            this.expectsBody = request.getMethod() != Method.HEAD;
+        }
+    }
+
+    /**
+     * The body of a response. It is read ahead by the I/O thread, and decoded on the thread reading
+     * it. The connection is handed back to the I/O thread once the body ends or is closed.
+     */
+    private class ResponseBody extends InputStream {
+        private final Exchange mExchange;
+        private final boolean mChunked;
+        private final boolean mKeepAlive;
+
+        /** Lock to guard the buffers as they are filled by the I/O thread and drained on read. */
+        private final Object mBufferLock = new Object();
+
+        @GuardedBy("mBufferLock")
+        private final Deque<ByteBuffer> mBuffers = new ArrayDeque<>();
+
+        /** Whether the server has closed the connection. */
+        @GuardedBy("mBufferLock")
+        private boolean mEndOfStream = false;
+
+        @Nullable
+        @GuardedBy("mBufferLock")
+        private IOException mError;
+
+        /** Whether the I/O thread has stopped reading until this body is read further. */
+        @GuardedBy("mBufferLock")
+        private boolean mPaused = false;
+
+        /** Bytes left in the body, or in the current chunk of a chunked body. */
+        private long mRemaining;
+
+        private boolean mFirstChunk = true;
+
+        /** Whether the end of the body has been reached or the body has been closed. */
+        private boolean mDone = false;
+
+        ResponseBody(Exchange exchange, boolean chunked, long contentLength, boolean keepAlive) {
+            mExchange = exchange;
+            mChunked = chunked;
+            mKeepAlive = keepAlive;
+            mRemaining = chunked ? 0 : contentLength;
+        }
+
+        /**
+         * Adds data read by the I/O thread. Returns whether reading may continue, or false if it
+         * should pause until {@link #resume} is posted.
+         */
+        boolean offer(ByteBuffer buffer) {
+            synchronized (mBufferLock) {
+                mBuffers.add(buffer);
+                mBufferLock.notifyAll();
+                if (mBuffers.size() >= MAX_READ_AHEAD_BUFFERS) {
+                    mPaused = true;
+                    return false;
+                }
+                return true;
+            }
+        }
+
+        void endOfStream() {
+            synchronized (mBufferLock) {
+                mEndOfStream = true;
+                mBufferLock.notifyAll();
+            }
+        }
+
+        void fail(IOException error) {
+            synchronized (mBufferLock) {
+                mError = error;
+                mBufferLock.notifyAll();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mDone) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            if (mChunked && mRemaining == 0) {
+                if (!mFirstChunk) {
+                    // The line break after the previous chunk.
+                    readLine();
+                }
+                mFirstChunk = false;
+                mRemaining = readChunkSize();
+                if (mRemaining == 0) {
+                    while (!readLine().isEmpty()) {
+                        // Skip the trailers.
+                    }
+                    finish(/* reusable= */ true);
+                    return -1;
+                }
+            }
+            boolean delimited = mChunked || mRemaining >= 0;
+            int count =
+                    readRaw(
+                            buffer,
+                            offset,
+                            delimited ? (int) Math.min(length, mRemaining) : length);
+            if (count == -1) {
+                if (delimited) {
+                    throw new EOFException("Unexpected end of response body");
+                }
+                finish(/* reusable= */ false);
+                return -1;
+            }
+            if (delimited) {
+                mRemaining -= count;
+                if (!mChunked && mRemaining == 0) {
+                    // Hand back the connection right away, rather than on the next read.
+                    finish(/* reusable= */ true);
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mDone) {
+                return;
+            }
+            // The rest of the body would have to be read before the connection could be reused.
+            mDone = true;
+            recycleBuffers();
+            post(
+                    new ExchangeTask(mExchange) {
+                        @Override
+                        public void run() {
+                            abort(exchange, new IOException("Response body was closed"));
+                        }
+                    });
+        }
+
+        private void finish(boolean reusable) throws IOException {
+            mDone = true;
+            final boolean reuse;
+            synchronized (mBufferLock) {
+                // Data after the end of the body means the connection is out of step.
+                reuse = reusable && mKeepAlive && mBuffers.isEmpty() && !mEndOfStream;
+            }
+            recycleBuffers();
+            mExchange.request.setCancelAction(null);
+            post(
+                    new ExchangeTask(mExchange) {
+                        @Override
+                        public void run() {
+                            release(exchange, reuse);
+                        }
+                    });
+        }
+
+        private void recycleBuffers() {
+            synchronized (mBufferLock) {
+                for (ByteBuffer buffer : mBuffers) {
+                    recycleBuffer(buffer);
+                }
+                mBuffers.clear();
+            }
+        }
+
+        private long readChunkSize() throws IOException {
+            String line = readLine();
+            int semicolon = line.indexOf(';');
+            String size = (semicolon >= 0 ? line.substring(0, semicolon) : line).trim();
+            try {
+                long result = Long.parseLong(size, 16);
+                if (result < 0) {
+                    throw new NumberFormatException();
+                }
+                return result;
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            byte[] b = new byte[1];
+            while (true) {
+                if (readRaw(b, 0, 1) == -1) {
+                    throw new EOFException("Unexpected end of chunked response body");
+                }
+                if (b[0] == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                if (line.length() >= MAX_HEAD_SIZE) {
+                    throw new IOException("Chunk header is too long");
+                }
+                line.append((char) (b[0] & 0xff));
+            }
+        }
+
+        /** Reads data as it arrived on the connection, waiting for the I/O thread if needed. */
+        private int readRaw(byte[] buffer, int offset, int length) throws IOException {
+            boolean resume = false;
+            int count;
+            synchronized (mBufferLock) {
+                long deadlineMs = SystemClock.elapsedRealtime() + mExchange.timeoutMs;
+                while (mBuffers.isEmpty() && !mEndOfStream && mError == null) {
+                    long waitMs = deadlineMs - SystemClock.elapsedRealtime();
+                    if (waitMs <= 0) {
+                        throw new SocketTimeoutException(
+                                "Timed out after " + mExchange.timeoutMs + " ms");
+                    }
+                    try {
+                        mBufferLock.wait(waitMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(e.toString());
+                    }
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+                ByteBuffer data = mBuffers.peek();
+                if (data == null) {
+                    return -1;
+                }
+                count = Math.min(length, data.remaining());
+                data.get(buffer, offset, count);
+                if (!data.hasRemaining()) {
+                    recycleBuffer(mBuffers.poll());
+                    if (mPaused) {
+                        mPaused = false;
+                        resume = true;
+                    }
+                }
+            }
+            if (resume) {
+                post(
+                        new ExchangeTask(mExchange) {
+                            @Override
+                            public void run() {
+                                resume(exchange);
+                            }
+                        });
+            }
+            return count;
+        }
+    }
+}
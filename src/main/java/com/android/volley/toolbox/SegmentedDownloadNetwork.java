@@ -0,0 +1,607 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import com.android.volley.AuthFailureError;
+import com.android.volley.DeadlineExceededError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Header;
+import com.android.volley.Network;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Network} which downloads large files in several byte ranges at once, which can make
+ * better use of a fast link than a single connection.
+ *
+ * <p>Only {@link FileDownloadRequest}s with more than one {@link
+ * FileDownloadRequest#getMaxSegments() segment} are segmented. Such a download starts with a
+ * request for its first byte, which shows whether the server supports ranges and how large the file
+ * is. Files of at least two segments of the minimum size are then split into equal byte ranges,
+ * which are fetched over the given {@link BaseHttpStack} and written to their place in the
+ * download's temporary file. Each range is retried on its own, resuming where it stopped. Other
+ * requests, files which can't be segmented and downloads with a resumable partial download are
+ * performed by the wrapped network.
+ *
+ * <p>If a segmented download fails, the segments which were completed from the start of the file on
+ * are kept as a partial download, which a retry then resumes as a whole, as described at {@link
+ * FileDownloadRequest#setResumable}. Data of later segments is lost.
+ *
+ * <p>Segments run on threads owned by this network while the calling {@link
+ * com.android.volley.NetworkDispatcher} waits. The number of threads caps the number of segments in
+ * flight across all downloads.
+ */
+public class SegmentedDownloadNetwork implements Network {
+
+    /** Default size below which a file isn't split further. */
+    private static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /** Number of times a segment is retried after an I/O error. */
+    private static final int SEGMENT_RETRIES = 2;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Network mNetwork;
+    private final BaseHttpStack mStack;
+    private final long mMinSegmentSize;
+    private final ByteArrayPool mPool = new ByteArrayPool(4 * BUFFER_SIZE);
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSegmentedDownloadCount = new AtomicLong();
+
+    /**
+     * @param network Network to perform other requests over
+     * @param stack HTTP stack to fetch segments over
+     * @param maxConcurrentSegments Maximum number of segments in flight across all downloads
+     */
+    public SegmentedDownloadNetwork(
+            Network network, BaseHttpStack stack, int maxConcurrentSegments) {
+        this(network, stack, maxConcurrentSegments, DEFAULT_MIN_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param network Network to perform other requests over
+     * @param stack HTTP stack to fetch segments over
+     * @param maxConcurrentSegments Maximum number of segments in flight across all downloads
+     * @param minSegmentSize Size in bytes below which a file isn't split further
+     */
+    public SegmentedDownloadNetwork(
+            Network network, BaseHttpStack stack, int maxConcurrentSegments, long minSegmentSize) {
+        if (maxConcurrentSegments < 1) {
+            throw new IllegalArgumentException(
+                    "maxConcurrentSegments must be at least 1: " + maxConcurrentSegments);
+        }
+        if (minSegmentSize < 1) {
+            throw new IllegalArgumentException(
+                    "minSegmentSize must be positive: " + minSegmentSize);
+        }
+        mNetwork = network;
+        mStack = stack;
+        mMinSegmentSize = minSegmentSize;
+        mExecutor =
+                new ThreadPoolExecutor(
+                        maxConcurrentSegments,
+                        maxConcurrentSegments,
+                        /* keepAliveTime= */ 60,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            private final AtomicInteger mCount = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(final Runnable runnable) {
+                                return new Thread(
+                                        new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                Process.setThreadPriority(
+                                                        Process.THREAD_PRIORITY_BACKGROUND);
+                                                runnable.run();
+                                            }
+                                        },
+                                        "Volley-Segment-" + mCount.incrementAndGet());
+                            }
+                        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Returns the number of downloads which have been performed in segments. */
+    public long getSegmentedDownloadCount() {
+        return mSegmentedDownloadCount.get();
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        if (!(request instanceof FileDownloadRequest)
+                || ((FileDownloadRequest) request).getMaxSegments() < 2) {
+            return mNetwork.performRequest(request);
+        }
+        FileDownloadRequest download = (FileDownloadRequest) request;
+        if (download.hasResumablePartial()) {
+            // A plain request picks up where the last attempt stopped.
+            return mNetwork.performRequest(request);
+        }
+        long startMs = SystemClock.elapsedRealtime();
+        Probe probe = probe(download);
+        if (probe == null || probe.totalBytes < 2 * mMinSegmentSize) {
+            return mNetwork.performRequest(request);
+        }
+        mSegmentedDownloadCount.incrementAndGet();
+        int segmentCount =
+                (int) Math.min(download.getMaxSegments(), probe.totalBytes / mMinSegmentSize);
+        download.addMarker("segmented-download [segments=" + segmentCount + "]");
+        downloadSegments(download, probe, segmentCount);
+        NetworkResponse response =
+                new NetworkResponse(
+                        HttpURLConnection.HTTP_OK,
+                        new byte[0],
+                        /* notModified= */ false,
+                        SystemClock.elapsedRealtime() - startMs,
+                        probe.headers);
+        return download.newParsedResponse(
+                response, Response.success(download.getTarget(), /* cacheEntry= */ null));
+    }
+
+    /**
+     * Requests the first byte of the file to learn its size and version, returning null if the file
+     * can't be downloaded in segments.
+     */
+    @Nullable
+    private Probe probe(FileDownloadRequest download) throws VolleyError {
+        if (download.isCanceled()) {
+            throw new VolleyError("Request was canceled");
+        }
+        if (download.hasDeadlinePassed()) {
+            throw new DeadlineExceededError();
+        }
+        final SegmentRequest probeRequest =
+                new SegmentRequest(download, 0, 0, /* validator= */ null);
+        download.setCancelAction(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        probeRequest.cancel();
+                    }
+                });
+        HttpResponse response;
+        try {
+            response = mStack.executeRequest(probeRequest, Collections.<String, String>emptyMap());
+        } catch (IOException e) {
+            if (probeRequest.isCanceled()) {
+                throw new VolleyError("Request was canceled");
+            }
+            // Leave the error, and any retries, to the download as a whole.
+            return null;
+        } finally {
+            download.setCancelAction(null);
+        }
+        closeQuietly(response.getContent());
+        if (response.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+            return null;
+        }
+        String contentRange = null;
+        String etag = null;
+        String lastModified = null;
+        List<Header> headers = new ArrayList<>();
+        for (Header header : response.getHeaders()) {
+            if (header.getName().equalsIgnoreCase("Content-Range")) {
+                contentRange = header.getValue();
+                continue;
+            } else if (header.getName().equalsIgnoreCase("Content-Length")) {
+                continue;
+            } else if (header.getName().equalsIgnoreCase("ETag")) {
+                etag = header.getValue();
+            } else if (header.getName().equalsIgnoreCase("Last-Modified")) {
+                lastModified = header.getValue();
+            }
+            headers.add(header);
+        }
+        // All segments must come from the same version of the file.
+        String validator = etag != null && !etag.startsWith("W/") ? etag : lastModified;
+        long totalBytes = totalBytesOf(contentRange);
+        if (validator == null || totalBytes < 0) {
+            return null;
+        }
+        return new Probe(totalBytes, validator, headers);
+    }
+
+    private void downloadSegments(final FileDownloadRequest download, Probe probe, int segmentCount)
+            throws VolleyError {
+        File temp = download.getTempFile();
+        // Whatever is left of an earlier attempt can't be resumed.
+        download.discardPartial();
+        try {
+            RandomAccessFile file = new RandomAccessFile(temp, "rw");
+            try {
+                file.setLength(probe.totalBytes);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            throw new VolleyError(e);
+        }
+
+        final List<Segment> segments = new ArrayList<>(segmentCount);
+        AtomicLong bytesWritten = new AtomicLong();
+        long segmentSize = (probe.totalBytes + segmentCount - 1) / segmentCount;
+        for (long start = 0; start < probe.totalBytes; start += segmentSize) {
+            long end = Math.min(start + segmentSize, probe.totalBytes) - 1;
+            segments.add(new Segment(download, start, end, probe, bytesWritten));
+        }
+        download.setCancelAction(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        cancelAll(segments);
+                    }
+                });
+        List<Future<Void>> futures = new ArrayList<>(segments.size());
+        Throwable error = null;
+        try {
+            for (Segment segment : segments) {
+                futures.add(mExecutor.submit(segment));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause();
+                        // Stop the other segments; the download has failed.
+                        cancelAll(segments);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            error = e;
+        } finally {
+            // No segment may write to the file once this download is over.
+            cancelAll(segments);
+            awaitAll(futures);
+            download.setCancelAction(null);
+        }
+        try {
+            if (error == null) {
+                RandomAccessFile file = new RandomAccessFile(temp, "rw");
+                try {
+                    // Make sure the data is on disk before the rename makes it visible.
+                    file.getFD().sync();
+                } finally {
+                    file.close();
+                }
+                download.commit();
+                return;
+            }
+            download.keepPartial(completedLength(segments), probe.validator);
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+            download.discardPartial();
+        }
+        if (error instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+            throw new VolleyError(error);
+        } else if (error instanceof VolleyError) {
+            throw (VolleyError) error;
+        } else if (error instanceof SocketTimeoutException) {
+            throw new TimeoutError();
+        } else if (error instanceof IOException) {
+            throw new NetworkError(error);
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        throw new VolleyError(error);
+    }
+
+    private static void cancelAll(List<Segment> segments) {
+        for (Segment segment : segments) {
+            segment.cancel();
+        }
+    }
+
+    /** Waits for all segments to stop, without giving up on an interrupt. */
+    private void awaitAll(List<Future<Void>> futures) {
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            // A segment which hasn't started yet never will.
+            if (mExecutor.remove((Runnable) future)) {
+                future.cancel(/* mayInterruptIfRunning= */ false);
+                continue;
+            }
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns the number of bytes which have been written from the start of the file on. */
+    private static long completedLength(List<Segment> segments) {
+        long length = 0;
+        for (Segment segment : segments) {
+            length = segment.getPosition();
+            if (!segment.isComplete()) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the length of the whole file from a Content-Range header such as {@code bytes
+     * 0-0/1234}, or -1 if it is unknown.
+     */
+    private static long totalBytesOf(@Nullable String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        try {
+            return slash < 0 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // The length is "*" if unknown.
+            return -1;
+        }
+    }
+
+    /** Returns the first byte position of a Content-Range header, or -1 if it is invalid. */
+    private static long rangeStartOf(HttpResponse response) {
+        for (Header header : response.getHeaders()) {
+            if (header.getName().equalsIgnoreCase("Content-Range")) {
+                String value = header.getValue().trim();
+                int dash = value.indexOf('-');
+                if (value.startsWith("bytes ") && dash > 0) {
+                    try {
+                        return Long.parseLong(value.substring("bytes ".length(), dash).trim());
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(@Nullable InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                VolleyLog.v("Error occurred when closing InputStream");
+            }
+        }
+    }
+
+    /** Size and version of a file, as learned from the first byte of it. */
+    private static class Probe {
+        final long totalBytes;
+        final String validator;
+        final List<Header> headers;
+
+        Probe(long totalBytes, String validator, List<Header> headers) {
+            this.totalBytes = totalBytes;
+            this.validator = validator;
+            this.headers = headers;
+        }
+    }
+
+    /** Fetches one byte range of a download into its place in the temporary file. */
+    private class Segment implements Callable<Void> {
+        private final FileDownloadRequest mDownload;
+        private final long mEnd;
+        private final Probe mProbe;
+        private final AtomicLong mBytesWritten;
+
+        /** Position of the next byte to fetch. */
+        private long mPosition;
+
+        @GuardedBy("this")
+        private boolean mCanceled = false;
+
+        @Nullable
+        @GuardedBy("this")
+        private SegmentRequest mCurrentRequest;
+
+        Segment(
+                FileDownloadRequest download,
+                long start,
+                long end,
+                Probe probe,
+                AtomicLong bytesWritten) {
+            mDownload = download;
+            mPosition = start;
+            mEnd = end;
+            mProbe = probe;
+            mBytesWritten = bytesWritten;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            IOException lastError = null;
+            for (int attempt = 0; attempt <= SEGMENT_RETRIES; attempt++) {
+                SegmentRequest request =
+                        new SegmentRequest(mDownload, mPosition, mEnd, mProbe.validator);
+                synchronized (this) {
+                    if (mCanceled) {
+                        throw new IOException("Segment was canceled");
+                    }
+                    mCurrentRequest = request;
+                }
+                try {
+                    fetch(request);
+                    return null;
+                } catch (IOException e) {
+                    lastError = e;
+                    if (request.isCanceled()) {
+                        break;
+                    }
+                }
+            }
+            throw lastError;
+        }
+
+        /** Returns the position of the next byte to fetch; only valid once the segment stopped. */
+        long getPosition() {
+            return mPosition;
+        }
+
+        boolean isComplete() {
+            return mPosition > mEnd;
+        }
+
+        void cancel() {
+            SegmentRequest request;
+            synchronized (this) {
+                mCanceled = true;
+                request = mCurrentRequest;
+            }
+            if (request != null) {
+                request.cancel();
+            }
+        }
+
+        private void fetch(SegmentRequest request) throws IOException, VolleyError {
+            HttpResponse response =
+                    mStack.executeRequest(request, Collections.<String, String>emptyMap());
+            InputStream content = response.getContent();
+            try {
+                if (response.getStatusCode() != HttpURLConnection.HTTP_PARTIAL
+                        || rangeStartOf(response) != mPosition
+                        || content == null) {
+                    // The file has changed since the probe, or the server stopped serving ranges.
+                    throw new ServerError();
+                }
+                write(request, content);
+            } finally {
+                closeQuietly(content);
+            }
+            if (mPosition <= mEnd) {
+                throw new IOException("Segment ended early at " + mPosition);
+            }
+        }
+
+        private void write(SegmentRequest request, InputStream content) throws IOException {
+            byte[] buffer = mPool.getBuf(BUFFER_SIZE);
+            RandomAccessFile file = new RandomAccessFile(mDownload.getTempFile(), "rw");
+            try {
+                file.seek(mPosition);
+                int count;
+                while (mPosition <= mEnd
+                        && (count =
+                                        content.read(
+                                                buffer,
+                                                0,
+                                                (int)
+                                                        Math.min(
+                                                                buffer.length,
+                                                                mEnd - mPosition + 1)))
+                                != -1) {
+                    if (request.isCanceled()) {
+                        throw new IOException("Segment was canceled");
+                    }
+                    file.write(buffer, 0, count);
+                    mPosition += count;
+                    mDownload.notifyProgress(mBytesWritten.addAndGet(count), mProbe.totalBytes);
+                }
+            } finally {
+                file.close();
+                mPool.returnBuf(buffer);
+            }
+        }
+    }
+
+    /** A request for a byte range of a download, sent with the download's headers. */
+    private static class SegmentRequest extends Request<Void> {
+        private final FileDownloadRequest mDownload;
+        private final long mStart;
+        private final long mEnd;
+        @Nullable private final String mValidator;
+
+        SegmentRequest(
+                FileDownloadRequest download, long start, long end, @Nullable String validator) {
+            super(Method.GET, download.getUrl(), /* listener= */ null);
+            mDownload = download;
+            mStart = start;
+            mEnd = end;
+            mValidator = validator;
+            setShouldCache(false);
+            setRetryPolicy(
+                    new DefaultRetryPolicy(
+                            download.getTimeoutMs(), /* maxNumRetries= */ 0, /* backoff= */ 1f));
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            Map<String, String> headers = new HashMap<>(mDownload.getHeaders());
+            headers.put("Range", "bytes=" + mStart + "-" + mEnd);
+            if (mValidator != null) {
+                headers.put("If-Range", mValidator);
+            } else {
+                headers.remove("If-Range");
+            }
+            return headers;
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            // Segments are written by the network.
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {}
+    }
+}
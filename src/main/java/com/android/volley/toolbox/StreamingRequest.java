@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyLog;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A request which parses its response body as a stream while it is read from the network, rather
+ * than from a copy of the whole body in memory.
+ *
+ * <p>Streaming happens when the request is performed by a {@link BasicNetwork}. Other networks, and
+ * responses from the cache, hand {@link #parseResponseStream} a stream over the buffered body
+ * instead.
+ *
+ * <p>Caching is disabled by default, since the cache needs a copy of the whole body. When it is
+ * enabled with {@link #setShouldCache(boolean)}, the body is copied for the cache as it is read.
+ */
+public abstract class StreamingRequest<T> extends Request<T> {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Creates a new request with the given method.
+     *
+     * @param method the request {@link Method} to use
+     * @param url URL to fetch the response at
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    public StreamingRequest(
+            int method, String url, @Nullable Response.ErrorListener errorListener) {
+        super(method, url, errorListener);
+        setShouldCache(false);
+    }
+
+    /**
+     * Parses the body of a successful response. Called on a worker thread, while the body is still
+     * being received.
+     *
+     * @param response Status code and headers of the response. Its data must not be used, as it is
+     *     empty while the body is streamed.
+     * @param body The response body, which is closed once this method returns
+     * @return the parsed response
+     * @throws IOException if reading the body fails; the request may then be retried
+     * @throws ParseError if the body can't be parsed
+     */
+    protected abstract T parseResponseStream(NetworkResponse response, InputStream body)
+            throws IOException, ParseError;
+
+    @Override
+    protected Response<T> parseNetworkResponse(NetworkResponse response) {
+        if (response instanceof StreamedResponse) {
+            @SuppressWarnings("unchecked")
+            StreamedResponse<T> streamed = (StreamedResponse<T>) response;
+            return streamed.result;
+        }
+        // The body was buffered, either in the cache or by the network.
+        try {
+            return Response.success(
+                    parseResponseStream(response, new ByteArrayInputStream(response.data)),
+                    HttpHeaderParser.parseCacheHeaders(response));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        } catch (ParseError e) {
+            return Response.error(e);
+        }
+    }
+
+    /**
+     * Reads and parses the body of a successful response from the network.
+     *
+     * @param in The response body, which is closed by this method
+     * @param contentLength Length of the body, or -1 if unknown
+     * @param pool Pool for the buffers used to copy the body for the cache
+     * @param requestStartMs Time the request was started
+     * @return a response whose data holds the copy of the body for the cache, or is empty
+     * @throws IOException if reading the body fails or the request is canceled
+     */
+    NetworkResponse readResponse(
+            int statusCode,
+            List<Header> headers,
+            InputStream in,
+            int contentLength,
+            ByteArrayPool pool,
+            long requestStartMs)
+            throws IOException {
+        PoolingByteArrayOutputStream cacheCopy =
+                shouldCache() ? new PoolingByteArrayOutputStream(pool, contentLength) : null;
+        BodyInputStream body = new BodyInputStream(this, in, cacheCopy);
+        try {
+            NetworkResponse headersOnly =
+                    new NetworkResponse(
+                            statusCode,
+                            new byte[0],
+                            /* notModified= */ false,
+                            /* networkTimeMs= */ 0,
+                            headers);
+            T parsed;
+            try {
+                parsed = parseResponseStream(headersOnly, body);
+            } catch (ParseError e) {
+                return new StreamedResponse<>(headersOnly, Response.<T>error(e));
+            }
+            byte[] data = new byte[0];
+            if (cacheCopy != null) {
+                // The cache needs the whole body, even if the parser stopped early.
+                body.drain(pool);
+                data = cacheCopy.toByteArray();
+            }
+            NetworkResponse response =
+                    new NetworkResponse(
+                            statusCode,
+                            data,
+                            /* notModified= */ false,
+                            SystemClock.elapsedRealtime() - requestStartMs,
+                            headers);
+            return new StreamedResponse<>(
+                    response,
+                    Response.success(
+                            parsed,
+                            cacheCopy != null
+                                    ? HttpHeaderParser.parseCacheHeaders(response)
+                                    : null));
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                VolleyLog.v("Error occurred when closing InputStream");
+            }
+            if (cacheCopy != null) {
+                cacheCopy.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a response to this request which was received and parsed without going through {@link
+     * #parseResponseStream}, for networks which handle the body themselves.
+     */
+    NetworkResponse newParsedResponse(NetworkResponse response, Response<T> result) {
+        return new StreamedResponse<>(response, result);
+    }
+
+    /** A network response which carries the result of parsing its streamed body. */
+    private static class StreamedResponse<T> extends NetworkResponse {
+        final Response<T> result;
+
+        StreamedResponse(NetworkResponse response, Response<T> result) {
+            super(
+                    response.statusCode,
+                    response.data,
+                    response.notModified,
+                    response.networkTimeMs,
+                    response.allHeaders);
+            this.result = result;
+        }
+    }
+
+    /**
+     * The response body as given to the parser, which fails once the request is canceled and copies
+     * everything read into the cache copy, if any.
+     */
+    private static class BodyInputStream extends FilterInputStream {
+        private final Request<?> mRequest;
+        @Nullable private final PoolingByteArrayOutputStream mCacheCopy;
+
+        BodyInputStream(
+                Request<?> request,
+                InputStream in,
+                @Nullable PoolingByteArrayOutputStream cacheCopy) {
+            super(in);
+            mRequest = request;
+            mCacheCopy = cacheCopy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCanceled();
+            int b = super.read();
+            if (b != -1 && mCacheCopy != null) {
+                mCacheCopy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            checkCanceled();
+            int count = super.read(buffer, offset, length);
+            if (count > 0 && mCacheCopy != null) {
+                mCacheCopy.write(buffer, offset, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            // Skipped bytes still have to reach the cache copy.
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int count = read(buffer, 0, buffer.length);
+            return count < 0 ? 0 : count;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // The body is closed by readResponse, once the parser is done with it.
+        }
+
+        /** Reads the rest of the body. */
+        void drain(ByteArrayPool pool) throws IOException {
+            byte[] buffer = pool.getBuf(BUFFER_SIZE);
+            try {
+                while (read(buffer, 0, buffer.length) != -1) {
+                    // Keep reading.
+                }
+            } finally {
+                pool.returnBuf(buffer);
+            }
+        }
+
+        private void checkCanceled() throws IOException {
+            if (mRequest.isCanceled()) {
+                throw new IOException("Request was canceled");
+            }
+        }
+    }
+}
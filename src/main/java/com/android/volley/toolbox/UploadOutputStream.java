@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Request;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The stream a request body is written to, which reports the progress of the upload to the
+ * request's {@link Request.UploadProgressListener} and fails once the request is canceled.
+ */
+class UploadOutputStream extends FilterOutputStream {
+
+    private final Request<?> mRequest;
+    private final long mTotalBytes;
+    private long mBytesWritten = 0;
+
+    /**
+     * @param out Stream of the connection
+     * @param request Request whose body is written
+     * @param totalBytes Length of the body, or -1 if unknown
+     */
+    UploadOutputStream(OutputStream out, Request<?> request, long totalBytes) {
+        super(out);
+        mRequest = request;
+        mTotalBytes = totalBytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkCanceled();
+        out.write(b);
+        onWritten(1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        // FilterOutputStream would write the buffer one byte at a time.
+        checkCanceled();
+        out.write(buffer, offset, length);
+        onWritten(length);
+    }
+
+    private void onWritten(int count) {
+        mBytesWritten += count;
+        Request.UploadProgressListener listener = mRequest.getUploadProgressListener();
+        if (listener != null) {
+            listener.onUploadProgress(mBytesWritten, mTotalBytes);
+        }
+    }
+
+    private void checkCanceled() throws IOException {
+        if (mRequest.isCanceled()) {
+            throw new IOException("Request was canceled");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class AdaptiveConcurrencyLimitTest {
+
+    @Test
+    public void startsAtMaximum() {
+        assertEquals(8, new AdaptiveConcurrencyLimit(2, 8).getLimit());
+    }
+
+    @Test
+    public void backsOffOncePerWindowOnHighLatency() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 10);
+        limit.onSample("a", 100, /* timedOut= */ false, 10);
+        assertEquals(10, limit.getLimit());
+
+        // A single slow request is smoothed out.
+        limit.onSample("a", 500, /* timedOut= */ false, 10);
+        assertEquals(10, limit.getLimit());
+
+        limit.onSample("a", 500, /* timedOut= */ false, 10);
+        assertEquals(9, limit.getLimit());
+
+        // The requests in flight at the backoff don't shrink the limit again.
+        for (int i = 0; i < 8; i++) {
+            limit.onSample("a", 500, /* timedOut= */ false, 9);
+        }
+        assertEquals(9, limit.getLimit());
+
+        limit.onSample("a", 500, /* timedOut= */ false, 9);
+        assertEquals(8, limit.getLimit());
+    }
+
+    @Test
+    public void backsOffOncePerWindowOnTimeouts() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 10);
+        limit.onSample("a", 0, /* timedOut= */ true, 10);
+        assertEquals(5, limit.getLimit());
+
+        limit.onSample("a", 0, /* timedOut= */ true, 9);
+        assertEquals(5, limit.getLimit());
+
+        for (int i = 0; i < 3; i++) {
+            limit.onSample("a", 100, /* timedOut= */ false, 0);
+        }
+        limit.onSample("a", 0, /* timedOut= */ true, 5);
+        assertEquals(2, limit.getLimit());
+
+        // The limit never drops below the minimum.
+        for (int i = 0; i < 10; i++) {
+            limit.onSample("a", 0, /* timedOut= */ true, 2);
+        }
+        assertEquals(2, limit.getLimit());
+    }
+
+    @Test
+    public void mixedLatenciesDoNotShrinkLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 10);
+        for (int i = 0; i < 1000; i++) {
+            // Small API calls and large downloads are each as fast as usual.
+            limit.onSample("a JsonRequest", 50 + (i % 3) * 10, /* timedOut= */ false, 10);
+            limit.onSample("a ImageRequest", 5000 + (i % 7) * 100, /* timedOut= */ false, 10);
+            limit.onSample("b ImageRequest", 800 + (i % 5) * 50, /* timedOut= */ false, 10);
+        }
+        assertEquals(10, limit.getLimit());
+
+        // Congestion still shows up as a slowdown of every class.
+        for (int i = 0; i < 10; i++) {
+            limit.onSample("a JsonRequest", 500, /* timedOut= */ false, 10);
+            limit.onSample("a ImageRequest", 20000, /* timedOut= */ false, 10);
+        }
+        assertTrue(limit.getLimit() < 10);
+    }
+
+    @Test
+    public void growsWhileLatencyStaysLow() {
+        final List<Integer> changes = new ArrayList<>();
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 4);
+        limit.setListener(
+                new AdaptiveConcurrencyLimit.Listener() {
+                    @Override
+                    public void onLimitChanged(int newLimit) {
+                        changes.add(newLimit);
+                    }
+                });
+        limit.onSample("a", 0, /* timedOut= */ true, 4);
+        assertEquals(2, limit.getLimit());
+
+        // An unused limit doesn't grow.
+        assertFalse(limit.onSample("a", 100, /* timedOut= */ false, 0));
+        assertFalse(limit.onSample("a", 100, /* timedOut= */ false, 0));
+        assertEquals(2, limit.getLimit());
+
+        // It takes about a limit's worth of fast requests to grow by one.
+        assertFalse(limit.onSample("a", 100, /* timedOut= */ false, 2));
+        assertFalse(limit.onSample("a", 100, /* timedOut= */ false, 2));
+        assertTrue(limit.onSample("a", 100, /* timedOut= */ false, 2));
+        assertEquals(3, limit.getLimit());
+
+        assertEquals(2, changes.size());
+        assertEquals(2, (int) changes.get(0));
+        assertEquals(3, (int) changes.get(1));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.android.volley.Request.Priority;
+import com.android.volley.RequestQueue.OverflowPolicy;
+import com.android.volley.mock.MockRequest;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class AdmissionControllerTest {
+
+    @Mock private ResponseDelivery mDelivery;
+    private DispatchOrder mOrder;
+    private PriorityBlockingQueue<Request<?>> mQueue;
+    private AdmissionController mController;
+    private int mSequence;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mOrder = new DispatchOrder();
+        mQueue = new PriorityBlockingQueue<>(11, mOrder);
+        mController = new AdmissionController(mDelivery, mOrder);
+        mSequence = 0;
+    }
+
+    private MockRequest request(Priority priority) {
+        MockRequest request = new MockRequest();
+        request.setPriority(priority);
+        request.setSequence(mSequence++);
+        return request;
+    }
+
+    @Test
+    public void reject_failsNewRequest() {
+        MockRequest queued = request(Priority.LOW);
+        MockRequest added = request(Priority.HIGH);
+
+        assertTrue(mController.offer(queued, mQueue, 1));
+        assertFalse(mController.offer(added, mQueue, 1));
+
+        verify(mDelivery).postError(eq(added), any(QueueFullError.class));
+        assertEquals(1, mController.getRejectedCount());
+        assertEquals(1, mQueue.size());
+    }
+
+    @Test
+    public void reject_finishesPrefetchWithoutError() {
+        MockRequest queued = request(Priority.LOW);
+        MockRequest prefetch = request(Priority.HIGH);
+        ((Request<?>) prefetch).markPrefetch();
+
+        assertTrue(mController.offer(queued, mQueue, 1));
+        assertFalse(mController.offer(prefetch, mQueue, 1));
+
+        verify(mDelivery, never()).postError(eq(prefetch), any(VolleyError.class));
+        assertEquals(1, mController.getRejectedCount());
+    }
+
+    @Test
+    public void dropLowestPriority_replacesLastQueuedRequest() {
+        mController.setPolicy(OverflowPolicy.DROP_LOWEST_PRIORITY);
+        MockRequest normal = request(Priority.NORMAL);
+        MockRequest low = request(Priority.LOW);
+        MockRequest high = request(Priority.HIGH);
+
+        assertTrue(mController.offer(normal, mQueue, 2));
+        assertTrue(mController.offer(low, mQueue, 2));
+        assertTrue(mController.offer(high, mQueue, 2));
+
+        verify(mDelivery).postError(eq(low), any(QueueFullError.class));
+        assertEquals(1, mController.getDroppedCount());
+        assertSame(high, mQueue.poll());
+        assertSame(normal, mQueue.poll());
+    }
+
+    @Test
+    public void dropLowestPriority_rejectsRequestWhichWouldGoLast() {
+        mController.setPolicy(OverflowPolicy.DROP_LOWEST_PRIORITY);
+        MockRequest normal = request(Priority.NORMAL);
+        MockRequest low = request(Priority.LOW);
+
+        assertTrue(mController.offer(normal, mQueue, 1));
+        assertFalse(mController.offer(low, mQueue, 1));
+
+        verify(mDelivery).postError(eq(low), any(QueueFullError.class));
+        verify(mDelivery, never()).postError(eq(normal), any(VolleyError.class));
+        assertEquals(1, mController.getRejectedCount());
+        assertEquals(0, mController.getDroppedCount());
+    }
+
+    @Test
+    public void block_waitsForRoom() throws Exception {
+        mController.setPolicy(OverflowPolicy.BLOCK);
+        MockRequest queued = request(Priority.NORMAL);
+        final MockRequest added = request(Priority.NORMAL);
+        assertTrue(mController.offer(queued, mQueue, 1));
+
+        Thread adder =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        mController.offer(added, mQueue, 1);
+                    }
+                };
+        adder.start();
+        adder.join(50);
+        assertTrue(adder.isAlive());
+
+        assertSame(queued, mQueue.take());
+        mController.onDequeued();
+        adder.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(adder.isAlive());
+        assertSame(added, mQueue.poll());
+        assertEquals(0, mController.getRejectedCount());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import android.os.SystemClock;
+import com.android.volley.RequestQueue.RequestFinishedListener;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class AsyncRequestQueueTest {
+
+    /** AsyncNetwork which holds on to callbacks until the test completes them. */
+    private static class PendingNetwork extends AsyncNetwork {
+        final List<OnRequestComplete> callbacks = new ArrayList<>();
+        CountDownLatch started;
+
+        @Override
+        public void performRequest(Request<?> request, OnRequestComplete callback) {
+            synchronized (callbacks) {
+                callbacks.add(callback);
+            }
+            started.countDown();
+        }
+    }
+
+    private PendingNetwork mNetwork;
+    private AsyncRequestQueue mQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        mNetwork = new PendingNetwork();
+        mQueue = new AsyncRequestQueue(new NoCache(), mNetwork, 1, new ImmediateResponseDelivery());
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.stop();
+    }
+
+    @Test
+    public void add_manyRequestsInFlightOnFewThreads() throws Exception {
+        int requestCount = 50;
+        mNetwork.started = new CountDownLatch(requestCount);
+        final CountDownLatch finished = new CountDownLatch(requestCount);
+        mQueue.addRequestFinishedListener(
+                new RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(Request<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        List<MockRequest> requests = new ArrayList<>();
+        for (int i = 0; i < requestCount; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey(Integer.toString(i));
+            requests.add(request);
+            mQueue.add(request);
+        }
+        mQueue.start();
+
+        // All requests are in flight at once, although the queue only has two threads.
+        assertTrue(mNetwork.started.await(5, TimeUnit.SECONDS));
+        synchronized (mNetwork.callbacks) {
+            for (AsyncNetwork.OnRequestComplete callback : mNetwork.callbacks) {
+                callback.onSuccess(new NetworkResponse(new byte[] {1}));
+            }
+        }
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        for (MockRequest request : requests) {
+            assertTrue(request.deliverResponse_called);
+        }
+    }
+
+    @Test
+    public void add_networkErrorIsDelivered() throws Exception {
+        mNetwork.started = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        mQueue.addRequestFinishedListener(
+                new RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(Request<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        MockRequest request = new MockRequest();
+        request.setShouldCache(false);
+        mQueue.start();
+        mQueue.add(request);
+
+        assertTrue(mNetwork.started.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mNetwork.callbacks.size());
+        mNetwork.callbacks.get(0).onError(new ServerError());
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertTrue(request.deliverError_called);
+    }
+
+    @Test
+    public void prefetch_storesResponseWithoutDelivery() throws Exception {
+        Cache cache = mock(Cache.class);
+        mQueue.stop();
+        mQueue = new AsyncRequestQueue(cache, mNetwork, 1, new ImmediateResponseDelivery());
+        mNetwork.started = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        mQueue.addRequestFinishedListener(
+                new RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(Request<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        MockRequest request = new MockRequest();
+        mQueue.start();
+        mQueue.prefetch(request);
+
+        assertTrue(mNetwork.started.await(5, TimeUnit.SECONDS));
+        mNetwork.callbacks.get(0).onSuccess(new NetworkResponse(new byte[] {1}));
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        verify(cache).put(eq(request.getCacheKey()), any(Cache.Entry.class));
+        assertFalse(request.parseResponse_called);
+        assertFalse(request.deliverResponse_called);
+    }
+
+    @Test
+    public void prefetch_errorIsNotDelivered() throws Exception {
+        mNetwork.started = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        mQueue.addRequestFinishedListener(
+                new RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(Request<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        MockRequest request = new MockRequest();
+        mQueue.start();
+        mQueue.prefetch(request);
+
+        assertTrue(mNetwork.started.await(5, TimeUnit.SECONDS));
+        mNetwork.callbacks.get(0).onError(new ServerError());
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertFalse(request.deliverError_called);
+    }
+
+    @Test
+    public void prefetch_expiredDeadlineIsNotDelivered() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        mQueue.addRequestFinishedListener(
+                new RequestFinishedListener<Object>() {
+                    @Override
+                    public void onRequestFinished(Request<Object> request) {
+                        finished.countDown();
+                    }
+                });
+        MockRequest request = new MockRequest();
+        request.setDeadline(SystemClock.elapsedRealtime() - 1);
+        mQueue.start();
+        mQueue.prefetch(request);
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertFalse(request.deliverError_called);
+        assertTrue(mNetwork.callbacks.isEmpty());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.mock.MockRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchingExecutorDeliveryTest {
+
+    private List<Runnable> mPosted;
+    private BatchingExecutorDelivery mDelivery;
+
+    @Before
+    public void setUp() {
+        mPosted = new ArrayList<>();
+        mDelivery =
+                new BatchingExecutorDelivery(
+                        new Executor() {
+                            @Override
+                            public void execute(Runnable command) {
+                                mPosted.add(command);
+                            }
+                        },
+                        /* maxDrainTimeMs= */ 0);
+    }
+
+    private void runPosted() {
+        while (!mPosted.isEmpty()) {
+            mPosted.remove(0).run();
+        }
+    }
+
+    @Test
+    public void postsOneTaskForBurst() {
+        final List<MockRequest> delivered = new ArrayList<>();
+        List<MockRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final MockRequest request =
+                    new MockRequest() {
+                        @Override
+                        protected void deliverResponse(byte[] response) {
+                            delivered.add(this);
+                        }
+                    };
+            requests.add(request);
+            mDelivery.postResponse(request, Response.success(new byte[0], null));
+        }
+
+        assertEquals(1, mPosted.size());
+        runPosted();
+        assertEquals(requests, delivered);
+    }
+
+    @Test
+    public void postAfterBatchPostsNewBatch() {
+        MockRequest request = new MockRequest();
+        Response<byte[]> intermediate = Response.success(new byte[0], null);
+        intermediate.intermediate = true;
+        mDelivery.postResponse(request, intermediate);
+        runPosted();
+        assertTrue(request.deliverResponse_called);
+
+        // Deliveries posted after a batch has run are posted in a new batch.
+        request.deliverResponse_called = false;
+        mDelivery.postError(request, new ServerError());
+        assertEquals(1, mPosted.size());
+        runPosted();
+        assertFalse(request.deliverResponse_called);
+        assertTrue(request.deliverError_called);
+    }
+
+    @Test
+    public void postDuringBatchRunsInSameBatch() {
+        final MockRequest second = new MockRequest();
+        MockRequest first =
+                new MockRequest() {
+                    @Override
+                    protected void deliverResponse(byte[] response) {
+                        mDelivery.postResponse(second, Response.success(new byte[0], null));
+                    }
+                };
+        mDelivery.postResponse(first, Response.success(new byte[0], null));
+
+        mPosted.remove(0).run();
+        assertTrue(second.deliverResponse_called);
+        assertTrue(mPosted.isEmpty());
+    }
+}
@@ -25,6 +25,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import android.os.SystemClock;
 import com.android.volley.toolbox.StringRequest;
 import com.android.volley.utils.CacheTestUtils;
 import java.util.concurrent.BlockingQueue;
@@ -87,6 +88,27 @@ public class CacheDispatcherTest {
         verifyNoResponse(mDelivery);
     }
 
+    // A request past its deadline fails without a cache lookup.
+    @Test
+    public void expiredDeadline() throws Exception {
+        mRequest.setDeadline(SystemClock.elapsedRealtime() - 1);
+        mDispatcher.processRequest(mRequest);
+        verify(mCache, never()).get(anyString());
+        verify(mNetworkQueue, never()).put(any(Request.class));
+        verify(mDelivery).postError(any(Request.class), any(DeadlineExceededError.class));
+    }
+
+    // A prefetch past its deadline is finished without delivering an error.
+    @Test
+    public void prefetchWithExpiredDeadline() throws Exception {
+        mRequest.setDeadline(SystemClock.elapsedRealtime() - 1);
+        ((Request<?>) mRequest).markPrefetch();
+        mDispatcher.processRequest(mRequest);
+        verify(mCache, never()).get(anyString());
+        verify(mNetworkQueue, never()).put(any(Request.class));
+        verify(mDelivery, never()).postError(any(Request.class), any(VolleyError.class));
+    }
+
     // A cache miss does not post a response and puts the request on the network queue.
     @Test
     public void cacheMiss() throws Exception {
@@ -231,4 +253,27 @@ public class CacheDispatcherTest {
         verify(mDelivery)
                 .postResponse(any(Request.class), any(Response.class), any(Runnable.class));
     }
+
+    // A prefetch of a fresh cache entry is finished without parsing or going to the network.
+    @Test
+    public void prefetchOfFreshEntry() throws Exception {
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
+        when(mCache.get(anyString())).thenReturn(entry);
+        ((Request<?>) mRequest).markPrefetch();
+        mDispatcher.processRequest(mRequest);
+        verifyNoResponse(mDelivery);
+        verify(mNetworkQueue, never()).put(any(Request.class));
+    }
+
+    // A prefetch of a soft-expired entry is sent to the network without delivering the entry.
+    @Test
+    public void prefetchOfSoftExpiredEntry() throws Exception {
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, true);
+        when(mCache.get(anyString())).thenReturn(entry);
+        ((Request<?>) mRequest).markPrefetch();
+        mDispatcher.processRequest(mRequest);
+        verifyNoResponse(mDelivery);
+        verify(mNetworkQueue).put(mRequest);
+        assertSame(entry, mRequest.getCacheEntry());
+    }
 }
@@ -26,6 +26,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import android.os.SystemClock;
 import com.android.volley.toolbox.StringRequest;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
@@ -79,6 +80,15 @@ public class NetworkDispatcherTest {
         verify(mDelivery, never()).postResponse(any(Request.class), any(Response.class));
     }
 
+    @Test
+    public void expiredDeadlinePostsErrorWithoutNetwork() throws Exception {
+        mRequest.setDeadline(SystemClock.elapsedRealtime() - 1);
+        mDispatcher.processRequest(mRequest);
+
+        verify(mNetwork, never()).performRequest(any(Request.class));
+        verify(mDelivery).postError(eq(mRequest), any(DeadlineExceededError.class));
+    }
+
     @Test
     public void shouldCacheFalse() throws Exception {
         mRequest.setShouldCache(false);
@@ -96,4 +106,26 @@ public class NetworkDispatcherTest {
         verify(mCache).put(eq(mRequest.getCacheKey()), entry.capture());
         assertTrue(Arrays.equals(entry.getValue().data, CANNED_DATA));
     }
+
+    @Test
+    public void prefetchStoresResponseWithoutDelivery() throws Exception {
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse(CANNED_DATA));
+        ((Request<?>) mRequest).markPrefetch();
+        mDispatcher.processRequest(mRequest);
+
+        ArgumentCaptor<Cache.Entry> entry = ArgumentCaptor.forClass(Cache.Entry.class);
+        verify(mCache).put(eq(mRequest.getCacheKey()), entry.capture());
+        assertTrue(Arrays.equals(entry.getValue().data, CANNED_DATA));
+        verify(mDelivery, never()).postResponse(any(Request.class), any(Response.class));
+    }
+
+    @Test
+    public void prefetchErrorIsNotDelivered() throws Exception {
+        when(mNetwork.performRequest(any(Request.class))).thenThrow(new ServerError());
+        ((Request<?>) mRequest).markPrefetch();
+        mDispatcher.processRequest(mRequest);
+
+        verify(mDelivery, never()).postError(any(Request.class), any(VolleyError.class));
+    }
 }
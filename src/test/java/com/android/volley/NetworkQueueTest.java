@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.Request.Priority;
+import com.android.volley.mock.MockRequest;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class NetworkQueueTest {
+
+    private NetworkQueue mQueue;
+    private int mSequence;
+
+    @Before
+    public void setUp() {
+        mQueue = new NetworkQueue();
+        mSequence = 0;
+    }
+
+    private MockRequest request(String url, Priority priority) {
+        return request(url, priority, Long.MAX_VALUE);
+    }
+
+    private MockRequest request(String url, Priority priority, long deadlineMs) {
+        MockRequest request = new MockRequest(url, null);
+        request.setPriority(priority);
+        request.setDeadline(deadlineMs);
+        request.setSequence(mSequence++);
+        mQueue.add(request);
+        return request;
+    }
+
+    private MockRequest prefetch(String url) {
+        MockRequest request = new MockRequest(url, null);
+        request.setPriority(Priority.HIGH);
+        request.setSequence(mSequence++);
+        ((Request<?>) request).markPrefetch();
+        mQueue.add(request);
+        return request;
+    }
+
+    @Test
+    public void withoutLimits_ordersLikePriorityQueue() throws Exception {
+        MockRequest a1 = request("http://a/1", Priority.NORMAL);
+        MockRequest a2 = request("http://a/2", Priority.NORMAL);
+        MockRequest b1 = request("http://b/1", Priority.NORMAL);
+        MockRequest b2 = request("http://b/2", Priority.HIGH);
+
+        assertSame(b2, mQueue.take());
+        assertSame(a1, mQueue.take());
+        assertSame(a2, mQueue.take());
+        assertSame(b1, mQueue.take());
+        assertEquals(0, mQueue.size());
+        assertEquals(4, mQueue.inFlightCount());
+    }
+
+    @Test
+    public void hostLimit_holdsRequestsUntilReleased() throws Exception {
+        mQueue.setDefaultHostLimit(1);
+        MockRequest a1 = request("http://a/1", Priority.NORMAL);
+        MockRequest a2 = request("http://a/2", Priority.NORMAL);
+
+        assertSame(a1, mQueue.take());
+        assertNull(mQueue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, mQueue.size());
+
+        mQueue.release(a1);
+        assertSame(a2, mQueue.poll());
+    }
+
+    @Test
+    public void hostLimit_overrideForSingleHost() throws Exception {
+        mQueue.setDefaultHostLimit(1);
+        mQueue.setHostLimit("a", 2);
+        MockRequest a1 = request("http://a/1", Priority.NORMAL);
+        MockRequest a2 = request("http://a/2", Priority.NORMAL);
+        MockRequest a3 = request("http://a/3", Priority.NORMAL);
+
+        assertSame(a1, mQueue.poll());
+        assertSame(a2, mQueue.poll());
+        assertNull(mQueue.poll());
+        mQueue.release(a2);
+        assertSame(a3, mQueue.poll());
+    }
+
+    @Test
+    public void hostLimit_hostsTakeTurnsAtEqualPriority() throws Exception {
+        mQueue.setDefaultHostLimit(10);
+        MockRequest a1 = request("http://a/1", Priority.LOW);
+        MockRequest a2 = request("http://a/2", Priority.LOW);
+        MockRequest a3 = request("http://a/3", Priority.LOW);
+        MockRequest b1 = request("http://b/1", Priority.LOW);
+        MockRequest b2 = request("http://b/2", Priority.LOW);
+        MockRequest c1 = request("http://c/1", Priority.HIGH);
+
+        // Priority still wins across hosts.
+        assertSame(c1, mQueue.poll());
+        assertSame(a1, mQueue.poll());
+        assertSame(b1, mQueue.poll());
+        assertSame(a2, mQueue.poll());
+        assertSame(b2, mQueue.poll());
+        assertSame(a3, mQueue.poll());
+    }
+
+    @Test
+    public void agingPolicy_headStartOverridesPriority() throws Exception {
+        DispatchOrder order = new DispatchOrder();
+        order.setAgingPolicy(
+                new PriorityAgingPolicy() {
+                    @Override
+                    public long getHeadStartMs(Priority priority) {
+                        return priority == Priority.LOW ? 60 * 1000 : 0;
+                    }
+                });
+        mQueue = new NetworkQueue(order);
+        MockRequest high = request("http://a/1", Priority.HIGH);
+        MockRequest low = request("http://a/2", Priority.LOW);
+
+        assertSame(low, mQueue.poll());
+        assertSame(high, mQueue.poll());
+    }
+
+    @Test
+    public void agingPolicy_effectivePriorityRisesWithWait() {
+        DispatchOrder order = new DispatchOrder();
+        order.setAgingPolicy(new LinearPriorityAgingPolicy(1000));
+        MockRequest low = request("http://a/1", Priority.LOW);
+        long queuedMs = ((Request<?>) low).getQueuedTimeMs();
+
+        assertEquals(Priority.LOW, order.getEffectivePriority(low, queuedMs + 999));
+        assertEquals(Priority.NORMAL, order.getEffectivePriority(low, queuedMs + 1000));
+        assertEquals(Priority.HIGH, order.getEffectivePriority(low, queuedMs + 2500));
+    }
+
+    @Test
+    public void earliestDeadlineFirst_ordersByDeadline() throws Exception {
+        DispatchOrder order = new DispatchOrder();
+        order.setEarliestDeadlineFirst(true);
+        mQueue = new NetworkQueue(order);
+        MockRequest none = request("http://a/1", Priority.HIGH, Long.MAX_VALUE);
+        MockRequest late = request("http://a/2", Priority.NORMAL, 2000);
+        MockRequest early = request("http://a/3", Priority.LOW, 1000);
+
+        assertSame(early, mQueue.poll());
+        assertSame(late, mQueue.poll());
+        assertSame(none, mQueue.poll());
+    }
+
+    @Test
+    public void rateLimit_holdsRequestsBeyondBurst() throws Exception {
+        mQueue.setHostRateLimit("a", /* requestsPerSecond= */ 0.001, /* burst= */ 2);
+        MockRequest a1 = request("http://a/1", Priority.NORMAL);
+        MockRequest a2 = request("http://a/2", Priority.NORMAL);
+        request("http://a/3", Priority.NORMAL);
+        MockRequest b1 = request("http://b/1", Priority.LOW);
+
+        assertSame(a1, mQueue.poll());
+        assertSame(a2, mQueue.poll());
+        // Other hosts aren't held up by a throttled host.
+        assertSame(b1, mQueue.poll());
+        assertNull(mQueue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, mQueue.size());
+    }
+
+    @Test
+    public void tokenBucket_refillsOverTime() {
+        TokenBucket bucket = new TokenBucket(/* requestsPerSecond= */ 2, /* burst= */ 1, 0);
+        assertEquals(0, bucket.msUntilToken(0));
+        bucket.take(0);
+        assertEquals(500, bucket.msUntilToken(0));
+        assertEquals(100, bucket.msUntilToken(400));
+        assertEquals(0, bucket.msUntilToken(500));
+        assertTrue(bucket.isFull(10000));
+    }
+
+    @Test
+    public void remove_dropsQueuedRequest() throws Exception {
+        MockRequest a1 = request("http://a/1", Priority.NORMAL);
+        MockRequest a2 = request("http://a/2", Priority.NORMAL);
+
+        mQueue.remove(a1);
+        assertEquals(1, mQueue.size());
+        assertSame(a2, mQueue.poll());
+        assertNull(mQueue.poll());
+    }
+
+    @Test
+    public void prefetch_takenAfterOtherRequests() throws Exception {
+        MockRequest prefetch = prefetch("http://a/1");
+        MockRequest low = request("http://b/1", Priority.LOW);
+
+        assertSame(low, mQueue.take());
+        assertSame(prefetch, mQueue.take());
+    }
+
+    @Test
+    public void prefetch_droppedUnderPressure() throws Exception {
+        mQueue.setPrefetchLimit(2);
+        prefetch("http://a/1");
+        request("http://a/2", Priority.NORMAL);
+        // The queue is full, so a new prefetch is dropped right away.
+        prefetch("http://a/3");
+        assertEquals(2, mQueue.size());
+
+        // Going over the limit drops the prefetches which are already queued.
+        MockRequest b1 = request("http://b/1", Priority.NORMAL);
+        assertEquals(2, mQueue.size());
+        mQueue.take();
+        assertSame(b1, mQueue.take());
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void immediateLane_receivesImmediateRequests() throws Exception {
+        NetworkQueue lane = new NetworkQueue();
+        mQueue.setImmediateLane(lane);
+        MockRequest normal = request("http://a/1", Priority.NORMAL);
+        MockRequest immediate = request("http://a/2", Priority.IMMEDIATE);
+
+        assertEquals(1, mQueue.size());
+        assertSame(immediate, lane.take());
+        assertSame(normal, mQueue.take());
+        assertEquals(1, lane.getTakenCount());
+        assertEquals(1, mQueue.getTakenCount());
+    }
+
+    @Test
+    public void concurrencyLimit_holdsRequestsOfAllHosts() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 2);
+        mQueue.setConcurrencyLimit(limit);
+        MockRequest a1 = request("http://a/1", Priority.NORMAL);
+        MockRequest b1 = request("http://b/1", Priority.NORMAL);
+        MockRequest c1 = request("http://c/1", Priority.NORMAL);
+
+        assertSame(a1, mQueue.take());
+        assertSame(b1, mQueue.take());
+        assertNull(mQueue.poll(10, TimeUnit.MILLISECONDS));
+
+        mQueue.release(a1);
+        assertSame(c1, mQueue.take());
+
+        // A timeout halves the limit to 1, so releasing one of the two requests isn't enough.
+        mQueue.onNetworkResult(c1, 0, /* timedOut= */ true);
+        request("http://d/1", Priority.NORMAL);
+        mQueue.release(b1);
+        assertNull(mQueue.poll(10, TimeUnit.MILLISECONDS));
+        mQueue.release(c1);
+        assertTrue(mQueue.poll(10, TimeUnit.MILLISECONDS) != null);
+    }
+}
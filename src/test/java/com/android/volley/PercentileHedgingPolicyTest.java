@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.volley.mock.MockRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class PercentileHedgingPolicyTest {
+
+    @Test
+    public void usesInitialDelayUntilEnoughSamples() {
+        PercentileHedgingPolicy policy = new PercentileHedgingPolicy(0.95, 500);
+        MockRequest request = new MockRequest("http://a/1", null);
+        for (int i = 0; i < 19; i++) {
+            policy.onResponseTime(request, 10);
+        }
+        assertEquals(500, policy.getHedgeDelayMs(request));
+        policy.onResponseTime(request, 10);
+        assertEquals(10, policy.getHedgeDelayMs(request));
+    }
+
+    @Test
+    public void delayIsPercentileOfHost() {
+        PercentileHedgingPolicy policy = new PercentileHedgingPolicy(0.95, -1);
+        MockRequest a = new MockRequest("http://a/1", null);
+        MockRequest b = new MockRequest("http://b/1", null);
+        for (int i = 1; i <= 100; i++) {
+            policy.onResponseTime(a, i);
+        }
+        assertEquals(95, policy.getHedgeDelayMs(a));
+        assertEquals(-1, policy.getHedgeDelayMs(b));
+    }
+}
@@ -16,9 +16,14 @@
 
 package com.android.volley;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -27,10 +32,19 @@ import com.android.volley.Request.Priority;
 import com.android.volley.RequestQueue.RequestFinishedListener;
 import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.ShadowSystemClock;
+import com.android.volley.toolbox.FileDownloadRequest;
 import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.CacheTestUtils;
 import com.android.volley.utils.ImmediateResponseDelivery;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.InOrder;
 import org.mockito.Mock;
@@ -49,6 +63,8 @@ import org.robolectric.annotation.Config;
 @Config(shadows = {ShadowSystemClock.class})
 public class RequestQueueIntegrationTest {
 
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private ResponseDelivery mDelivery;
     @Mock private Network mMockNetwork;
     @Mock private RequestFinishedListener<byte[]> mMockListener;
@@ -194,4 +210,227 @@ public class RequestQueueIntegrationTest {
         verify(mMockListener, timeout(10000)).onRequestFinished(request);
         queue.stop();
     }
+
+    /** Verify an elastic pool starts extra dispatchers while requests are waiting. */
+    @Test
+    public void add_elasticPoolGrowsWithQueueDepth() throws Exception {
+        final CountDownLatch allInFlight = new CountDownLatch(3);
+        Answer<NetworkResponse> blockingAnswer =
+                new Answer<NetworkResponse>() {
+                    @Override
+                    public NetworkResponse answer(InvocationOnMock invocationOnMock)
+                            throws Throwable {
+                        // Only returns early if all three requests are in flight at once.
+                        allInFlight.countDown();
+                        allInFlight.await(10, TimeUnit.SECONDS);
+                        return mock(NetworkResponse.class);
+                    }
+                };
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(blockingAnswer);
+
+        RequestQueue queue =
+                new RequestQueue(
+                        new NoCache(),
+                        mMockNetwork,
+                        /* minThreadPoolSize= */ 1,
+                        /* maxThreadPoolSize= */ 3,
+                        /* keepAliveMs= */ 1000,
+                        mDelivery);
+        queue.addRequestFinishedListener(mMockListener);
+        queue.start();
+        for (int i = 0; i < 3; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey(Integer.toString(i));
+            queue.add(request);
+        }
+
+        assertTrue(allInFlight.await(5, TimeUnit.SECONDS));
+        queue.stop();
+    }
+
+    /** Verify several cache dispatchers resolve cache hits in parallel. */
+    @Test
+    public void add_cacheDispatchersReadInParallel() throws Exception {
+        final CountDownLatch allReading = new CountDownLatch(3);
+        Answer<Cache.Entry> blockingAnswer =
+                new Answer<Cache.Entry>() {
+                    @Override
+                    public Cache.Entry answer(InvocationOnMock invocationOnMock) throws Throwable {
+                        // Only returns early if all three requests are read at once.
+                        allReading.countDown();
+                        allReading.await(10, TimeUnit.SECONDS);
+                        return CacheTestUtils.makeRandomCacheEntry(null);
+                    }
+                };
+        Cache cache = mock(Cache.class);
+        when(cache.get(anyString())).thenAnswer(blockingAnswer);
+
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 1, mDelivery);
+        queue.setCacheThreadPoolSize(3);
+        queue.start();
+        for (int i = 0; i < 3; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey(Integer.toString(i));
+            queue.add(request);
+        }
+
+        assertTrue(allReading.await(5, TimeUnit.SECONDS));
+        // The dispatchers share a single initialization of the cache.
+        verify(cache, times(1)).initialize();
+        queue.stop();
+    }
+
+    /** Verify identical uncacheable requests share one network request when enabled. */
+    @Test
+    public void add_singleFlightCollapsesUncachedRequests() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        Answer<NetworkResponse> blockingAnswer =
+                new Answer<NetworkResponse>() {
+                    @Override
+                    public NetworkResponse answer(InvocationOnMock invocationOnMock)
+                            throws Throwable {
+                        release.await(10, TimeUnit.SECONDS);
+                        return new NetworkResponse(new byte[0]);
+                    }
+                };
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(blockingAnswer);
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 2, mDelivery);
+        queue.setSingleFlight(true);
+        queue.addRequestFinishedListener(mMockListener);
+        queue.start();
+        MockRequest req1 = new MockRequest();
+        MockRequest req2 = new MockRequest();
+        MockRequest other = new MockRequest("http://bar.com", null);
+        req1.setShouldCache(false);
+        req2.setShouldCache(false);
+        other.setShouldCache(false);
+        queue.add(req1);
+        queue.add(req2);
+        queue.add(other);
+        release.countDown();
+
+        verify(mMockListener, timeout(10000)).onRequestFinished(req1);
+        verify(mMockListener, timeout(10000)).onRequestFinished(req2);
+        verify(mMockListener, timeout(10000)).onRequestFinished(other);
+        assertTrue(req2.deliverResponse_called);
+        verify(mMockNetwork, times(2)).performRequest(any(Request.class));
+        queue.stop();
+    }
+
+    /** Verify downloads of the same URL to different files aren't collapsed. */
+    @Test
+    public void add_singleFlightKeepsDownloadsToDifferentTargets() throws Exception {
+        final CountDownLatch bothInFlight = new CountDownLatch(2);
+        Answer<NetworkResponse> blockingAnswer =
+                new Answer<NetworkResponse>() {
+                    @Override
+                    public NetworkResponse answer(InvocationOnMock invocationOnMock)
+                            throws Throwable {
+                        bothInFlight.countDown();
+                        bothInFlight.await(10, TimeUnit.SECONDS);
+                        return new NetworkResponse(new byte[0]);
+                    }
+                };
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(blockingAnswer);
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 2, mDelivery);
+        queue.setSingleFlight(true);
+        queue.start();
+        FileDownloadRequest first =
+                new FileDownloadRequest(
+                        "http://foo.com", new File(temporaryFolder.getRoot(), "first"), null, null);
+        FileDownloadRequest second =
+                new FileDownloadRequest(
+                        "http://foo.com",
+                        new File(temporaryFolder.getRoot(), "second"),
+                        null,
+                        null);
+        queue.add(first);
+        queue.add(second);
+
+        // Both requests go to the network, rather than the second waiting for the first.
+        verify(mMockNetwork, timeout(10000)).performRequest(first);
+        verify(mMockNetwork, timeout(10000)).performRequest(second);
+        queue.stop();
+    }
+
+    /** Verify dispatchers can run as tasks of caller-provided executors. */
+    @Test
+    public void add_dispatchersRunOnExecutors() throws Exception {
+        final CountDownLatch allInFlight = new CountDownLatch(3);
+        Answer<NetworkResponse> blockingAnswer =
+                new Answer<NetworkResponse>() {
+                    @Override
+                    public NetworkResponse answer(InvocationOnMock invocationOnMock)
+                            throws Throwable {
+                        // Only returns early if all three requests are in flight at once.
+                        allInFlight.countDown();
+                        allInFlight.await(10, TimeUnit.SECONDS);
+                        return new NetworkResponse(new byte[0]);
+                    }
+                };
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(blockingAnswer);
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        RequestQueue queue =
+                new RequestQueue(new NoCache(), mMockNetwork, executor, executor, 3, mDelivery);
+        queue.addRequestFinishedListener(mMockListener);
+        queue.start();
+        MockRequest[] requests = new MockRequest[3];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new MockRequest();
+            requests[i].setShouldCache(false);
+            requests[i].setCacheKey(Integer.toString(i));
+            queue.add(requests[i]);
+        }
+
+        assertTrue(allInFlight.await(5, TimeUnit.SECONDS));
+        for (MockRequest request : requests) {
+            verify(mMockListener, timeout(10000)).onRequestFinished(request);
+        }
+        queue.stop();
+        // The executor stays usable, and its tasks end once the queue is stopped.
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /** Verify IMMEDIATE requests don't wait behind slow requests when they have their own lane. */
+    @Test
+    public void add_immediateRequestUsesReservedLane() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final MockRequest slow = new MockRequest("http://foo.com/slow", null);
+        Answer<NetworkResponse> answer =
+                new Answer<NetworkResponse>() {
+                    @Override
+                    public NetworkResponse answer(InvocationOnMock invocationOnMock)
+                            throws Throwable {
+                        if (invocationOnMock.getArguments()[0] == slow) {
+                            release.await(10, TimeUnit.SECONDS);
+                        }
+                        return new NetworkResponse(new byte[0]);
+                    }
+                };
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(answer);
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.setImmediateLaneSize(1);
+        queue.addRequestFinishedListener(mMockListener);
+        queue.start();
+        slow.setPriority(Priority.LOW);
+        slow.setShouldCache(false);
+        queue.add(slow);
+        MockRequest immediate = new MockRequest();
+        immediate.setPriority(Priority.IMMEDIATE);
+        immediate.setShouldCache(false);
+        queue.add(immediate);
+
+        // Completes while the only regular dispatcher is still busy.
+        verify(mMockListener, timeout(10000)).onRequestFinished(immediate);
+        assertEquals(1, queue.getNetworkDispatchCount(RequestQueue.NetworkLane.IMMEDIATE));
+        release.countDown();
+        verify(mMockListener, timeout(10000)).onRequestFinished(slow);
+        assertEquals(1, queue.getNetworkDispatchCount(RequestQueue.NetworkLane.DEFAULT));
+        queue.stop();
+    }
 }
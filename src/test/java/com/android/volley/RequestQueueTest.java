@@ -16,12 +16,15 @@
 
 package com.android.volley;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.ShadowSystemClock;
 import com.android.volley.toolbox.NoCache;
 import com.android.volley.toolbox.StringRequest;
@@ -72,4 +75,33 @@ public class RequestQueueTest {
         verify(req2, never()).cancel(); // B not cancelled
         verify(req4, never()).cancel(); // A added after cancel not cancelled
     }
+
+    @Test
+    public void cancelAll_followsTagChangedAfterAdd() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        Object tagA = new Object();
+        Object tagB = new Object();
+        MockRequest request = new MockRequest();
+        request.setTag(tagA);
+        queue.add(request);
+        request.setTag(tagB);
+
+        queue.cancelAll(tagA);
+        assertFalse(request.cancel_called);
+        queue.cancelAll(tagB);
+        assertTrue(request.cancel_called);
+    }
+
+    @Test
+    public void cancelAll_ignoresFinishedRequests() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        Object tag = new Object();
+        MockRequest request = new MockRequest();
+        request.setTag(tag);
+        queue.add(request);
+        ((Request<?>) request).finish("done");
+
+        queue.cancelAll(tag);
+        assertFalse(request.cancel_called);
+    }
 }
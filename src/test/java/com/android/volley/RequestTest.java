@@ -189,4 +189,28 @@ public class RequestTest {
             // expected
         }
     }
+
+    @Test
+    public void cancelRunsCancelAction() {
+        final int[] runs = new int[1];
+        Runnable cancelAction =
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        runs[0]++;
+                    }
+                };
+        Request<?> request = new UrlParseRequest("http://foo.com");
+        request.setCancelAction(cancelAction);
+        assertEquals(0, runs[0]);
+
+        request.cancel();
+        assertEquals(1, runs[0]);
+        request.cancel();
+        assertEquals(1, runs[0]);
+
+        // An action set after the request was canceled runs right away.
+        request.setCancelAction(cancelAction);
+        assertEquals(2, runs[0]);
+    }
 }
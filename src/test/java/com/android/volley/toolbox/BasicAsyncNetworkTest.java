@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.volley.Cache.Entry;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.TimeoutError;
+import com.android.volley.mock.MockAsyncStack;
+import java.io.ByteArrayInputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class BasicAsyncNetworkTest {
+
+    @Test
+    public void successWithContentBytes() throws Exception {
+        MockAsyncStack stack = new MockAsyncStack();
+        byte[] data = "foobar".getBytes(StandardCharsets.UTF_8);
+        stack.setResponseToReturn(new HttpResponse(200, Collections.<Header>emptyList(), data));
+        BasicAsyncNetwork network = new BasicAsyncNetwork(stack);
+        Request<String> request = buildRequest();
+        Entry entry = new Entry();
+        entry.etag = "foobar";
+        request.setCacheEntry(entry);
+
+        NetworkResponse response = network.performRequest(request);
+
+        assertEquals(200, response.statusCode);
+        assertArrayEquals(data, response.data);
+        assertEquals("foobar", stack.getLastHeaders().get("If-None-Match"));
+    }
+
+    @Test
+    public void successWithStreamReadOnBlockingExecutor() throws Exception {
+        MockAsyncStack stack = new MockAsyncStack();
+        byte[] data = "foobar".getBytes(StandardCharsets.UTF_8);
+        stack.setResponseToReturn(
+                new HttpResponse(
+                        200,
+                        Collections.<Header>emptyList(),
+                        data.length,
+                        new ByteArrayInputStream(data)));
+        BasicAsyncNetwork network = new BasicAsyncNetwork(stack);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        network.setBlockingExecutor(executor);
+        try {
+            NetworkResponse response = network.performRequest(buildRequest());
+            assertArrayEquals(data, response.data);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void notModified() throws Exception {
+        MockAsyncStack stack = new MockAsyncStack();
+        stack.setResponseToReturn(
+                new HttpResponse(
+                        HttpURLConnection.HTTP_NOT_MODIFIED, Collections.<Header>emptyList()));
+        BasicAsyncNetwork network = new BasicAsyncNetwork(stack);
+        Request<String> request = buildRequest();
+        Entry entry = new Entry();
+        entry.data = new byte[] {1, 2, 3};
+        request.setCacheEntry(entry);
+
+        NetworkResponse response = network.performRequest(request);
+
+        assertTrue(response.notModified);
+        assertArrayEquals(entry.data, response.data);
+    }
+
+    @Test
+    public void socketTimeoutRetriesUntilPolicyGivesUp() throws Exception {
+        MockAsyncStack stack = new MockAsyncStack();
+        stack.setExceptionToThrow(new SocketTimeoutException());
+        BasicAsyncNetwork network = new BasicAsyncNetwork(stack);
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(new DefaultRetryPolicy(1000, /* maxNumRetries= */ 2, 1f));
+
+        try {
+            network.performRequest(request);
+            fail("Should have thrown TimeoutError");
+        } catch (TimeoutError e) {
+            // expected
+        }
+        assertEquals(3, stack.getRequestCount());
+    }
+
+    private static Request<String> buildRequest() {
+        return new Request<String>(Request.Method.GET, "http://foo", null) {
+            @Override
+            protected Response<String> parseNetworkResponse(NetworkResponse response) {
+                return null;
+            }
+
+            @Override
+            protected void deliverResponse(String response) {}
+        };
+    }
+}
@@ -26,6 +26,7 @@ import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import android.os.SystemClock;
 import com.android.volley.AuthFailureError;
 import com.android.volley.Cache.Entry;
 import com.android.volley.Header;
@@ -181,6 +182,23 @@ public class BasicNetworkTest {
         verify(mMockRetryPolicy).retry(any(TimeoutError.class));
     }
 
+    @Test
+    public void socketTimeoutPastDeadline() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setExceptionToThrow(new SocketTimeoutException());
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        Request<String> request = buildRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        request.setDeadline(SystemClock.elapsedRealtime() - 1);
+        try {
+            httpNetwork.performRequest(request);
+        } catch (TimeoutError e) {
+            // expected
+        }
+        // should not retry once the deadline has passed
+        verify(mMockRetryPolicy, never()).retry(any(VolleyError.class));
+    }
+
     @Test
     public void noConnection() throws Exception {
         MockHttpStack mockHttpStack = new MockHttpStack();
@@ -349,4 +367,35 @@ public class BasicNetworkTest {
             }
         };
     }
+
+    @Test
+    public void canceledDuringRead() throws Exception {
+        final Request<String> request = buildRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        // Serves an endless body, canceling the request after the first chunk.
+        InputStream responseStream =
+                new InputStream() {
+                    @Override
+                    public int read() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) {
+                        request.cancel();
+                        return length;
+                    }
+                };
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setResponseToReturn(
+                new HttpResponse(200, Collections.<Header>emptyList(), -1, responseStream));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        try {
+            httpNetwork.performRequest(request);
+        } catch (VolleyError e) {
+            // expected
+        }
+        // should not retry a canceled request
+        verify(mMockRetryPolicy, never()).retry(any(VolleyError.class));
+    }
 }
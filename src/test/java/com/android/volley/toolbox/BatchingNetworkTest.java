@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.ClientError;
+import com.android.volley.Header;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchingNetworkTest {
+
+    /** Answers batches with a 404 for the first request and the second request's URL otherwise. */
+    private final Network mBatchEndpoint =
+            new Network() {
+                @Override
+                public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                    mBatchBody.set(new String(request.getBody(), StandardCharsets.UTF_8));
+                    String body =
+                            "--resp\r\n"
+                                    + "Content-Type: application/http\r\n"
+                                    + "Content-ID: <response-item-1>\r\n"
+                                    + "\r\n"
+                                    + "HTTP/1.1 200 OK\r\n"
+                                    + "Content-Type: text/plain\r\n"
+                                    + "\r\n"
+                                    + "second\r\n"
+                                    + "--resp\r\n"
+                                    + "Content-Type: application/http\r\n"
+                                    + "Content-ID: <response-item-0>\r\n"
+                                    + "\r\n"
+                                    + "HTTP/1.1 404 Not Found\r\n"
+                                    + "\r\n"
+                                    + "\r\n"
+                                    + "--resp--\r\n";
+                    return new NetworkResponse(
+                            200,
+                            body.getBytes(StandardCharsets.UTF_8),
+                            false,
+                            0,
+                            Collections.singletonList(
+                                    new Header("Content-Type", "multipart/mixed; boundary=resp")));
+                }
+            };
+
+    private final AtomicReference<String> mBatchBody = new AtomicReference<>();
+
+    private static BatchPolicy policy(final int maxBatchSize, final long maxDelayMs) {
+        return new BatchPolicy() {
+            @Override
+            public String getBatchUrl(Request<?> request) {
+                return "http://foo.com/batch";
+            }
+
+            @Override
+            public int getMaxBatchSize() {
+                return maxBatchSize;
+            }
+
+            @Override
+            public long getMaxDelayMs() {
+                return maxDelayMs;
+            }
+        };
+    }
+
+    @Test
+    public void concurrentRequestsShareBatch() throws Exception {
+        final BatchingNetwork network = new BatchingNetwork(mBatchEndpoint, policy(2, 10000));
+        final MockRequest first = new MockRequest("http://foo.com/first", null);
+        final AtomicReference<Object> firstResult = new AtomicReference<>();
+        Thread thread =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            firstResult.set(network.performRequest(first));
+                        } catch (VolleyError e) {
+                            firstResult.set(e);
+                        }
+                    }
+                };
+        thread.start();
+        // Wait for the first request to open the batch.
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(5);
+        }
+
+        NetworkResponse response =
+                network.performRequest(new MockRequest("http://foo.com/second", null));
+        thread.join();
+
+        assertArrayEquals("second".getBytes(StandardCharsets.UTF_8), response.data);
+        assertEquals(200, response.statusCode);
+        assertTrue(firstResult.get() instanceof ClientError);
+        assertEquals(404, ((ClientError) firstResult.get()).networkResponse.statusCode);
+        assertEquals(1, network.getBatchCount());
+        assertEquals(2, network.getBatchedRequestCount());
+        assertTrue(mBatchBody.get().contains("GET http://foo.com/first HTTP/1.1"));
+        assertTrue(mBatchBody.get().contains("GET http://foo.com/second HTTP/1.1"));
+    }
+
+    @Test
+    public void singleRequestIsSentPlain() throws Exception {
+        final List<Request<?>> sent = new ArrayList<>();
+        final NetworkResponse plainResponse = new NetworkResponse(new byte[1]);
+        BatchingNetwork network =
+                new BatchingNetwork(
+                        new Network() {
+                            @Override
+                            public NetworkResponse performRequest(Request<?> request) {
+                                sent.add(request);
+                                return plainResponse;
+                            }
+                        },
+                        policy(2, 1));
+        MockRequest request = new MockRequest();
+
+        assertSame(plainResponse, network.performRequest(request));
+        assertEquals(Collections.<Request<?>>singletonList(request), sent);
+        assertEquals(0, network.getBatchCount());
+    }
+
+    @Test
+    public void failedBatchFallsBackToPlainRequests() throws Exception {
+        final BatchingNetwork network =
+                new BatchingNetwork(
+                        new Network() {
+                            @Override
+                            public NetworkResponse performRequest(Request<?> request)
+                                    throws VolleyError {
+                                if (request.getMethod() == Request.Method.POST) {
+                                    throw new ServerError();
+                                }
+                                return new NetworkResponse(
+                                        request.getUrl().getBytes(StandardCharsets.UTF_8));
+                            }
+                        },
+                        policy(2, 10000));
+        final AtomicReference<Object> firstResult = new AtomicReference<>();
+        Thread thread =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            firstResult.set(
+                                    network.performRequest(
+                                            new MockRequest("http://foo.com/first", null)));
+                        } catch (VolleyError e) {
+                            firstResult.set(e);
+                        }
+                    }
+                };
+        thread.start();
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(5);
+        }
+
+        NetworkResponse response =
+                network.performRequest(new MockRequest("http://foo.com/second", null));
+        thread.join();
+
+        assertArrayEquals("http://foo.com/second".getBytes(StandardCharsets.UTF_8), response.data);
+        assertArrayEquals(
+                "http://foo.com/first".getBytes(StandardCharsets.UTF_8),
+                ((NetworkResponse) firstResult.get()).data);
+        assertEquals(1, network.getBatchCount());
+    }
+
+    @Test
+    public void canceledRequestIsLeftOutOfBatch() throws Exception {
+        final BatchingNetwork network = new BatchingNetwork(mBatchEndpoint, policy(3, 10000));
+        final AtomicReference<Object> firstResult = new AtomicReference<>();
+        Thread first =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            firstResult.set(
+                                    network.performRequest(
+                                            new MockRequest("http://foo.com/first", null)));
+                        } catch (VolleyError e) {
+                            firstResult.set(e);
+                        }
+                    }
+                };
+        first.start();
+        while (first.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(5);
+        }
+        final MockRequest canceled = new MockRequest("http://foo.com/canceled", null);
+        final AtomicReference<VolleyError> canceledError = new AtomicReference<>();
+        Thread second =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            network.performRequest(canceled);
+                        } catch (VolleyError e) {
+                            canceledError.set(e);
+                        }
+                    }
+                };
+        second.start();
+        while (second.getState() != Thread.State.WAITING) {
+            Thread.sleep(5);
+        }
+
+        // The canceled request stops waiting for the batch right away.
+        canceled.cancel();
+        second.join();
+        assertTrue(canceledError.get() != null);
+
+        NetworkResponse response =
+                network.performRequest(new MockRequest("http://foo.com/second", null));
+        first.join();
+
+        assertArrayEquals("second".getBytes(StandardCharsets.UTF_8), response.data);
+        assertTrue(firstResult.get() instanceof ClientError);
+        assertEquals(2, network.getBatchedRequestCount());
+        assertFalse(mBatchBody.get().contains("http://foo.com/canceled"));
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.mock.MockHttpStack;
+import com.android.volley.mock.MockRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ContentDecoderTest {
+
+    private static final byte[] BODY =
+            "a body which compresses well, well, well, well".getBytes(StandardCharsets.UTF_8);
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data, boolean nowrap) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate =
+                new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+        deflate.write(data);
+        deflate.close();
+        return out.toByteArray();
+    }
+
+    private static List<Header> encodedHeaders(String encoding, int length) {
+        List<Header> headers = new ArrayList<>();
+        headers.add(new Header("Content-Encoding", encoding));
+        headers.add(new Header("Content-Length", String.valueOf(length)));
+        headers.add(new Header("ETag", "tag"));
+        return headers;
+    }
+
+    private static NetworkResponse perform(MockRequest request, String encoding, byte[] body)
+            throws Exception {
+        MockHttpStack stack = new MockHttpStack();
+        stack.setResponseToReturn(
+                new HttpResponse(
+                        200,
+                        encodedHeaders(encoding, body.length),
+                        body.length,
+                        new ByteArrayInputStream(body)));
+        return new BasicNetwork(stack).performRequest(request);
+    }
+
+    @Test
+    public void gzipBodyIsDecoded() throws Exception {
+        MockHttpStack stack = new MockHttpStack();
+        byte[] body = gzip(BODY);
+        stack.setResponseToReturn(
+                new HttpResponse(
+                        200,
+                        encodedHeaders("gzip", body.length),
+                        body.length,
+                        new ByteArrayInputStream(body)));
+
+        NetworkResponse response = new BasicNetwork(stack).performRequest(new MockRequest());
+
+        assertEquals("gzip, deflate", stack.getLastHeaders().get("Accept-Encoding"));
+        assertArrayEquals(BODY, response.data);
+        assertEquals(Collections.singletonList(new Header("ETag", "tag")), response.allHeaders);
+    }
+
+    @Test
+    public void deflateBodyIsDecoded() throws Exception {
+        assertArrayEquals(BODY, perform(new MockRequest(), "deflate", deflate(BODY, false)).data);
+        // Raw deflate data, as sent by some servers.
+        assertArrayEquals(BODY, perform(new MockRequest(), "deflate", deflate(BODY, true)).data);
+    }
+
+    @Test
+    public void bufferedBodyIsDecoded() throws Exception {
+        HttpResponse response = new HttpResponse(200, encodedHeaders("gzip", 0), gzip(BODY));
+
+        HttpResponse decoded =
+                ContentDecoder.decode(new MockRequest(), response, new ByteArrayPool(4096));
+
+        assertArrayEquals(BODY, decoded.getContentBytes());
+    }
+
+    @Test
+    public void closedStreamReleasesInflater() throws Exception {
+        byte[] body = gzip(BODY);
+        final boolean[] closed = new boolean[1];
+        InputStream content =
+                new ByteArrayInputStream(body) {
+                    @Override
+                    public void close() {
+                        closed[0] = true;
+                    }
+                };
+        HttpResponse response =
+                new HttpResponse(200, encodedHeaders("gzip", body.length), body.length, content);
+
+        InputStream decoded =
+                ContentDecoder.decode(new MockRequest(), response, new ByteArrayPool(4096))
+                        .getContent();
+        decoded.read();
+        decoded.close();
+        decoded.close();
+
+        assertTrue(closed[0]);
+        try {
+            decoded.read();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+        // The pooled inflater can be used again.
+        assertArrayEquals(BODY, perform(new MockRequest(), "gzip", body).data);
+    }
+
+    @Test
+    public void emptyBodyIsAccepted() throws Exception {
+        assertEquals(0, perform(new MockRequest(), "gzip", new byte[0]).data.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptTrailerIsRejected() throws Exception {
+        byte[] body = gzip(BODY);
+        body[body.length - 1]++;
+        HttpResponse response = new HttpResponse(200, encodedHeaders("gzip", 0), body);
+
+        ContentDecoder.decode(new MockRequest(), response, new ByteArrayPool(4096));
+    }
+
+    @Test
+    public void requestWithOwnAcceptEncodingIsNotDecoded() throws Exception {
+        MockRequest request =
+                new MockRequest() {
+                    @Override
+                    public Map<String, String> getHeaders() {
+                        Map<String, String> headers = new HashMap<>();
+                        headers.put("accept-encoding", "gzip");
+                        return headers;
+                    }
+                };
+        byte[] body = gzip(BODY);
+
+        assertArrayEquals(body, perform(request, "gzip", body).data);
+    }
+
+    @Test
+    public void identityBodyIsUntouched() throws Exception {
+        HttpResponse response = new HttpResponse(200, Collections.<Header>emptyList(), BODY);
+
+        assertSame(
+                response,
+                ContentDecoder.decode(new MockRequest(), response, new ByteArrayPool(4096)));
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Header;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.mock.MockHttpStack;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class FileDownloadRequestTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static NetworkResponse perform(FileDownloadRequest request, InputStream body)
+            throws Exception {
+        MockHttpStack stack = new MockHttpStack();
+        stack.setResponseToReturn(
+                new HttpResponse(
+                        200,
+                        Collections.singletonList(new Header("Content-Length", "20000")),
+                        20000,
+                        body));
+        return new BasicNetwork(stack).performRequest(request);
+    }
+
+    @Test
+    public void bodyIsWrittenToTarget() throws Exception {
+        File target = new File(temporaryFolder.getRoot(), "file");
+        byte[] body = new byte[20000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        FileDownloadRequest request = new FileDownloadRequest("http://foo.com", target, null, null);
+        final List<Long> progress = new ArrayList<>();
+        request.setProgressListener(
+                new FileDownloadRequest.ProgressListener() {
+                    @Override
+                    public void onProgress(long bytesWritten, long totalBytes) {
+                        assertEquals(20000, totalBytes);
+                        progress.add(bytesWritten);
+                    }
+                });
+
+        NetworkResponse networkResponse = perform(request, new ByteArrayInputStream(body));
+        Response<File> response = request.parseNetworkResponse(networkResponse);
+
+        assertSame(target, response.result);
+        assertArrayEquals(body, Files.readAllBytes(target.toPath()));
+        assertEquals(0, networkResponse.data.length);
+        assertEquals(20000L, (long) progress.get(progress.size() - 1));
+        assertEquals(1, temporaryFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void failedDownloadLeavesTargetUntouched() throws Exception {
+        File target = temporaryFolder.newFile("file");
+        FileOutputStream out = new FileOutputStream(target);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        FileDownloadRequest request = new FileDownloadRequest("http://foo.com", target, null, null);
+        request.setRetryPolicy(new DefaultRetryPolicy(1000, 0, 1f));
+        InputStream failing =
+                new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException();
+                    }
+                };
+
+        try {
+            perform(
+                    request,
+                    new SequenceInputStream(new ByteArrayInputStream(new byte[10]), failing));
+        } catch (NetworkError e) {
+            // expected
+        }
+
+        assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(target.toPath()));
+        assertFalse(new File(target.getPath() + ".download").exists());
+    }
+
+    /** Serves the given responses in order, recording the request headers of each. */
+    private static class SequenceHttpStack extends BaseHttpStack {
+        final List<HttpResponse> responses = new ArrayList<>();
+        final List<Map<String, String>> requestHeaders = new ArrayList<>();
+
+        @Override
+        public HttpResponse executeRequest(
+                Request<?> request, Map<String, String> additionalHeaders) throws AuthFailureError {
+            Map<String, String> headers = new HashMap<>(additionalHeaders);
+            headers.putAll(request.getHeaders());
+            requestHeaders.add(headers);
+            return responses.remove(0);
+        }
+    }
+
+    private static InputStream failingAfter(byte[] data) {
+        return new SequenceInputStream(
+                new ByteArrayInputStream(data),
+                new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException();
+                    }
+                });
+    }
+
+    private static List<Header> headers(String... namesAndValues) {
+        List<Header> headers = new ArrayList<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.add(new Header(namesAndValues[i], namesAndValues[i + 1]));
+        }
+        return headers;
+    }
+
+    @Test
+    public void retryResumesDownload() throws Exception {
+        File target = new File(temporaryFolder.getRoot(), "file");
+        SequenceHttpStack stack = new SequenceHttpStack();
+        stack.responses.add(
+                new HttpResponse(
+                        200,
+                        headers("ETag", "\"v1\"", "Content-Length", "6"),
+                        6,
+                        failingAfter(new byte[] {1, 2, 3, 4})));
+        stack.responses.add(
+                new HttpResponse(
+                        206,
+                        headers("Content-Range", "bytes 4-5/6", "Content-Length", "2"),
+                        2,
+                        new ByteArrayInputStream(new byte[] {5, 6})));
+        FileDownloadRequest request = new FileDownloadRequest("http://foo.com", target, null, null);
+        request.setRetryPolicy(new DefaultRetryPolicy(1000, 1, 1f));
+
+        Response<File> response =
+                request.parseNetworkResponse(new BasicNetwork(stack).performRequest(request));
+
+        assertSame(target, response.result);
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, Files.readAllBytes(target.toPath()));
+        assertEquals("identity", stack.requestHeaders.get(0).get("Accept-Encoding"));
+        assertNull(stack.requestHeaders.get(0).get("Range"));
+        assertEquals("bytes=4-", stack.requestHeaders.get(1).get("Range"));
+        assertEquals("\"v1\"", stack.requestHeaders.get(1).get("If-Range"));
+        assertEquals(1, temporaryFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void changedFileIsDownloadedAgain() throws Exception {
+        File target = new File(temporaryFolder.getRoot(), "file");
+        SequenceHttpStack stack = new SequenceHttpStack();
+        stack.responses.add(
+                new HttpResponse(
+                        200,
+                        headers("Last-Modified", "Sat, 19 Aug 2017 00:20:02 GMT"),
+                        -1,
+                        failingAfter(new byte[] {1, 2, 3, 4})));
+        // The file has changed since, so the server ignores the range.
+        stack.responses.add(
+                new HttpResponse(
+                        200,
+                        headers("Last-Modified", "Sun, 20 Aug 2017 00:20:02 GMT"),
+                        3,
+                        new ByteArrayInputStream(new byte[] {7, 8, 9})));
+        FileDownloadRequest first = new FileDownloadRequest("http://foo.com", target, null, null);
+        first.setRetryPolicy(new DefaultRetryPolicy(1000, 0, 1f));
+        try {
+            new BasicNetwork(stack).performRequest(first);
+        } catch (NetworkError e) {
+            // expected
+        }
+
+        // A later request for the same target picks up the partial download.
+        FileDownloadRequest second = new FileDownloadRequest("http://foo.com", target, null, null);
+        second.parseNetworkResponse(new BasicNetwork(stack).performRequest(second));
+
+        assertEquals("Sat, 19 Aug 2017 00:20:02 GMT", stack.requestHeaders.get(1).get("If-Range"));
+        assertArrayEquals(new byte[] {7, 8, 9}, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(
+                FileDownloadRequest.class.getConstructor(
+                        String.class,
+                        File.class,
+                        Response.Listener.class,
+                        Response.ErrorListener.class));
+        assertNotNull(
+                FileDownloadRequest.class.getMethod(
+                        "setProgressListener", FileDownloadRequest.ProgressListener.class));
+        assertNotNull(FileDownloadRequest.class.getMethod("getTarget"));
+        assertNotNull(FileDownloadRequest.class.getMethod("setResumable", boolean.class));
+        assertNotNull(FileDownloadRequest.class.getMethod("getMaxSegments"));
+        assertNotNull(FileDownloadRequest.class.getMethod("setMaxSegments", int.class));
+    }
+}
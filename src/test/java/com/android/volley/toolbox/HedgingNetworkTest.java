@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.HedgingPolicy;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockRequest;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class HedgingNetworkTest {
+
+    private final NetworkResponse mSlowResponse = new NetworkResponse(new byte[1]);
+    private final NetworkResponse mFastResponse = new NetworkResponse(new byte[2]);
+    private final CountDownLatch mReleaseSlow = new CountDownLatch(1);
+    private final AtomicInteger mAttempts = new AtomicInteger();
+    private final List<Request<?>> mAttemptRequests =
+            Collections.synchronizedList(new ArrayList<Request<?>>());
+    private Network mSlowThenFastNetwork;
+    private HedgingPolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        // The first attempt only completes once released; later attempts complete immediately.
+        mSlowThenFastNetwork =
+                new Network() {
+                    @Override
+                    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                        mAttemptRequests.add(request);
+                        if (mAttempts.incrementAndGet() > 1) {
+                            return mFastResponse;
+                        }
+                        try {
+                            mReleaseSlow.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            throw new VolleyError(e);
+                        }
+                        return mSlowResponse;
+                    }
+                };
+        mPolicy =
+                new HedgingPolicy() {
+                    @Override
+                    public long getHedgeDelayMs(Request<?> request) {
+                        return 10;
+                    }
+
+                    @Override
+                    public void onResponseTime(Request<?> request, long responseTimeMs) {}
+                };
+    }
+
+    @After
+    public void tearDown() {
+        mReleaseSlow.countDown();
+    }
+
+    @Test
+    public void slowRequestIsHedged() throws Exception {
+        HedgingNetwork network = new HedgingNetwork(mSlowThenFastNetwork, 1);
+        MockRequest request = new MockRequest();
+        request.setHedgingPolicy(mPolicy);
+
+        assertSame(mFastResponse, network.performRequest(request));
+        assertEquals(1, network.getHedgeCount());
+        assertEquals(1, network.getHedgeWinCount());
+    }
+
+    @Test
+    public void exhaustedBudgetPerformsRequestDirectly() throws Exception {
+        HedgingNetwork network = new HedgingNetwork(mSlowThenFastNetwork, 0);
+        MockRequest request = new MockRequest();
+        request.setHedgingPolicy(mPolicy);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    // Release the request early.
+                }
+                mReleaseSlow.countDown();
+            }
+        }.start();
+
+        assertSame(mSlowResponse, network.performRequest(request));
+        assertEquals(0, network.getHedgeCount());
+        assertEquals(1, mAttempts.get());
+        // Without a copy for a separate attempt thread.
+        assertSame(request, mAttemptRequests.get(0));
+    }
+
+    @Test
+    public void requestWithoutPolicyIsNotHedged() throws Exception {
+        HedgingNetwork network = new HedgingNetwork(mSlowThenFastNetwork, 1);
+        mReleaseSlow.countDown();
+
+        assertSame(mSlowResponse, network.performRequest(new MockRequest()));
+        assertEquals(0, network.getHedgeCount());
+    }
+
+    @Test
+    public void losingAttemptIsCanceled() throws Exception {
+        HedgingNetwork network = new HedgingNetwork(mSlowThenFastNetwork, 1);
+        MockRequest request = new MockRequest();
+        request.setHedgingPolicy(mPolicy);
+
+        assertSame(mFastResponse, network.performRequest(request));
+
+        // Each attempt has its own copy of the request, and only the loser is canceled.
+        assertEquals(2, mAttemptRequests.size());
+        Request<?> primary = mAttemptRequests.get(0);
+        Request<?> hedge = mAttemptRequests.get(1);
+        assertNotSame(request, primary);
+        assertNotSame(primary, hedge);
+        assertNotSame(primary.getRetryPolicy(), hedge.getRetryPolicy());
+        assertTrue(primary.isCanceled());
+        assertFalse(hedge.isCanceled());
+        assertFalse(request.isCanceled());
+    }
+
+    @Test
+    public void streamingRequestIsNotHedged() throws Exception {
+        HedgingNetwork network = new HedgingNetwork(mSlowThenFastNetwork, 1);
+        mReleaseSlow.countDown();
+        StreamingRequest<Void> request =
+                new StreamingRequest<Void>(Request.Method.GET, "http://foo.com", null) {
+                    @Override
+                    protected Void parseResponseStream(NetworkResponse response, InputStream body) {
+                        return null;
+                    }
+
+                    @Override
+                    protected void deliverResponse(Void response) {}
+                };
+        request.setHedgingPolicy(mPolicy);
+
+        assertSame(mSlowResponse, network.performRequest(request));
+        assertEquals(0, network.getHedgeCount());
+        assertSame(request, mAttemptRequests.get(0));
+    }
+
+    @Test(expected = ServerError.class)
+    public void errorOfOnlyAttemptIsThrown() throws Exception {
+        HedgingNetwork network =
+                new HedgingNetwork(
+                        new Network() {
+                            @Override
+                            public NetworkResponse performRequest(Request<?> request)
+                                    throws VolleyError {
+                                throw new ServerError();
+                            }
+                        },
+                        1);
+        MockRequest request = new MockRequest();
+        request.setHedgingPolicy(mPolicy);
+        network.performRequest(request);
+    }
+}
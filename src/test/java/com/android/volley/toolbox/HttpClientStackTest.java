@@ -19,9 +19,15 @@ package com.android.volley.toolbox;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import com.android.volley.BodyWriter;
 import com.android.volley.Request.Method;
 import com.android.volley.mock.TestRequest;
 import com.android.volley.toolbox.HttpClientStack.HttpPatch;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
@@ -153,4 +159,33 @@ public class HttpClientStackTest {
         HttpUriRequest httpRequest = HttpClientStack.createHttpRequest(request, null);
         assertTrue(httpRequest instanceof HttpPatch);
     }
+
+    @Test
+    public void createPostRequestWithBodyWriter() throws Exception {
+        TestRequest.Post request =
+                new TestRequest.Post() {
+                    @Override
+                    public BodyWriter getBodyWriter() {
+                        return new BodyWriter() {
+                            @Override
+                            public long getContentLength() {
+                                return -1;
+                            }
+
+                            @Override
+                            public void writeTo(OutputStream out) throws IOException {
+                                out.write("abc".getBytes(StandardCharsets.UTF_8));
+                            }
+                        };
+                    }
+                };
+
+        HttpUriRequest httpRequest = HttpClientStack.createHttpRequest(request, null);
+        HttpEntity entity = ((HttpPost) httpRequest).getEntity();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        assertTrue(entity.isChunked());
+        assertTrue(entity.isRepeatable());
+        assertEquals("abc", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
 }
@@ -18,22 +18,27 @@ package com.android.volley.toolbox;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.android.volley.BodyWriter;
 import com.android.volley.Header;
+import com.android.volley.Request;
 import com.android.volley.Request.Method;
 import com.android.volley.mock.TestRequest;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -44,6 +49,7 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
 
 @RunWith(RobolectricTestRunner.class)
 public class HurlStackTest {
@@ -195,6 +201,105 @@ public class HurlStackTest {
         verify(mMockConnection).setDoOutput(true);
     }
 
+    private static TestRequest.Post postWithBodyWriter(final long contentLength) {
+        return new TestRequest.Post() {
+            @Override
+            public BodyWriter getBodyWriter() {
+                return new BodyWriter() {
+                    @Override
+                    public long getContentLength() {
+                        return contentLength;
+                    }
+
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        out.write("ab".getBytes(StandardCharsets.UTF_8));
+                        out.write('c');
+                    }
+                };
+            }
+        };
+    }
+
+    @Test
+    public void connectionForPostWithBodyWriter_fixedLength() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        when(mMockConnection.getOutputStream()).thenReturn(out);
+        TestRequest.Post request = postWithBodyWriter(3);
+        final List<Long> progress = new ArrayList<>();
+        request.setUploadProgressListener(
+                new Request.UploadProgressListener() {
+                    @Override
+                    public void onUploadProgress(long bytesWritten, long totalBytes) {
+                        assertEquals(3, totalBytes);
+                        progress.add(bytesWritten);
+                    }
+                });
+
+        HurlStack.setConnectionParametersForRequest(mMockConnection, request);
+        verify(mMockConnection).setDoOutput(true);
+        verify(mMockConnection).setFixedLengthStreamingMode(3);
+        assertEquals("abc", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList(2L, 3L), progress);
+    }
+
+    @Test
+    public void connectionForPostWithBodyWriter_unknownLength() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        when(mMockConnection.getOutputStream()).thenReturn(out);
+
+        HurlStack.setConnectionParametersForRequest(mMockConnection, postWithBodyWriter(-1));
+        verify(mMockConnection).setChunkedStreamingMode(0);
+        assertEquals("abc", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @Config(sdk = 19)
+    public void connectionForPostWithBodyWriter_longLength() throws Exception {
+        when(mMockConnection.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+
+        HurlStack.setConnectionParametersForRequest(
+                mMockConnection, postWithBodyWriter(Integer.MAX_VALUE + 1L));
+        verify(mMockConnection).setFixedLengthStreamingMode(Integer.MAX_VALUE + 1L);
+    }
+
+    @Test
+    @Config(sdk = 16)
+    public void connectionForPostWithBodyWriter_longLengthBeforeKitKat() throws Exception {
+        when(mMockConnection.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+
+        HurlStack.setConnectionParametersForRequest(
+                mMockConnection, postWithBodyWriter(Integer.MAX_VALUE + 1L));
+        verify(mMockConnection).setChunkedStreamingMode(0);
+    }
+
+    @Test
+    public void connectionForPostWithBody_buffered() throws Exception {
+        TestRequest.PostWithBody request = new TestRequest.PostWithBody();
+
+        HurlStack.setConnectionParametersForRequest(mMockConnection, request);
+        // Buffered bodies can be resent by HttpURLConnection for auth challenges and redirects.
+        verify(mMockConnection).setDoOutput(true);
+        verify(mMockConnection, never()).setFixedLengthStreamingMode(anyInt());
+        verify(mMockConnection, never()).setChunkedStreamingMode(anyInt());
+    }
+
+    @Test
+    public void executeRequestClearsCancelActionOnClose() throws Exception {
+        when(mMockConnection.getResponseCode()).thenReturn(200);
+        when(mMockConnection.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[1]));
+        TestRequest.Get request = new TestRequest.Get();
+
+        HttpResponse response =
+                mHurlStack.executeRequest(request, Collections.<String, String>emptyMap());
+        response.getContent().close();
+        verify(mMockConnection).disconnect();
+
+        // The closed connection is no longer reachable from the request.
+        request.cancel();
+        verify(mMockConnection).disconnect();
+    }
+
     @Test
     public void executeRequestClosesConnection_connectionError() throws Exception {
         when(mMockConnection.getResponseCode()).thenThrow(new SocketTimeoutException());
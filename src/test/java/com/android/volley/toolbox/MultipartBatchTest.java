@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.Cache;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import com.android.volley.mock.MockRequest;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class MultipartBatchTest {
+
+    @Test
+    public void encodeRequests() throws Exception {
+        MockRequest first = new MockRequest("http://foo.com/a", null);
+        Cache.Entry entry = new Cache.Entry();
+        entry.etag = "tag";
+        first.setCacheEntry(entry);
+        MockRequest second = new MockRequest("http://foo.com/b", null);
+
+        String body =
+                new String(
+                        MultipartBatch.encodeRequests(
+                                Arrays.<Request<?>>asList(first, second), "xyz"),
+                        StandardCharsets.UTF_8);
+
+        assertEquals(
+                "--xyz\r\n"
+                        + "Content-Type: application/http\r\n"
+                        + "Content-ID: <item-0>\r\n"
+                        + "\r\n"
+                        + "GET http://foo.com/a HTTP/1.1\r\n"
+                        + "If-None-Match: tag\r\n"
+                        + "\r\n"
+                        + "\r\n"
+                        + "--xyz\r\n"
+                        + "Content-Type: application/http\r\n"
+                        + "Content-ID: <item-1>\r\n"
+                        + "\r\n"
+                        + "GET http://foo.com/b HTTP/1.1\r\n"
+                        + "\r\n"
+                        + "\r\n"
+                        + "--xyz--\r\n",
+                body);
+    }
+
+    @Test
+    public void parseBoundary() {
+        assertEquals("abc", MultipartBatch.parseBoundary("multipart/mixed; boundary=abc"));
+        assertEquals("a b", MultipartBatch.parseBoundary("multipart/mixed;boundary=\"a b\""));
+        assertNull(MultipartBatch.parseBoundary("text/plain"));
+        assertNull(MultipartBatch.parseBoundary(null));
+    }
+
+    @Test
+    public void parseResponses() throws Exception {
+        String body =
+                "preamble\r\n"
+                        + "--xyz\r\n"
+                        + "Content-Type: application/http\r\n"
+                        + "Content-ID: <response-item-1>\r\n"
+                        + "\r\n"
+                        + "HTTP/1.1 200 OK\r\n"
+                        + "ETag: abc\r\n"
+                        + "\r\n"
+                        + "body\r\nwith lines\r\n"
+                        + "--xyz\r\n"
+                        + "Content-Type: application/http\r\n"
+                        + "\r\n"
+                        + "HTTP/1.1 304 Not Modified\r\n"
+                        + "\r\n"
+                        + "\r\n"
+                        + "--xyz--\r\n";
+
+        List<MultipartBatch.Part> parts =
+                MultipartBatch.parseResponses(body.getBytes(StandardCharsets.UTF_8), "xyz");
+
+        assertEquals(2, parts.size());
+        assertEquals(1, parts.get(0).index);
+        assertEquals(200, parts.get(0).statusCode);
+        assertEquals(Arrays.asList(new Header("ETag", "abc")), parts.get(0).headers);
+        assertArrayEquals("body\r\nwith lines".getBytes(StandardCharsets.UTF_8), parts.get(0).body);
+        assertEquals(-1, parts.get(1).index);
+        assertEquals(304, parts.get(1).statusCode);
+        assertTrue(parts.get(1).headers.isEmpty());
+        assertEquals(0, parts.get(1).body.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void parseTruncatedResponses() throws Exception {
+        String body = "--xyz\r\nContent-Type: application/http\r\n\r\nHTTP/1.1 200 OK\r\n\r\nbo";
+        MultipartBatch.parseResponses(body.getBytes(StandardCharsets.UTF_8), "xyz");
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class NioHttpStackTest {
+
+    private LoopbackServer mServer;
+    private NioHttpStack mStack;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LoopbackServer();
+        mStack = new NioHttpStack();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    /**
+     * A server on the loopback interface which answers each request with the next queued response
+     * and records the requests it receives.
+     */
+    private static class LoopbackServer {
+        private final ServerSocket mServerSocket;
+        final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> requestHeads = new LinkedBlockingQueue<>();
+        final BlockingQueue<byte[]> requestBodies = new LinkedBlockingQueue<>();
+        final AtomicInteger connectionCount = new AtomicInteger();
+
+        LoopbackServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread acceptThread =
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            while (true) {
+                                final Socket socket;
+                                try {
+                                    socket = mServerSocket.accept();
+                                } catch (IOException e) {
+                                    return;
+                                }
+                                connectionCount.incrementAndGet();
+                                new Thread() {
+                                    @Override
+                                    public void run() {
+                                        serve(socket);
+                                    }
+                                }.start();
+                            }
+                        }
+                    };
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        String url(String path) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+        }
+
+        void enqueue(String response) {
+            responses.add(response.getBytes());
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        private void serve(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    String head = readHead(in);
+                    if (head == null) {
+                        break;
+                    }
+                    requestHeads.add(head);
+                    int contentLength = 0;
+                    for (String line : head.split("\r\n")) {
+                        if (line.toLowerCase().startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(line.substring(15).trim());
+                        }
+                    }
+                    byte[] body = new byte[contentLength];
+                    in.readFully(body);
+                    requestBodies.add(body);
+                    byte[] response = responses.poll(10, TimeUnit.SECONDS);
+                    out.write(response);
+                    out.flush();
+                    if (new String(response).contains("Connection: close")) {
+                        break;
+                    }
+                }
+                socket.close();
+            } catch (IOException | InterruptedException e) {
+                // The client went away.
+            }
+        }
+
+        private static String readHead(InputStream in) throws IOException {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                head.write(b);
+                if (head.toString().endsWith("\r\n\r\n")) {
+                    return head.toString();
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class LoopbackRequest extends Request<byte[]> {
+        private final Map<String, String> mHeaders;
+        private final byte[] mBody;
+
+        LoopbackRequest(int method, String url, Map<String, String> headers, byte[] body) {
+            super(method, url, null);
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return mHeaders;
+        }
+
+        @Override
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        @Override
+        protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(byte[] response) {}
+    }
+
+    private HttpResponse get(String path) throws IOException, AuthFailureError {
+        return mStack.executeRequest(
+                new LoopbackRequest(
+                        Request.Method.GET,
+                        mServer.url(path),
+                        Collections.<String, String>emptyMap(),
+                        null),
+                Collections.<String, String>emptyMap());
+    }
+
+    private static byte[] readBody(HttpResponse response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = response.getContent();
+        byte[] buffer = new byte[1000];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        for (Header header : response.getHeaders()) {
+            if (header.getName().equals(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void getIsSentAndResponseIsRead() throws Exception {
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nX-Foo: bar\r\n\r\nhello");
+
+        HttpResponse response =
+                mStack.executeRequest(
+                        new LoopbackRequest(
+                                Request.Method.GET,
+                                mServer.url("/path?q=1"),
+                                Collections.singletonMap("A", "RequestA"),
+                                null),
+                        Collections.singletonMap("B", "AddlB"));
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("bar", headerValue(response, "X-Foo"));
+        assertEquals(5, response.getContentLength());
+        assertArrayEquals("hello".getBytes(), readBody(response));
+        String head = mServer.requestHeads.take();
+        assertTrue(head, head.startsWith("GET /path?q=1 HTTP/1.1\r\n"));
+        assertTrue(head, head.contains("\r\nHost: 127.0.0.1:"));
+        assertTrue(head, head.contains("\r\nA: RequestA\r\n"));
+        assertTrue(head, head.contains("\r\nB: AddlB\r\n"));
+    }
+
+    @Test
+    public void chunkedBodyIsDecoded() throws Exception {
+        mServer.enqueue(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        + "5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\nTrailer: x\r\n\r\n");
+
+        HttpResponse response = get("/");
+
+        assertEquals(-1, response.getContentLength());
+        assertArrayEquals("hello world".getBytes(), readBody(response));
+    }
+
+    @Test
+    public void keepAliveConnectionIsReused() throws Exception {
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na");
+        mServer.enqueue("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n1\r\nb\r\n0\r\n\r\n");
+        mServer.enqueue("HTTP/1.1 204 No Content\r\n\r\n");
+
+        assertArrayEquals("a".getBytes(), readBody(get("/1")));
+        assertArrayEquals("b".getBytes(), readBody(get("/2")));
+        HttpResponse response = get("/3");
+
+        assertEquals(204, response.getStatusCode());
+        assertNull(response.getContent());
+        assertEquals(1, mServer.connectionCount.get());
+    }
+
+    @Test
+    public void closedConnectionIsNotReused() throws Exception {
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 1\r\nConnection: close\r\n\r\na");
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb");
+
+        assertArrayEquals("a".getBytes(), readBody(get("/1")));
+        assertArrayEquals("b".getBytes(), readBody(get("/2")));
+
+        assertEquals(2, mServer.connectionCount.get());
+    }
+
+    @Test
+    public void bodyIsSent() throws Exception {
+        mServer.enqueue("HTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n");
+
+        HttpResponse response =
+                mStack.executeRequest(
+                        new LoopbackRequest(
+                                Request.Method.POST,
+                                mServer.url("/upload"),
+                                Collections.<String, String>emptyMap(),
+                                "payload".getBytes()),
+                        Collections.<String, String>emptyMap());
+
+        assertEquals(201, response.getStatusCode());
+        String head = mServer.requestHeads.take();
+        assertTrue(head, head.startsWith("POST /upload HTTP/1.1\r\n"));
+        assertTrue(head, head.contains("\r\nContent-Length: 7\r\n"));
+        assertArrayEquals("payload".getBytes(), mServer.requestBodies.take());
+    }
+
+    @Test
+    public void failingUploadListenerOnlyAbortsItsRequest() throws Exception {
+        // The aborted request's server connection may still take one of the responses.
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+        mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+        LoopbackRequest request =
+                new LoopbackRequest(
+                        Request.Method.POST,
+                        mServer.url("/upload"),
+                        Collections.<String, String>emptyMap(),
+                        "payload".getBytes());
+        request.setUploadProgressListener(
+                new Request.UploadProgressListener() {
+                    @Override
+                    public void onUploadProgress(long bytesWritten, long totalBytes) {
+                        throw new IllegalStateException("listener failed");
+                    }
+                });
+
+        try {
+            mStack.executeRequest(request, Collections.<String, String>emptyMap());
+            fail("Request with a failing listener should have failed");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        // The I/O thread is still serving requests.
+        assertArrayEquals("ok".getBytes(), readBody(get("/next")));
+    }
+
+    @Test
+    public void headerWithLineBreakIsRejected() throws Exception {
+        try {
+            mStack.executeRequest(
+                    new LoopbackRequest(
+                            Request.Method.GET,
+                            mServer.url("/"),
+                            Collections.singletonMap("A", "value\r\nInjected: 1"),
+                            null),
+                    Collections.<String, String>emptyMap());
+            fail("Header with a line break should have been rejected");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        assertEquals(0, mServer.connectionCount.get());
+    }
+
+    @Test
+    public void largeBodyIsReadAhead() throws Exception {
+        byte[] body = new byte[1024 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i * 31);
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(
+                ("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes());
+        response.write(body);
+        mServer.responses.add(response.toByteArray());
+
+        // Reading pauses while the caller falls behind, and resumes as it catches up.
+        assertArrayEquals(body, readBody(get("/large")));
+    }
+
+    @Test
+    public void concurrentRequestsShareIoThread() throws Exception {
+        int count = 20;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        mStack.setBlockingExecutor(executor);
+        mStack.setNonBlockingExecutor(executor);
+        for (int i = 0; i < count; i++) {
+            mServer.enqueue("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+        }
+        final CountDownLatch latch = new CountDownLatch(count);
+        final List<Object> results = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < count; i++) {
+            mStack.executeRequest(
+                    new LoopbackRequest(
+                            Request.Method.GET,
+                            mServer.url("/" + i),
+                            Collections.<String, String>emptyMap(),
+                            null),
+                    Collections.<String, String>emptyMap(),
+                    new AsyncHttpStack.OnRequestComplete() {
+                        @Override
+                        public void onSuccess(HttpResponse httpResponse) {
+                            results.add(httpResponse);
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onAuthError(AuthFailureError authFailureError) {
+                            results.add(authFailureError);
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onError(IOException ioException) {
+                            results.add(ioException);
+                            latch.countDown();
+                        }
+                    });
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        for (Object result : results) {
+            assertArrayEquals("ok".getBytes(), readBody((HttpResponse) result));
+        }
+        assertEquals(count, results.size());
+    }
+
+    @Test
+    public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(NioHttpStack.class.getConstructor());
+        assertNotNull(NioHttpStack.class.getConstructor(int.class));
+        assertNotNull(
+                NioHttpStack.class.getMethod(
+                        "executeRequest",
+                        Request.class,
+                        Map.class,
+                        AsyncHttpStack.OnRequestComplete.class));
+    }
+}
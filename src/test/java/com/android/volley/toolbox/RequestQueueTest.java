@@ -20,9 +20,11 @@ import static org.junit.Assert.assertNotNull;
 
 import com.android.volley.Cache;
 import com.android.volley.Network;
+import com.android.volley.PriorityAgingPolicy;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.ResponseDelivery;
+import java.util.concurrent.ExecutorService;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -36,6 +38,22 @@ public class RequestQueueTest {
         assertNotNull(
                 RequestQueue.class.getConstructor(
                         Cache.class, Network.class, int.class, ResponseDelivery.class));
+        assertNotNull(
+                RequestQueue.class.getConstructor(
+                        Cache.class,
+                        Network.class,
+                        int.class,
+                        int.class,
+                        long.class,
+                        ResponseDelivery.class));
+        assertNotNull(
+                RequestQueue.class.getConstructor(
+                        Cache.class,
+                        Network.class,
+                        ExecutorService.class,
+                        ExecutorService.class,
+                        int.class,
+                        ResponseDelivery.class));
         assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class, int.class));
         assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class));
 
@@ -43,9 +61,46 @@ public class RequestQueueTest {
         assertNotNull(RequestQueue.class.getMethod("stop"));
         assertNotNull(RequestQueue.class.getMethod("getSequenceNumber"));
         assertNotNull(RequestQueue.class.getMethod("getCache"));
+        assertNotNull(RequestQueue.class.getMethod("setCacheThreadPoolSize", int.class));
+        assertNotNull(RequestQueue.class.getMethod("setMaxRequestsPerHost", int.class));
+        assertNotNull(
+                RequestQueue.class.getMethod("setMaxRequestsPerHost", String.class, int.class));
+        assertNotNull(
+                RequestQueue.class.getMethod("setPriorityAgingPolicy", PriorityAgingPolicy.class));
+        assertNotNull(RequestQueue.class.getMethod("setEarliestDeadlineFirst", boolean.class));
+        assertNotNull(
+                RequestQueue.class.getMethod(
+                        "setMaxQueueSizes",
+                        int.class,
+                        int.class,
+                        RequestQueue.OverflowPolicy.class));
+        assertNotNull(RequestQueue.class.getMethod("getRejectedRequestCount"));
+        assertNotNull(RequestQueue.class.getMethod("getDroppedRequestCount"));
+        assertNotNull(RequestQueue.class.getMethod("setImmediateLaneSize", int.class));
+        assertNotNull(
+                RequestQueue.class.getMethod("setAdaptiveConcurrencyLimit", int.class, int.class));
+        assertNotNull(RequestQueue.class.getMethod("getConcurrencyLimit"));
+        assertNotNull(
+                RequestQueue.class.getMethod(
+                        "setConcurrencyLimitListener",
+                        RequestQueue.ConcurrencyLimitListener.class));
+        assertNotNull(
+                RequestQueue.class.getMethod(
+                        "getNetworkQueueWaitTimeMs", RequestQueue.NetworkLane.class));
+        assertNotNull(
+                RequestQueue.class.getMethod(
+                        "getNetworkDispatchCount", RequestQueue.NetworkLane.class));
+        assertNotNull(
+                RequestQueue.class.getMethod("setMaxRequestRatePerHost", double.class, int.class));
+        assertNotNull(
+                RequestQueue.class.getMethod(
+                        "setMaxRequestRatePerHost", String.class, double.class, int.class));
+        assertNotNull(
+                RequestQueue.class.getMethod("setSingleFlight", boolean.class, String[].class));
         assertNotNull(RequestQueue.class.getMethod("cancelAll", RequestQueue.RequestFilter.class));
         assertNotNull(RequestQueue.class.getMethod("cancelAll", Object.class));
         assertNotNull(RequestQueue.class.getMethod("add", Request.class));
+        assertNotNull(RequestQueue.class.getMethod("prefetch", Request.class));
         assertNotNull(RequestQueue.class.getDeclaredMethod("finish", Request.class));
     }
 }
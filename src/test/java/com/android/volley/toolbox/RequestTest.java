@@ -19,6 +19,7 @@ package com.android.volley.toolbox;
 import static org.junit.Assert.assertNotNull;
 
 import com.android.volley.Cache;
+import com.android.volley.HedgingPolicy;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
@@ -55,6 +56,12 @@ public class RequestTest {
         assertNotNull(Request.class.getMethod("setCacheEntry", Cache.Entry.class));
         assertNotNull(Request.class.getMethod("getCacheEntry"));
         assertNotNull(Request.class.getMethod("cancel"));
+        assertNotNull(Request.class.getMethod("setCancelAction", Runnable.class));
+        assertNotNull(Request.class.getMethod("getBodyWriter"));
+        assertNotNull(
+                Request.class.getMethod(
+                        "setUploadProgressListener", Request.UploadProgressListener.class));
+        assertNotNull(Request.class.getMethod("getUploadProgressListener"));
         assertNotNull(Request.class.getMethod("isCanceled"));
         assertNotNull(Request.class.getMethod("getHeaders"));
         assertNotNull(Request.class.getDeclaredMethod("getParams"));
@@ -65,6 +72,12 @@ public class RequestTest {
         assertNotNull(Request.class.getMethod("shouldCache"));
         assertNotNull(Request.class.getMethod("getPriority"));
         assertNotNull(Request.class.getMethod("getTimeoutMs"));
+        assertNotNull(Request.class.getMethod("setDeadline", long.class));
+        assertNotNull(Request.class.getMethod("getDeadline"));
+        assertNotNull(Request.class.getMethod("setHedgingPolicy", HedgingPolicy.class));
+        assertNotNull(Request.class.getMethod("getHedgingPolicy"));
+        assertNotNull(Request.class.getMethod("isPrefetch"));
+        assertNotNull(Request.class.getMethod("hasDeadlinePassed"));
         assertNotNull(Request.class.getMethod("getRetryPolicy"));
         assertNotNull(Request.class.getMethod("markDelivered"));
         assertNotNull(Request.class.getMethod("hasHadResponseDelivered"));
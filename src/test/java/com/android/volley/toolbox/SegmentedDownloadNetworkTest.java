@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Network;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockRequest;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class SegmentedDownloadNetworkTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final NetworkResponse mWholeResponse = new NetworkResponse(new byte[0]);
+
+    private final Network mWholeNetwork =
+            new Network() {
+                @Override
+                public NetworkResponse performRequest(Request<?> request) {
+                    return mWholeResponse;
+                }
+            };
+
+    /** Serves byte ranges of a file, interrupting each segment halfway on request. */
+    private static class RangeHttpStack extends BaseHttpStack {
+        private final byte[] mFile;
+        private final boolean mSupportsRanges;
+        private final boolean mInterruptSegments;
+        final AtomicInteger requestCount = new AtomicInteger();
+        final List<String> ranges = new ArrayList<>();
+        private final Set<Integer> mInterrupted =
+                Collections.synchronizedSet(new HashSet<Integer>());
+
+        RangeHttpStack(byte[] file, boolean supportsRanges, boolean interruptSegments) {
+            mFile = file;
+            mSupportsRanges = supportsRanges;
+            mInterruptSegments = interruptSegments;
+        }
+
+        @Override
+        public HttpResponse executeRequest(
+                Request<?> request, Map<String, String> additionalHeaders)
+                throws IOException, AuthFailureError {
+            requestCount.incrementAndGet();
+            String range = request.getHeaders().get("Range");
+            synchronized (ranges) {
+                ranges.add(range);
+            }
+            List<Header> headers = new ArrayList<>();
+            headers.add(new Header("ETag", "\"v1\""));
+            if (!mSupportsRanges || range == null) {
+                return new HttpResponse(
+                        200, headers, mFile.length, new ByteArrayInputStream(mFile));
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int start = Integer.parseInt(bounds[0]);
+            int end = Integer.parseInt(bounds[1]);
+            headers.add(
+                    new Header("Content-Range", "bytes " + start + "-" + end + "/" + mFile.length));
+            int length = end - start + 1;
+            InputStream body = new ByteArrayInputStream(mFile, start, length);
+            if (mInterruptSegments && length > 1 && mInterrupted.add(end)) {
+                // Deliver the first half of the range, then fail.
+                body =
+                        new SequenceInputStream(
+                                new ByteArrayInputStream(mFile, start, length / 2),
+                                new InputStream() {
+                                    @Override
+                                    public int read() throws IOException {
+                                        throw new IOException("Connection reset");
+                                    }
+                                });
+            }
+            return new HttpResponse(206, headers, length, body);
+        }
+    }
+
+    private static byte[] newFile(int length) {
+        byte[] file = new byte[length];
+        for (int i = 0; i < file.length; i++) {
+            file[i] = (byte) (i * 31);
+        }
+        return file;
+    }
+
+    @Test
+    public void fileIsDownloadedInSegments() throws Exception {
+        byte[] file = newFile(10000);
+        RangeHttpStack stack = new RangeHttpStack(file, true, false);
+        SegmentedDownloadNetwork network =
+                new SegmentedDownloadNetwork(mWholeNetwork, stack, 2, 1000);
+        File target = new File(temporaryFolder.getRoot(), "file");
+        FileDownloadRequest request = new FileDownloadRequest("http://foo.com", target, null, null);
+        request.setMaxSegments(4);
+
+        NetworkResponse response = network.performRequest(request);
+
+        assertEquals(target, request.parseNetworkResponse(response).result);
+        assertArrayEquals(file, Files.readAllBytes(target.toPath()));
+        assertFalse(request.getTempFile().exists());
+        assertEquals(1, network.getSegmentedDownloadCount());
+        // The probe, then one request per segment.
+        assertEquals(5, stack.requestCount.get());
+        assertEquals("bytes=0-0", stack.ranges.get(0));
+    }
+
+    @Test
+    public void interruptedSegmentsResume() throws Exception {
+        byte[] file = newFile(10000);
+        RangeHttpStack stack = new RangeHttpStack(file, true, true);
+        SegmentedDownloadNetwork network =
+                new SegmentedDownloadNetwork(mWholeNetwork, stack, 4, 1000);
+        File target = new File(temporaryFolder.getRoot(), "file");
+        FileDownloadRequest request = new FileDownloadRequest("http://foo.com", target, null, null);
+        request.setMaxSegments(2);
+
+        network.performRequest(request);
+
+        assertArrayEquals(file, Files.readAllBytes(target.toPath()));
+        // Each segment is retried from the byte it reached.
+        assertEquals(5, stack.requestCount.get());
+        assertTrue(stack.ranges.contains("bytes=2500-4999"));
+        assertTrue(stack.ranges.contains("bytes=7500-9999"));
+    }
+
+    @Test
+    public void serverWithoutRangesFallsBack() throws Exception {
+        RangeHttpStack stack = new RangeHttpStack(newFile(10000), false, false);
+        SegmentedDownloadNetwork network =
+                new SegmentedDownloadNetwork(mWholeNetwork, stack, 2, 1000);
+        FileDownloadRequest request =
+                new FileDownloadRequest(
+                        "http://foo.com", new File(temporaryFolder.getRoot(), "file"), null, null);
+        request.setMaxSegments(4);
+
+        assertSame(mWholeResponse, network.performRequest(request));
+        assertEquals(0, network.getSegmentedDownloadCount());
+    }
+
+    @Test
+    public void smallFileFallsBack() throws Exception {
+        RangeHttpStack stack = new RangeHttpStack(newFile(1500), true, false);
+        SegmentedDownloadNetwork network =
+                new SegmentedDownloadNetwork(mWholeNetwork, stack, 2, 1000);
+        FileDownloadRequest request =
+                new FileDownloadRequest(
+                        "http://foo.com", new File(temporaryFolder.getRoot(), "file"), null, null);
+        request.setMaxSegments(4);
+
+        assertSame(mWholeResponse, network.performRequest(request));
+        assertEquals(1, stack.requestCount.get());
+    }
+
+    @Test
+    public void otherRequestsAreNotSegmented() throws Exception {
+        RangeHttpStack stack = new RangeHttpStack(newFile(10000), true, false);
+        SegmentedDownloadNetwork network =
+                new SegmentedDownloadNetwork(mWholeNetwork, stack, 2, 1000);
+
+        assertSame(mWholeResponse, network.performRequest(new MockRequest()));
+        FileDownloadRequest request =
+                new FileDownloadRequest(
+                        "http://foo.com", new File(temporaryFolder.getRoot(), "file"), null, null);
+        assertSame(mWholeResponse, network.performRequest(request));
+        assertEquals(0, stack.requestCount.get());
+    }
+
+    @Test
+    public void changedFileFailsDownload() throws Exception {
+        final byte[] file = newFile(10000);
+        BaseHttpStack stack =
+                new RangeHttpStack(file, true, false) {
+                    @Override
+                    public HttpResponse executeRequest(
+                            Request<?> request, Map<String, String> additionalHeaders)
+                            throws IOException, AuthFailureError {
+                        if (request.getHeaders().containsKey("If-Range")) {
+                            // The file changed after the probe, so the whole file is sent.
+                            return new HttpResponse(
+                                    200,
+                                    new ArrayList<Header>(),
+                                    file.length,
+                                    new ByteArrayInputStream(file));
+                        }
+                        return super.executeRequest(request, additionalHeaders);
+                    }
+                };
+        SegmentedDownloadNetwork network =
+                new SegmentedDownloadNetwork(mWholeNetwork, stack, 2, 1000);
+        File target = new File(temporaryFolder.getRoot(), "file");
+        FileDownloadRequest request = new FileDownloadRequest("http://foo.com", target, null, null);
+        request.setMaxSegments(2);
+
+        try {
+            network.performRequest(request);
+            fail("Expected ServerError");
+        } catch (ServerError e) {
+            // Expected.
+        }
+        assertFalse(target.exists());
+        assertFalse(request.getTempFile().exists());
+    }
+
+    @Test
+    public void failedDownloadKeepsCompletedSegmentsForResume() throws Exception {
+        BaseHttpStack stack =
+                new RangeHttpStack(newFile(10000), true, false) {
+                    @Override
+                    public HttpResponse executeRequest(
+                            Request<?> request, Map<String, String> additionalHeaders)
+                            throws IOException, AuthFailureError {
+                        if ("bytes=5000-9999".equals(request.getHeaders().get("Range"))) {
+                            throw new IOException("Connection reset");
+                        }
+                        return super.executeRequest(request, additionalHeaders);
+                    }
+                };
+        SegmentedDownloadNetwork network =
+                new SegmentedDownloadNetwork(mWholeNetwork, stack, 2, 1000);
+        FileDownloadRequest request =
+                new FileDownloadRequest(
+                        "http://foo.com", new File(temporaryFolder.getRoot(), "file"), null, null);
+        request.setMaxSegments(2);
+
+        try {
+            network.performRequest(request);
+            fail("Expected NetworkError");
+        } catch (NetworkError e) {
+            // Expected.
+        }
+        assertEquals(5000, request.getTempFile().length());
+        assertTrue(request.hasResumablePartial());
+
+        // The retry resumes the partial download as a whole.
+        assertSame(mWholeResponse, network.performRequest(request));
+        assertEquals(1, network.getSegmentedDownloadCount());
+    }
+
+    @Test
+    public void canceledDownloadIsNotProbed() throws Exception {
+        RangeHttpStack stack = new RangeHttpStack(newFile(10000), true, false);
+        SegmentedDownloadNetwork network =
+                new SegmentedDownloadNetwork(mWholeNetwork, stack, 2, 1000);
+        FileDownloadRequest request =
+                new FileDownloadRequest(
+                        "http://foo.com", new File(temporaryFolder.getRoot(), "file"), null, null);
+        request.setMaxSegments(2);
+        request.cancel();
+
+        try {
+            network.performRequest(request);
+            fail("Expected VolleyError");
+        } catch (VolleyError e) {
+            // Expected.
+        }
+        assertEquals(0, stack.requestCount.get());
+    }
+
+    @Test
+    public void interruptStopsSegments() throws Exception {
+        final AtomicInteger activeSegments = new AtomicInteger();
+        final byte[] file = newFile(10000);
+        BaseHttpStack stack =
+                new RangeHttpStack(file, true, false) {
+                    @Override
+                    public HttpResponse executeRequest(
+                            final Request<?> request, Map<String, String> additionalHeaders)
+                            throws IOException, AuthFailureError {
+                        if ("bytes=0-0".equals(request.getHeaders().get("Range"))) {
+                            return super.executeRequest(request, additionalHeaders);
+                        }
+                        activeSegments.incrementAndGet();
+                        // Serves the segment slowly until it is canceled.
+                        InputStream body =
+                                new InputStream() {
+                                    @Override
+                                    public int read() throws IOException {
+                                        while (!request.isCanceled()) {
+                                            try {
+                                                Thread.sleep(5);
+                                            } catch (InterruptedException e) {
+                                                throw new IOException(e);
+                                            }
+                                        }
+                                        throw new IOException("Canceled");
+                                    }
+
+                                    @Override
+                                    public void close() {
+                                        activeSegments.decrementAndGet();
+                                    }
+                                };
+                        return new HttpResponse(
+                                206,
+                                Collections.singletonList(
+                                        new Header("Content-Range", "bytes 0-4999/10000")),
+                                5000,
+                                body);
+                    }
+                };
+        final SegmentedDownloadNetwork network =
+                new SegmentedDownloadNetwork(mWholeNetwork, stack, 2, 1000);
+        final FileDownloadRequest request =
+                new FileDownloadRequest(
+                        "http://foo.com", new File(temporaryFolder.getRoot(), "file"), null, null);
+        request.setMaxSegments(2);
+        final AtomicReference<VolleyError> error = new AtomicReference<>();
+        Thread thread =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            network.performRequest(request);
+                        } catch (VolleyError e) {
+                            error.set(e);
+                        }
+                    }
+                };
+        thread.start();
+        while (activeSegments.get() == 0) {
+            Thread.sleep(5);
+        }
+
+        thread.interrupt();
+        thread.join();
+
+        assertNotNull(error.get());
+        assertEquals(0, activeSegments.get());
+    }
+
+    @Test
+    public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(
+                SegmentedDownloadNetwork.class.getConstructor(
+                        Network.class, BaseHttpStack.class, int.class));
+        assertNotNull(
+                SegmentedDownloadNetwork.class.getConstructor(
+                        Network.class, BaseHttpStack.class, int.class, long.class));
+        assertNotNull(SegmentedDownloadNetwork.class.getMethod("getSegmentedDownloadCount"));
+        assertNotNull(SegmentedDownloadNetwork.class.getMethod("performRequest", Request.class));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Response;
+import com.android.volley.mock.MockHttpStack;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class StreamingRequestTest {
+
+    private static final byte[] BODY = "first line\nsecond line".getBytes(StandardCharsets.UTF_8);
+
+    /** Parses the first line of the body, failing if the body is empty. */
+    private static class FirstLineRequest extends StreamingRequest<String> {
+        InputStream streamSeen;
+
+        FirstLineRequest() {
+            super(Method.GET, "http://foo.com", null);
+        }
+
+        @Override
+        protected String parseResponseStream(NetworkResponse response, InputStream body)
+                throws IOException, ParseError {
+            streamSeen = body;
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = body.read()) != -1 && b != '\n') {
+                line.append((char) b);
+            }
+            if (line.length() == 0) {
+                throw new ParseError();
+            }
+            return line.toString();
+        }
+
+        @Override
+        protected void deliverResponse(String response) {}
+    }
+
+    private static NetworkResponse perform(FirstLineRequest request, byte[] body) throws Exception {
+        MockHttpStack stack = new MockHttpStack();
+        stack.setResponseToReturn(
+                new HttpResponse(
+                        200,
+                        Collections.singletonList(new Header("Cache-Control", "max-age=60")),
+                        body.length,
+                        new ByteArrayInputStream(body)));
+        return new BasicNetwork(stack).performRequest(request);
+    }
+
+    @Test
+    public void bodyIsStreamedWithoutBuffering() throws Exception {
+        FirstLineRequest request = new FirstLineRequest();
+
+        NetworkResponse networkResponse = perform(request, BODY);
+        Response<String> response = request.parseNetworkResponse(networkResponse);
+
+        assertFalse(request.streamSeen instanceof ByteArrayInputStream);
+        assertEquals(0, networkResponse.data.length);
+        assertEquals("first line", response.result);
+        assertNull(response.cacheEntry);
+    }
+
+    @Test
+    public void cachedRequestCopiesWholeBody() throws Exception {
+        FirstLineRequest request = new FirstLineRequest();
+        request.setShouldCache(true);
+
+        NetworkResponse networkResponse = perform(request, BODY);
+        Response<String> response = request.parseNetworkResponse(networkResponse);
+
+        assertArrayEquals(BODY, networkResponse.data);
+        assertEquals("first line", response.result);
+        assertNotNull(response.cacheEntry);
+        assertArrayEquals(BODY, response.cacheEntry.data);
+    }
+
+    @Test
+    public void bufferedBodyIsParsed() throws Exception {
+        FirstLineRequest request = new FirstLineRequest();
+
+        Response<String> response = request.parseNetworkResponse(new NetworkResponse(BODY));
+
+        assertTrue(request.streamSeen instanceof ByteArrayInputStream);
+        assertEquals("first line", response.result);
+    }
+
+    @Test
+    public void parseErrorIsReturned() throws Exception {
+        FirstLineRequest request = new FirstLineRequest();
+
+        Response<String> response = request.parseNetworkResponse(perform(request, new byte[0]));
+
+        assertFalse(response.isSuccess());
+        assertTrue(response.error instanceof ParseError);
+    }
+
+    @Test
+    public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(
+                StreamingRequest.class.getConstructor(
+                        int.class, String.class, Response.ErrorListener.class));
+        assertNotNull(
+                StreamingRequest.class.getDeclaredMethod(
+                        "parseResponseStream", NetworkResponse.class, InputStream.class));
+    }
+}